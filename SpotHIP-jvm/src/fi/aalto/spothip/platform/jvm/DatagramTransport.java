@@ -0,0 +1,171 @@
+//
+// DatagramTransport - UDP transport over java.net sockets
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.jvm;
+
+import fi.aalto.spothip.transport.*;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Hashtable;
+
+/**
+ * Uses the same "datagram://host:port" addresses as UdpTransport, so the
+ * two can be swapped without the locators changing format. The channel is
+ * non-blocking, receive only waits on the selector when the socket has
+ * been drained and otherwise returns everything queued up to the batch.
+ */
+public class DatagramTransport implements IHipDexTransport {
+    private static final String ADDRESS_PREFIX = "datagram://";
+    private static final String DEFAULT_BROADCAST_HOST = "255.255.255.255";
+
+    // UDP payload that fits an Ethernet frame without fragmenting
+    private static final int MAXIMUM_LENGTH = 1472;
+    private static final int MAXIMUM_CACHED_ADDRESSES = 256;
+
+    private int port;
+    private String broadcastHost;
+    private SocketAddress broadcastAddress = null;
+
+    private DatagramChannel channel = null;
+    private Selector selector = null;
+    private ByteBuffer incomingBuffer = null;
+
+    // Parsed socket addresses by address string, guarded by send
+    private Hashtable<String, SocketAddress> socketAddresses = new Hashtable<String, SocketAddress>();
+
+    public DatagramTransport(int hipPort) {
+        this(hipPort, DEFAULT_BROADCAST_HOST);
+    }
+
+    public DatagramTransport(int hipPort, String broadcast) {
+        port = hipPort;
+        broadcastHost = broadcast;
+    }
+
+    public synchronized void open() throws IOException {
+        if (channel != null)
+            return;
+
+        broadcastAddress = new InetSocketAddress(InetAddress.getByName(broadcastHost), port);
+        DatagramChannel newChannel = DatagramChannel.open();
+        try {
+            newChannel.socket().setBroadcast(true);
+            newChannel.socket().bind(new InetSocketAddress(port));
+            newChannel.configureBlocking(false);
+            selector = Selector.open();
+            newChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ioe) {
+            newChannel.close();
+            if (selector != null)
+                selector.close();
+            selector = null;
+            throw ioe;
+        }
+        incomingBuffer = ByteBuffer.allocate(MAXIMUM_LENGTH);
+        channel = newChannel;
+    }
+
+    public synchronized void close() throws IOException {
+        if (channel == null)
+            return;
+
+        // Closing the selector wakes up a receive blocked on it
+        channel.close();
+        selector.close();
+        channel = null;
+        socketAddresses.clear();
+    }
+
+    public int getMaximumLength() throws IOException {
+        return MAXIMUM_LENGTH;
+    }
+
+    public String getLocalAddress() {
+        return ADDRESS_PREFIX + ":" + port;
+    }
+
+    // Only called from the receiver thread
+    public int receive(HipDexDatagram[] datagrams) throws IOException {
+        DatagramChannel receiveChannel = channel;
+        Selector receiveSelector = selector;
+        if (receiveChannel == null)
+            throw new IOException("Transport not open");
+
+        int count = 0;
+        try {
+            while (count < datagrams.length) {
+                incomingBuffer.clear();
+                InetSocketAddress sender = (InetSocketAddress)receiveChannel.receive(incomingBuffer);
+                if (sender == null) {
+                    if (count > 0)
+                        break;
+                    receiveSelector.select();
+                    receiveSelector.selectedKeys().clear();
+                    continue;
+                }
+                String address = ADDRESS_PREFIX + sender.getAddress().getHostAddress() + ":" + sender.getPort();
+                datagrams[count++].set(incomingBuffer.array(), 0, incomingBuffer.position(), address);
+            }
+        } catch (ClosedSelectorException cse) {
+            throw new IOException("Transport closed");
+        }
+        return count;
+    }
+
+    // A full socket buffer drops the datagram like the network would
+    public synchronized void send(byte[] data, int offset, int length, String address) throws IOException {
+        if (channel == null)
+            throw new IOException("Transport not open");
+
+        channel.send(ByteBuffer.wrap(data, offset, length), getSocketAddress(address));
+    }
+
+    private SocketAddress getSocketAddress(String address) throws IOException {
+        if (address == null)
+            return broadcastAddress;
+
+        SocketAddress socketAddress = socketAddresses.get(address);
+        if (socketAddress != null)
+            return socketAddress;
+
+        int separator = address.lastIndexOf(':');
+        if (!address.startsWith(ADDRESS_PREFIX) || separator < ADDRESS_PREFIX.length())
+            throw new IOException("Invalid datagram address " + address);
+        String host = address.substring(ADDRESS_PREFIX.length(), separator);
+        int hostPort;
+        try {
+            hostPort = Integer.parseInt(address.substring(separator+1));
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Invalid datagram address " + address);
+        }
+
+        socketAddress = new InetSocketAddress(InetAddress.getByName(host), hostPort);
+        if (socketAddresses.size() >= MAXIMUM_CACHED_ADDRESSES)
+            socketAddresses.clear();
+        socketAddresses.put(address, socketAddress);
+        return socketAddress;
+    }
+}
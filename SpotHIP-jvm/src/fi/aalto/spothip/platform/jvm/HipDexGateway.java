@@ -0,0 +1,58 @@
+//
+// HipDexGateway - Command line HIP DEX engine for JVM hosts
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.jvm;
+
+import fi.aalto.spothip.*;
+import fi.aalto.spothip.protocol.HipHit;
+
+/**
+ * Listens for handshakes and connects to the HITs given as arguments, in
+ * hex. Data received from any peer is reported on the standard output,
+ * the counters of the engine are available over JMX.
+ */
+public class HipDexGateway {
+    public static void main(String[] args) throws Exception {
+        System.out.println("Starting HIP DEX gateway on " + JcaPlatform.install().getName());
+
+        HipDexEngine engine = new HipDexEngine(true);
+        HipDexMetricsMBean.register(engine, engine.getLocalHit().toString());
+        engine.start();
+        for (int i=0; i<args.length; i++)
+            engine.connectToHit(parseHit(args[i]));
+
+        HipDexData data = new HipDexData(256);
+        while (engine.receiveData(data, 0)) {
+            System.out.println("Received " + data.getLength() + " bytes from " + data.getRemoteHit());
+        }
+    }
+
+    private static HipHit parseHit(String hex) {
+        byte[] hit = new byte[HipHit.LENGTH];
+        if (hex.length() != 2*hit.length)
+            throw new IllegalArgumentException("HIT must be " + 2*hit.length + " hex digits: " + hex);
+        for (int i=0; i<hit.length; i++)
+            hit[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+        return new HipHit(hit);
+    }
+}
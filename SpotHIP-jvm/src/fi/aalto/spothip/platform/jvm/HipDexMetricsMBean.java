@@ -0,0 +1,188 @@
+//
+// HipDexMetricsMBean - Exports the engine counters over JMX
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.jvm;
+
+import fi.aalto.spothip.HipDexConnection;
+import fi.aalto.spothip.HipDexEngine;
+import fi.aalto.spothip.HipDexMetrics;
+
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/**
+ * Reads straight from one engine and its HipDexMetrics, nothing is copied
+ * or reset. Registered as fi.aalto.spothip:type=HipDexMetrics with the
+ * given name, usually the HIT of the engine.
+ */
+public class HipDexMetricsMBean implements IHipDexMetricsMBean {
+    public static final String DOMAIN = "fi.aalto.spothip";
+
+    private HipDexEngine engine;
+    private HipDexMetrics metrics;
+
+    public HipDexMetricsMBean(HipDexEngine hipEngine) {
+        engine = hipEngine;
+        metrics = hipEngine.getMetrics();
+    }
+
+    public static ObjectName register(HipDexEngine engine, String name) throws JMException {
+        ObjectName objectName = getObjectName(name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new StandardMBean(new HipDexMetricsMBean(engine), IHipDexMetricsMBean.class), objectName);
+        return objectName;
+    }
+
+    public static void unregister(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName(name));
+    }
+
+    private static ObjectName getObjectName(String name) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=HipDexMetrics,name=" + ObjectName.quote(name));
+    }
+
+    public int getParseFailureCount() {
+        return metrics.getParseFailureCount();
+    }
+
+    public int getRateLimitedCount() {
+        return metrics.getRateLimitedCount();
+    }
+
+    public int getCryptoRejectedCount() {
+        return metrics.getCryptoRejectedCount();
+    }
+
+    public int getInvalidPuzzleCount() {
+        return metrics.getInvalidPuzzleCount();
+    }
+
+    public int getRetransmissionCount() {
+        return metrics.getRetransmissionCount();
+    }
+
+    // Includes the packets the workers had no room for
+    public int getDroppedPacketCount() {
+        return engine.getDroppedPacketCount();
+    }
+
+    public int getUnassociatedConnectionCount() {
+        return engine.getConnectionCount(HipDexConnection.STATE_UNASSOCIATED);
+    }
+
+    public int getI1SentConnectionCount() {
+        return engine.getConnectionCount(HipDexConnection.STATE_I1_SENT);
+    }
+
+    public int getI2SentConnectionCount() {
+        return engine.getConnectionCount(HipDexConnection.STATE_I2_SENT);
+    }
+
+    public int getR2SentConnectionCount() {
+        return engine.getConnectionCount(HipDexConnection.STATE_R2_SENT);
+    }
+
+    public int getEstablishedConnectionCount() {
+        return engine.getConnectionCount(HipDexConnection.STATE_ESTABLISHED);
+    }
+
+    public int getClosingConnectionCount() {
+        return engine.getConnectionCount(HipDexConnection.STATE_CLOSING);
+    }
+
+    public int getClosedConnectionCount() {
+        return engine.getConnectionCount(HipDexConnection.STATE_CLOSED);
+    }
+
+    public int getHandshakesCompleted() {
+        return metrics.getHandshakesCompleted();
+    }
+
+    public int getHandshakesFailed() {
+        return metrics.getHandshakesFailed();
+    }
+
+    public long getAverageHandshakeLatency() {
+        return metrics.getAverageHandshakeLatency();
+    }
+
+    // The last bound is -1, that bucket has no upper limit
+    public int[] getLatencyBucketBounds() {
+        int[] bounds = new int[metrics.getLatencyBucketCount()];
+        for (int i=0; i<bounds.length; i++)
+            bounds[i] = metrics.getLatencyBucketBound(i);
+        return bounds;
+    }
+
+    public int[] getLatencyBucketValues() {
+        int[] values = new int[metrics.getLatencyBucketCount()];
+        for (int i=0; i<values.length; i++)
+            values[i] = metrics.getLatencyBucketValue(i);
+        return values;
+    }
+
+    public int getDataSentCount() {
+        return metrics.getDataSentCount();
+    }
+
+    public int getDataReceivedCount() {
+        return metrics.getDataReceivedCount();
+    }
+
+    public int getDataUnknownSpiCount() {
+        return metrics.getDataUnknownSpiCount();
+    }
+
+    public int getDataReplayedCount() {
+        return metrics.getDataReplayedCount();
+    }
+
+    public int getDataAuthFailedCount() {
+        return metrics.getDataAuthFailedCount();
+    }
+
+    public int getDataDroppedCount() {
+        return metrics.getDataDroppedCount();
+    }
+
+    public int[] getReceivedCounts() {
+        int[] counts = new int[metrics.getPacketTypeCount()];
+        for (int i=0; i<counts.length; i++)
+            counts[i] = metrics.getReceivedCount((byte)i);
+        return counts;
+    }
+
+    public int[] getSentCounts() {
+        int[] counts = new int[metrics.getPacketTypeCount()];
+        for (int i=0; i<counts.length; i++)
+            counts[i] = metrics.getSentCount((byte)i);
+        return counts;
+    }
+
+    public int[] getDropCounts() {
+        int[] counts = new int[metrics.getDropReasonCount()];
+        for (int i=0; i<counts.length; i++)
+            counts[i] = metrics.getDropCount(i);
+        return counts;
+    }
+}
@@ -0,0 +1,63 @@
+//
+// IHipDexMetricsMBean - Management interface of the engine counters
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.jvm;
+
+/**
+ * Counters are the totals since the engine was created, the connection
+ * counts are those in each state at the moment. The counts by packet type
+ * are indexed by type and the drop counts by HipDexPacketFilter reason.
+ */
+public interface IHipDexMetricsMBean {
+    public int getParseFailureCount();
+    public int getRateLimitedCount();
+    public int getCryptoRejectedCount();
+    public int getInvalidPuzzleCount();
+    public int getRetransmissionCount();
+    public int getDroppedPacketCount();
+
+    public int getUnassociatedConnectionCount();
+    public int getI1SentConnectionCount();
+    public int getI2SentConnectionCount();
+    public int getR2SentConnectionCount();
+    public int getEstablishedConnectionCount();
+    public int getClosingConnectionCount();
+    public int getClosedConnectionCount();
+
+    public int getHandshakesCompleted();
+    public int getHandshakesFailed();
+    public long getAverageHandshakeLatency();
+    public int[] getLatencyBucketBounds();
+    public int[] getLatencyBucketValues();
+
+    public int getDataSentCount();
+    public int getDataReceivedCount();
+    public int getDataUnknownSpiCount();
+    public int getDataReplayedCount();
+    public int getDataAuthFailedCount();
+    public int getDataDroppedCount();
+
+    public int[] getReceivedCounts();
+    public int[] getSentCounts();
+    public int[] getDropCounts();
+}
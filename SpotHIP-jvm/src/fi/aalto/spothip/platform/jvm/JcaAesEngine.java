@@ -0,0 +1,101 @@
+//
+// JcaAesEngine - AES-128 through the JCA Cipher
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.jvm;
+
+import fi.aalto.spothip.crypto.*;
+
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Unlike on the SPOT there is an ECB mode, so single blocks need no
+ * chaining tricks.
+ */
+public final class JcaAesEngine extends AesEngine {
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+    private Cipher cbcCipher;
+    private SecretKeySpec keySpec = null;
+
+    public JcaAesEngine() throws HipDexCryptoException {
+        try {
+            encryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+            decryptCipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cbcCipher = Cipher.getInstance("AES/CBC/NoPadding");
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+    }
+
+    protected void setKey(byte[] key, int offset) throws HipDexCryptoException {
+        keySpec = new SecretKeySpec(key, offset, KEY_LENGTH, "AES");
+        try {
+            encryptCipher.init(Cipher.ENCRYPT_MODE, keySpec);
+            decryptCipher.init(Cipher.DECRYPT_MODE, keySpec);
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+    }
+
+    public void clear() {
+        keySpec = null;
+    }
+
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        runBlock(encryptCipher, in, inOffset, out, outOffset);
+    }
+
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        runBlock(decryptCipher, in, inOffset, out, outOffset);
+    }
+
+    private static void runBlock(Cipher cipher, byte[] in, int inOffset, byte[] out, int outOffset) {
+        try {
+            cipher.update(in, inOffset, BLOCK_SIZE, out, outOffset);
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(gse.getMessage());
+        }
+    }
+
+    public void encryptCbc(byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        runCbc(Cipher.ENCRYPT_MODE, iv, ivOffset, in, inOffset, length, out, outOffset);
+    }
+
+    public void decryptCbc(byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        runCbc(Cipher.DECRYPT_MODE, iv, ivOffset, in, inOffset, length, out, outOffset);
+    }
+
+    private void runCbc(int mode, byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        if (length % BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("CBC length must be a multiple of " + BLOCK_SIZE);
+        try {
+            cbcCipher.init(mode, keySpec, new IvParameterSpec(iv, ivOffset, BLOCK_SIZE));
+            cbcCipher.doFinal(in, inOffset, length, out, outOffset);
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(gse.getMessage());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+//
+// JcaPlatform - Standard JCA crypto and java.net for JVM gateways
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.jvm;
+
+import fi.aalto.spothip.crypto.*;
+import fi.aalto.spothip.platform.*;
+import fi.aalto.spothip.transport.*;
+
+import java.math.BigInteger;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.security.*;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.*;
+import java.util.Enumeration;
+import javax.crypto.KeyAgreement;
+
+/**
+ * AES and randomness come from the default providers, which use AES-NI
+ * where the JVM supports it, and that AES is the default backend. The EC
+ * operations can be given their own provider with the spothip.jca.provider
+ * property, set to the class name of the provider. It is needed on JDK 16
+ * and later, where SunEC no longer has the secp160r1, secp192r1 and
+ * secp224r1 curves.
+ *
+ * The IEEE address is taken from the spothip.ieee.address property, in
+ * dotted or plain hex, or built from the MAC of the first network
+ * interface that has one.
+ */
+public class JcaPlatform implements IHipDexPlatform {
+    public static final String PROVIDER_PROPERTY = "spothip.jca.provider";
+    public static final String ADDRESS_PROPERTY = "spothip.ieee.address";
+
+    private static final String[] CURVE_NAMES = { null, "secp160r1", "secp192r1", "secp224r1" };
+
+    private Provider ecProvider;
+    private SecureRandom secureRandom = new SecureRandom();
+    private ECParameterSpec[] curveParameters = new ECParameterSpec[CURVE_NAMES.length];
+    private long ieeeAddress = 0;
+
+    public JcaPlatform() {
+        this(loadProvider(System.getProperty(PROVIDER_PROPERTY)));
+    }
+
+    /** A null provider uses the default ones for EC as well. */
+    public JcaPlatform(Provider provider) {
+        ecProvider = provider;
+        if (ecProvider != null && Security.getProvider(ecProvider.getName()) == null)
+            Security.addProvider(ecProvider);
+    }
+
+    /**
+     * Installs the platform with the EC provider from the properties.
+     */
+    public static JcaPlatform install() {
+        JcaPlatform platform = new JcaPlatform();
+        HipDexPlatform.install(platform);
+        return platform;
+    }
+
+    private static Provider loadProvider(String className) {
+        if (className == null || className.length() == 0)
+            return null;
+        try {
+            return (Provider)Class.forName(className).newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Loading JCA provider " + className + " failed: " + e);
+        }
+    }
+
+    public String getName() {
+        String name = "JCA " + System.getProperty("java.version");
+        if (ecProvider != null)
+            name += " with " + ecProvider.getName();
+        return name;
+    }
+
+    public HipDexKeyPair generateKeyPair(int curve) throws HipDexCryptoException {
+        try {
+            KeyPairGenerator generator = (ecProvider != null) ?
+                    KeyPairGenerator.getInstance("EC", ecProvider) : KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(getCurveName(curve)), secureRandom);
+            KeyPair keyPair = generator.generateKeyPair();
+
+            ECPoint w = ((ECPublicKey)keyPair.getPublic()).getW();
+            int length = HipDexPlatform.getCoordinateLength(curve);
+            byte[] encoded = new byte[1+2*length];
+            encoded[0] = 0x04;
+            writeCoordinate(w.getAffineX(), encoded, 1, length);
+            writeCoordinate(w.getAffineY(), encoded, 1+length, length);
+            return new HipDexKeyPair(curve, encoded, keyPair.getPrivate());
+        } catch (GeneralSecurityException gse) {
+            throw curveException(curve, gse);
+        }
+    }
+
+    // Providers differ in how much they check, so the point is checked here
+    public Object decodePublicKey(int curve, byte[] data, int offset, int length) throws HipDexCryptoException {
+        ECParameterSpec params = getCurveParameters(curve);
+        int coordinateLength = HipDexPlatform.getCoordinateLength(curve);
+        if (length != 1+2*coordinateLength || data[offset] != 0x04)
+            throw new HipDexCryptoException("Public key is not an uncompressed point");
+
+        BigInteger x = readCoordinate(data, offset+1, coordinateLength);
+        BigInteger y = readCoordinate(data, offset+1+coordinateLength, coordinateLength);
+        EllipticCurve ellipticCurve = params.getCurve();
+        BigInteger p = ((ECFieldFp)ellipticCurve.getField()).getP();
+        if (x.compareTo(p) >= 0 || y.compareTo(p) >= 0)
+            throw new HipDexCryptoException("Public key coordinate out of range");
+
+        // The curves have cofactor one, so any point on the curve will do
+        BigInteger left = y.multiply(y).mod(p);
+        BigInteger right = x.multiply(x).add(ellipticCurve.getA()).multiply(x).add(ellipticCurve.getB()).mod(p);
+        if (!left.equals(right))
+            throw new HipDexCryptoException("Public key is not on the curve");
+
+        try {
+            KeyFactory keyFactory = (ecProvider != null) ?
+                    KeyFactory.getInstance("EC", ecProvider) : KeyFactory.getInstance("EC");
+            return keyFactory.generatePublic(new ECPublicKeySpec(new ECPoint(x, y), params));
+        } catch (GeneralSecurityException gse) {
+            throw curveException(curve, gse);
+        }
+    }
+
+    public int generateSecret(HipDexKeyPair ourKeys, Object theirPublicKey, byte[] secret, int offset) throws HipDexCryptoException {
+        int length = HipDexPlatform.getCoordinateLength(ourKeys.getCurve());
+        try {
+            KeyAgreement keyAgreement = (ecProvider != null) ?
+                    KeyAgreement.getInstance("ECDH", ecProvider) : KeyAgreement.getInstance("ECDH");
+            keyAgreement.init((PrivateKey)ourKeys.getPrivateKey());
+            keyAgreement.doPhase((PublicKey)theirPublicKey, true);
+            writeCoordinate(new BigInteger(1, keyAgreement.generateSecret()), secret, offset, length);
+            return length;
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+    }
+
+    public AesEngine createAesEngine() throws HipDexCryptoException {
+        return new JcaAesEngine();
+    }
+
+    public int getDefaultAesBackend() {
+        return AesEngine.BACKEND_PLATFORM;
+    }
+
+    public void generateRandom(byte[] buffer, int offset, int length) {
+        if (offset == 0 && length == buffer.length) {
+            secureRandom.nextBytes(buffer);
+            return;
+        }
+        byte[] random = new byte[length];
+        secureRandom.nextBytes(random);
+        System.arraycopy(random, 0, buffer, offset, length);
+    }
+
+    public synchronized long getIeeeAddress() {
+        if (ieeeAddress == 0)
+            ieeeAddress = findIeeeAddress();
+        return ieeeAddress;
+    }
+
+    public IHipDexTransport createTransport(int port) {
+        return new DatagramTransport(port);
+    }
+
+    private long findIeeeAddress() {
+        String configured = System.getProperty(ADDRESS_PROPERTY);
+        if (configured != null && configured.length() > 0) {
+            StringBuffer digits = new StringBuffer();
+            for (int i=0; i<configured.length(); i++) {
+                char c = configured.charAt(i);
+                if (c != '.' && c != ':' && c != '-')
+                    digits.append(c);
+            }
+            return new BigInteger(digits.toString(), 16).longValue();
+        }
+
+        // EUI-64 from the EUI-48, FFFE goes in the middle
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = interfaces.nextElement();
+                byte[] mac = networkInterface.getHardwareAddress();
+                if (networkInterface.isLoopback() || mac == null || mac.length != 6)
+                    continue;
+
+                long address = 0;
+                for (int i=0; i<3; i++)
+                    address = (address<<8) | (mac[i]&0xff);
+                address = (address<<16) | 0xfffe;
+                for (int i=3; i<6; i++)
+                    address = (address<<8) | (mac[i]&0xff);
+                return address;
+            }
+        } catch (SocketException se) {}
+
+        byte[] random = new byte[8];
+        generateRandom(random, 0, random.length);
+        return new BigInteger(1, random).longValue();
+    }
+
+    private synchronized ECParameterSpec getCurveParameters(int curve) throws HipDexCryptoException {
+        String curveName = getCurveName(curve);
+        if (curveParameters[curve] == null) {
+            try {
+                AlgorithmParameters parameters = (ecProvider != null) ?
+                        AlgorithmParameters.getInstance("EC", ecProvider) : AlgorithmParameters.getInstance("EC");
+                parameters.init(new ECGenParameterSpec(curveName));
+                curveParameters[curve] = parameters.getParameterSpec(ECParameterSpec.class);
+            } catch (GeneralSecurityException gse) {
+                throw curveException(curve, gse);
+            }
+        }
+        return curveParameters[curve];
+    }
+
+    private static String getCurveName(int curve) throws HipDexCryptoException {
+        if (curve <= 0 || curve >= CURVE_NAMES.length)
+            throw new HipDexCryptoException("Unknown curve " + curve);
+        return CURVE_NAMES[curve];
+    }
+
+    private HipDexCryptoException curveException(int curve, GeneralSecurityException gse) {
+        String provider = (ecProvider != null) ? ecProvider.getName() : "the default providers";
+        return new HipDexCryptoException(CURVE_NAMES[curve] + " not usable with " + provider +
+                ", see " + PROVIDER_PROPERTY + ": " + gse.getMessage());
+    }
+
+    private static BigInteger readCoordinate(byte[] data, int offset, int length) {
+        byte[] magnitude = new byte[length];
+        System.arraycopy(data, offset, magnitude, 0, length);
+        return new BigInteger(1, magnitude);
+    }
+
+    // Big endian and left padded with zeroes to the field length
+    private static void writeCoordinate(BigInteger value, byte[] out, int offset, int length) {
+        byte[] bytes = value.toByteArray();
+        int skip = Math.max(0, bytes.length-length);
+        int copy = bytes.length-skip;
+        for (int i=0; i<length-copy; i++)
+            out[offset+i] = 0;
+        System.arraycopy(bytes, skip, out, offset+length-copy, copy);
+    }
+}
@@ -0,0 +1,376 @@
+//
+// HipDexEngineTest - Handshakes between two engines over loopback
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.crypto.HipDexCryptoException;
+import fi.aalto.spothip.platform.HipDexPlatform;
+import fi.aalto.spothip.platform.IHipDexPlatform;
+import fi.aalto.spothip.platform.jvm.JcaPlatform;
+import fi.aalto.spothip.protocol.*;
+import fi.aalto.spothip.transport.*;
+
+import java.io.IOException;
+
+/**
+ * Each test runs a responder and an initiator on their own loopback
+ * network. The transport of either one can corrupt the HIP_MAC_3 of one
+ * packet type or the next data packet on the way out, and keeps the last
+ * data packet it sent so that it can be replayed.
+ */
+public class HipDexEngineTest {
+    private static final int HANDSHAKE_TIMEOUT = 10*1000;
+    private static final int WAIT_TIMEOUT = 5*1000;
+    private static final byte NO_TAMPERING = 0;
+
+    private static final String[] TESTS = {
+        "handshake", "tamperedI2", "tamperedR2", "dataReplay", "close",
+        "sharedCancel", "lastCancel"
+    };
+
+    private TamperingTransport responderTransport;
+    private TamperingTransport initiatorTransport;
+    private HipDexEngine responder;
+    private HipDexEngine initiator;
+
+    public static void main(String[] args) throws Exception {
+        JcaPlatform.install();
+        checkCurveSupport();
+        HipDexEngineTest test = new HipDexEngineTest();
+        for (int i=0; i<TESTS.length; i++) {
+            test.runTest(TESTS[i]);
+            System.out.println("OK " + TESTS[i]);
+        }
+    }
+
+    private void runTest(String name) throws Exception {
+        if (name.equals("tamperedI2"))
+            setUp(NO_TAMPERING, HipPacket.TYPE_I2, true);
+        else if (name.equals("tamperedR2"))
+            setUp(HipPacket.TYPE_R2, NO_TAMPERING, true);
+        else if (name.endsWith("Cancel"))
+            setUp(NO_TAMPERING, NO_TAMPERING, false);
+        else
+            setUp(NO_TAMPERING, NO_TAMPERING, true);
+
+        try {
+            if (name.equals("handshake"))
+                testHandshake();
+            else if (name.equals("tamperedI2"))
+                testTamperedI2();
+            else if (name.equals("tamperedR2"))
+                testTamperedR2();
+            else if (name.equals("dataReplay"))
+                testDataReplay();
+            else if (name.equals("close"))
+                testClose();
+            else if (name.equals("sharedCancel"))
+                testSharedCancel();
+            else if (name.equals("lastCancel"))
+                testLastCancel();
+        } finally {
+            tearDown();
+        }
+    }
+
+    // Without a running responder the I1 goes unanswered until it is started
+    private void setUp(byte responderTamper, byte initiatorTamper, boolean startResponder)
+            throws IOException, HipDexCryptoException {
+        LoopbackNetwork network = new LoopbackNetwork();
+        responderTransport = new TamperingTransport(network, responderTamper);
+        initiatorTransport = new TamperingTransport(network, initiatorTamper);
+        responder = new HipDexEngine(true, responderTransport);
+        initiator = new HipDexEngine(false, initiatorTransport);
+        if (startResponder)
+            responder.start();
+        initiator.start();
+    }
+
+    private void tearDown() throws Exception {
+        initiator.stop();
+        responder.stop();
+    }
+
+    private void testHandshake() throws Exception {
+        establish();
+        check(initiator.getConnectionCount(HipDexConnection.STATE_ESTABLISHED) == 1, "initiator not established");
+
+        // The R2 goes out before the responder changes its state
+        waitUntil(new Condition() {
+            boolean holds() {
+                return getAssociatedCount(responder) == 1;
+            }
+        }, "responder not associated");
+
+        byte[] request = "request".getBytes();
+        check(initiator.sendData(responder.getLocalHit(), request, 0, request.length), "initiator has no SA");
+        HipDexData data = new HipDexData(64);
+        check(responder.receiveData(data, WAIT_TIMEOUT), "responder received no data");
+        check(data.getRemoteHit().equals(initiator.getLocalHit()), "data from the wrong HIT");
+        checkPayload(data, request);
+
+        byte[] response = "response".getBytes();
+        check(responder.sendData(initiator.getLocalHit(), response, 0, response.length), "responder has no SA");
+        check(initiator.receiveData(data, WAIT_TIMEOUT), "initiator received no data");
+        checkPayload(data, response);
+    }
+
+    // The responder may only create state for an I2 that verifies
+    private void testTamperedI2() throws Exception {
+        HipDexConnectFuture future = initiator.connectToHit(responder.getLocalHit(), HANDSHAKE_TIMEOUT, null);
+        waitUntil(new Condition() {
+            boolean holds() {
+                return responder.getMetrics().getHandshakesFailed() > 0;
+            }
+        }, "responder did not reject the I2");
+
+        check(responder.getMetrics().getReceivedCount(HipPacket.TYPE_I2) > 0, "tampered I2 not parsed");
+        check(responder.getMetrics().getSentCount(HipPacket.TYPE_R2) == 0, "R2 sent for a tampered I2");
+        for (int state=HipDexConnection.STATE_UNASSOCIATED; state<=HipDexConnection.STATE_CLOSED; state++)
+            check(responder.getConnectionCount(state) == 0, "responder kept a connection in state " + state);
+        check(future.getState() == HipDexConnectFuture.STATE_PENDING, "handshake completed");
+    }
+
+    private void testTamperedR2() throws Exception {
+        initiator.connectToHit(responder.getLocalHit(), HANDSHAKE_TIMEOUT, null);
+        waitUntil(new Condition() {
+            boolean holds() {
+                return initiator.getMetrics().getReceivedCount(HipPacket.TYPE_R2) > 0;
+            }
+        }, "initiator received no R2");
+
+        // The R2 is handled on the worker after it has been counted
+        Thread.sleep(200);
+        check(initiator.getConnectionCount(HipDexConnection.STATE_I2_SENT) == 1, "initiator left I2_SENT");
+        check(initiator.getConnectionCount(HipDexConnection.STATE_ESTABLISHED) == 0, "initiator established");
+        byte[] payload = "payload".getBytes();
+        check(!initiator.sendData(responder.getLocalHit(), payload, 0, payload.length), "initiator installed an SA");
+    }
+
+    private void testDataReplay() throws Exception {
+        establish();
+        byte[] payload = "payload".getBytes();
+        check(initiator.sendData(responder.getLocalHit(), payload, 0, payload.length), "initiator has no SA");
+        HipDexData data = new HipDexData(64);
+        check(responder.receiveData(data, WAIT_TIMEOUT), "responder received no data");
+        checkPayload(data, payload);
+
+        initiatorTransport.replayLastData();
+        waitUntil(new Condition() {
+            boolean holds() {
+                return responder.getMetrics().getDataReplayedCount() == 1;
+            }
+        }, "replayed packet not rejected");
+
+        initiatorTransport.corruptNextData();
+        check(initiator.sendData(responder.getLocalHit(), payload, 0, payload.length), "initiator has no SA");
+        waitUntil(new Condition() {
+            boolean holds() {
+                return responder.getMetrics().getDataAuthFailedCount() == 1;
+            }
+        }, "corrupted packet not rejected");
+        check(!responder.receiveData(data, 200), "rejected packet delivered");
+        check(responder.getMetrics().getDataReceivedCount() == 1, "rejected packet counted as received");
+    }
+
+    private void testClose() throws Exception {
+        establish();
+        initiator.closeConnection(responder.getLocalHit());
+        waitUntil(new Condition() {
+            boolean holds() {
+                return initiator.getMetrics().getReceivedCount(HipPacket.TYPE_CLOSE_ACK) > 0;
+            }
+        }, "no CLOSE_ACK received");
+
+        check(responder.getMetrics().getReceivedCount(HipPacket.TYPE_CLOSE) > 0, "responder received no CLOSE");
+        check(responder.getMetrics().getSentCount(HipPacket.TYPE_CLOSE_ACK) > 0, "responder sent no CLOSE_ACK");
+        waitUntil(new Condition() {
+            boolean holds() {
+                return initiator.getConnectionCount(HipDexConnection.STATE_CLOSED) == 1;
+            }
+        }, "initiator not closed");
+        check(getAssociatedCount(initiator) == 0, "initiator still associated");
+        check(getAssociatedCount(responder) == 0, "responder still associated");
+        byte[] payload = "payload".getBytes();
+        check(!initiator.sendData(responder.getLocalHit(), payload, 0, payload.length), "SA kept after CLOSE");
+    }
+
+    // Both futures wait for the same handshake, cancelling one of them
+    // must leave it running for the other
+    private void testSharedCancel() throws Exception {
+        HipDexConnectFuture cancelled = initiator.connectToHit(responder.getLocalHit(), HANDSHAKE_TIMEOUT, null);
+        HipDexConnectFuture kept = initiator.connectToHit(responder.getLocalHit(), HANDSHAKE_TIMEOUT, null);
+        waitUntil(new Condition() {
+            boolean holds() {
+                return initiator.getConnectionCount(HipDexConnection.STATE_I1_SENT) == 1;
+            }
+        }, "initiator sent no I1");
+
+        check(cancelled.cancel(), "pending future not cancelled");
+        check(cancelled.getState() == HipDexConnectFuture.STATE_CANCELLED, "cancel state " + cancelled.getState());
+        check(kept.getState() == HipDexConnectFuture.STATE_PENDING, "other future state " + kept.getState());
+        check(initiator.getConnectionCount(HipDexConnection.STATE_I1_SENT) == 1, "shared handshake aborted");
+
+        // The retransmitted I1 reaches the responder
+        responder.start();
+        check(kept.waitFor(0) == HipDexConnectFuture.STATE_ESTABLISHED, "handshake state " + kept.getState());
+        check(cancelled.getState() == HipDexConnectFuture.STATE_CANCELLED, "cancelled future completed");
+    }
+
+    private void testLastCancel() throws Exception {
+        HipDexConnectFuture first = initiator.connectToHit(responder.getLocalHit(), HANDSHAKE_TIMEOUT, null);
+        HipDexConnectFuture second = initiator.connectToHit(responder.getLocalHit(), HANDSHAKE_TIMEOUT, null);
+        waitUntil(new Condition() {
+            boolean holds() {
+                return initiator.getConnectionCount(HipDexConnection.STATE_I1_SENT) == 1;
+            }
+        }, "initiator sent no I1");
+
+        check(first.cancel(), "first future not cancelled");
+        check(second.cancel(), "second future not cancelled");
+        for (int state=HipDexConnection.STATE_UNASSOCIATED; state<=HipDexConnection.STATE_CLOSED; state++)
+            check(initiator.getConnectionCount(state) == 0, "initiator kept a connection in state " + state);
+    }
+
+    private void establish() throws Exception {
+        HipDexConnectFuture future = initiator.connectToHit(responder.getLocalHit(), HANDSHAKE_TIMEOUT, null);
+        check(future.waitFor(0) == HipDexConnectFuture.STATE_ESTABLISHED, "handshake state " + future.getState());
+    }
+
+    private static int getAssociatedCount(HipDexEngine engine) {
+        return engine.getConnectionCount(HipDexConnection.STATE_R2_SENT) +
+                engine.getConnectionCount(HipDexConnection.STATE_ESTABLISHED);
+    }
+
+    private static void checkPayload(HipDexData data, byte[] expected) {
+        check(data.getLength() == expected.length, "payload length " + data.getLength());
+        for (int i=0; i<expected.length; i++)
+            check(data.getData()[i] == expected[i], "payload differs at " + i);
+    }
+
+    // The engine needs secp192r1, which SunEC no longer has on JDK 16 and later
+    static void checkCurveSupport() {
+        String provider = System.getProperty(JcaPlatform.PROVIDER_PROPERTY, "");
+        try {
+            HipDexPlatform.get().generateKeyPair(IHipDexPlatform.CURVE_SECP192R1);
+        } catch (HipDexCryptoException hce) {
+            throw new RuntimeException("secp192r1 is not supported by "
+                    + (provider.length() > 0 ? provider : "the default JCA providers")
+                    + ", run with -Dprovider.jar and -Dprovider.class of an EC provider"
+                    + " such as BouncyCastle: " + hce.getMessage());
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition)
+            throw new RuntimeException(message);
+    }
+
+    private static void waitUntil(Condition condition, String message) throws InterruptedException {
+        long end = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (!condition.holds()) {
+            check(System.currentTimeMillis() < end, message);
+            Thread.sleep(10);
+        }
+    }
+
+    private static abstract class Condition {
+        abstract boolean holds();
+    }
+
+    /**
+     * Swapping two bytes that both go into the high half of a checksum
+     * word changes the HIP_MAC_3 but keeps the checksum valid, so the
+     * packet gets as far as the CMAC check.
+     */
+    private static class TamperingTransport extends LoopbackTransport {
+        private byte tamperType;
+        private byte[] lastData = null;
+        private String lastDataAddress = null;
+        private boolean corruptData = false;
+
+        TamperingTransport(LoopbackNetwork network, byte type) {
+            super(network);
+            tamperType = type;
+        }
+
+        public void send(byte[] data, int offset, int length, String address) throws IOException {
+            if (HipDexSecurityAssociation.isDataPacket(data, offset, length)) {
+                synchronized (this) {
+                    lastData = new byte[length];
+                    System.arraycopy(data, offset, lastData, 0, length);
+                    lastDataAddress = address;
+                    if (corruptData) {
+                        // Last byte of the ICV
+                        corruptData = false;
+                        data = (byte[])lastData.clone();
+                        data[length-1] ^= 1;
+                        offset = 0;
+                    }
+                }
+            } else if (tamperType != NO_TAMPERING && (data[offset+2]&0x7f) == tamperType) {
+                byte[] copy = new byte[length];
+                System.arraycopy(data, offset, copy, 0, length);
+                swapMacBytes(copy);
+                data = copy;
+                offset = 0;
+            }
+            super.send(data, offset, length, address);
+        }
+
+        synchronized void corruptNextData() {
+            corruptData = true;
+        }
+
+        void replayLastData() throws IOException {
+            byte[] packet;
+            String address;
+            synchronized (this) {
+                check(lastData != null, "no data packet sent");
+                packet = (byte[])lastData.clone();
+                address = lastDataAddress;
+            }
+            super.send(packet, 0, packet.length, address);
+        }
+
+        private static void swapMacBytes(byte[] packet) {
+            int offset = 40;
+            while (offset+4 <= packet.length) {
+                int type = ((packet[offset]&0xff)<<8) | (packet[offset+1]&0xff);
+                int length = ((packet[offset+2]&0xff)<<8) | (packet[offset+3]&0xff);
+                if (type == (HipParameter.HIP_MAC_3&0xffff)) {
+                    for (int i=offset+6; i<offset+4+length; i+=2) {
+                        if (packet[i] != packet[offset+4]) {
+                            byte swapped = packet[i];
+                            packet[i] = packet[offset+4];
+                            packet[offset+4] = swapped;
+                            return;
+                        }
+                    }
+                }
+                offset += (4+length+7)/8*8;
+            }
+            throw new RuntimeException("No HIP_MAC_3 to tamper with");
+        }
+    }
+}
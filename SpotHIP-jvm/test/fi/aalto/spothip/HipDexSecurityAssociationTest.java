@@ -0,0 +1,141 @@
+//
+// HipDexSecurityAssociationTest - Data packets and the replay window
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.platform.HipDexPlatform;
+import fi.aalto.spothip.platform.jvm.JcaPlatform;
+import fi.aalto.spothip.protocol.HipHit;
+
+/**
+ * Runs a pair of associations with mirrored keys against each other, the
+ * way the two ends of a handshake set them up.
+ */
+public class HipDexSecurityAssociationTest {
+    private static final int INITIATOR_SPI = 0x00112233;
+    private static final int RESPONDER_SPI = 0x00445566;
+    private static final int REPLAY_WINDOW = 64;
+
+    private HipDexSecurityAssociation initiator;
+    private HipDexSecurityAssociation responder;
+
+    public static void main(String[] args) throws Exception {
+        JcaPlatform.install();
+        HipDexEngineTest.checkCurveSupport();
+        HipDexSecurityAssociationTest test = new HipDexSecurityAssociationTest();
+        test.setUp();
+        test.testRoundTrip();
+        System.out.println("OK roundTrip");
+        test.setUp();
+        test.testReplay();
+        System.out.println("OK replay");
+        test.setUp();
+        test.testTampered();
+        System.out.println("OK tampered");
+    }
+
+    private void setUp() throws Exception {
+        byte[][] keys = new byte[4][16];
+        for (int i=0; i<keys.length; i++)
+            HipDexPlatform.get().generateRandom(keys[i], 0, keys[i].length);
+        HipHit hit = new HipHit(new byte[HipHit.LENGTH]);
+        initiator = new HipDexSecurityAssociation(INITIATOR_SPI, RESPONDER_SPI, hit, keys[0], keys[1], keys[2], keys[3]);
+        responder = new HipDexSecurityAssociation(RESPONDER_SPI, INITIATOR_SPI, hit, keys[2], keys[3], keys[0], keys[1]);
+    }
+
+    // Every payload length up to a few blocks, with and without padding
+    private void testRoundTrip() {
+        byte[] payload = new byte[100];
+        HipDexPlatform.get().generateRandom(payload, 0, payload.length);
+        for (int length=0; length<=payload.length; length++) {
+            byte[] packet = encrypt(initiator, payload, length);
+            check(HipDexSecurityAssociation.isDataPacket(packet, 0, packet.length), "not a data packet");
+            check(HipDexSecurityAssociation.getSpi(packet, 0) == RESPONDER_SPI, "wrong SPI");
+            check(responder.decrypt(packet, 0, packet.length) == length, "wrong length for " + length);
+            for (int i=0; i<length; i++)
+                check(packet[HipDexSecurityAssociation.HEADER_LENGTH+i] == payload[i], "payload differs at " + i);
+        }
+
+        byte[] reply = encrypt(responder, payload, 10);
+        check(initiator.decrypt(reply, 0, reply.length) == 10, "reply not decrypted");
+        check(responder.decrypt(encrypt(responder, payload, 10), 0, reply.length) == HipDexSecurityAssociation.DECRYPT_MALFORMED,
+                "own packet accepted");
+    }
+
+    private void testReplay() {
+        byte[] payload = "payload".getBytes();
+        byte[] first = encrypt(initiator, payload, payload.length);
+        byte[] second = encrypt(initiator, payload, payload.length);
+        byte[][] window = new byte[REPLAY_WINDOW][];
+        for (int i=0; i<window.length; i++)
+            window[i] = encrypt(initiator, payload, payload.length);
+
+        // Out of order within the window is fine, twice is not
+        check(decrypt(responder, second) == payload.length, "second not decrypted");
+        check(decrypt(responder, second) == HipDexSecurityAssociation.DECRYPT_REPLAYED, "second replayed");
+        check(decrypt(responder, first) == payload.length, "first not decrypted out of order");
+        check(decrypt(responder, first) == HipDexSecurityAssociation.DECRYPT_REPLAYED, "first replayed");
+
+        // The oldest sequence number still in the window is 64 behind
+        check(decrypt(responder, window[window.length-1]) == payload.length, "last not decrypted");
+        check(decrypt(responder, window[0]) == payload.length, "oldest in the window not decrypted");
+        encrypt(initiator, payload, payload.length);
+        byte[] newest = encrypt(initiator, payload, payload.length);
+        check(decrypt(responder, newest) == payload.length, "newest not decrypted");
+        check(decrypt(responder, window[1]) == HipDexSecurityAssociation.DECRYPT_REPLAYED, "packet behind the window accepted");
+    }
+
+    // A rejected packet must not move the window either
+    private void testTampered() {
+        byte[] payload = "payload".getBytes();
+        byte[] packet = encrypt(initiator, payload, payload.length);
+        for (int i=0; i<packet.length; i++) {
+            if (i < 4)
+                continue;
+            byte[] tampered = (byte[])packet.clone();
+            tampered[i] ^= 0x40;
+            int result = responder.decrypt(tampered, 0, tampered.length);
+            check(result == HipDexSecurityAssociation.DECRYPT_AUTH_FAILED || result == HipDexSecurityAssociation.DECRYPT_REPLAYED,
+                    "tampered byte " + i + " accepted");
+        }
+        check(decrypt(responder, packet) == payload.length, "untouched packet not decrypted");
+    }
+
+    private static byte[] encrypt(HipDexSecurityAssociation sa, byte[] payload, int length) {
+        int packetLength = sa.encrypt(payload, 0, length);
+        check(packetLength > 0, "encrypt failed");
+        byte[] packet = new byte[packetLength];
+        System.arraycopy(sa.getOutboundBuffer(), 0, packet, 0, packetLength);
+        return packet;
+    }
+
+    // On a copy, decrypting happens in place
+    private static int decrypt(HipDexSecurityAssociation sa, byte[] packet) {
+        byte[] copy = (byte[])packet.clone();
+        return sa.decrypt(copy, 0, copy.length);
+    }
+
+    private static void check(boolean condition, String message) {
+        HipDexEngineTest.check(condition, message);
+    }
+}
@@ -0,0 +1,149 @@
+//
+// HipDexBulkConnect - Paced handshakes with a large number of peers
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.protocol.HipHit;
+
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * Keeps at most a given number of handshakes in progress and starts the
+ * next one as soon as one completes. Consecutive I1 packets are spaced by
+ * a randomized interval so that gateways restarting at the same time do
+ * not hit the radio in lockstep.
+ */
+public class HipDexBulkConnect {
+    private static final int I1_INTERVAL = 100;
+    private static final int I1_JITTER = 100;
+
+    private HipDexEngine engine;
+    private HipDexTimerWheel timerWheel;
+    private HipDexTimeout launchTimeout;
+    private IHipDexConnectListener listener;
+    private IHipDexConnectListener targetListener;
+    private Random random = new Random();
+
+    private Vector targets;
+    private int concurrency;
+    private int nextTarget = 0;
+    private int inFlight = 0;
+    private int established = 0;
+    private int failed = 0;
+    private boolean cancelled = false;
+
+    HipDexBulkConnect(HipDexEngine hipEngine, HipDexTimerWheel wheel, Vector remoteHits,
+            int maximumInFlight, IHipDexConnectListener connectListener) {
+        engine = hipEngine;
+        timerWheel = wheel;
+        listener = connectListener;
+        concurrency = Math.max(1, maximumInFlight);
+
+        targets = new Vector(remoteHits.size());
+        for (int i=0; i<remoteHits.size(); i++)
+            targets.addElement(remoteHits.elementAt(i));
+
+        launchTimeout = new HipDexTimeout(new LaunchTask());
+        targetListener = new TargetListener();
+    }
+
+    void start() {
+        timerWheel.schedule(launchTimeout, 0);
+    }
+
+    public synchronized int getTargetCount() {
+        return targets.size();
+    }
+
+    public synchronized int getEstablishedCount() {
+        return established;
+    }
+
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    public synchronized boolean isDone() {
+        return established+failed == targets.size() || (cancelled && inFlight == 0);
+    }
+
+    // Handshakes already started are left to complete
+    public void cancel() {
+        synchronized (this) {
+            cancelled = true;
+        }
+        timerWheel.cancel(launchTimeout);
+    }
+
+    private synchronized boolean canLaunch() {
+        return !cancelled && inFlight < concurrency && nextTarget < targets.size();
+    }
+
+    private void scheduleLaunch() {
+        if (canLaunch() && !launchTimeout.isScheduled())
+            timerWheel.schedule(launchTimeout, I1_INTERVAL + random.nextInt(I1_JITTER));
+    }
+
+    private void completed(HipHit remoteHit, boolean success) {
+        synchronized (this) {
+            inFlight--;
+            if (success)
+                established++;
+            else
+                failed++;
+        }
+        if (listener != null) {
+            if (success)
+                listener.connectionEstablished(remoteHit);
+            else
+                listener.connectionFailed(remoteHit);
+        }
+        scheduleLaunch();
+    }
+
+    private class LaunchTask implements Runnable {
+        public void run() {
+            HipHit remoteHit;
+            synchronized (HipDexBulkConnect.this) {
+                if (!canLaunch())
+                    return;
+                remoteHit = (HipHit)targets.elementAt(nextTarget++);
+                inFlight++;
+            }
+            if (!engine.startConnection(remoteHit, targetListener))
+                completed(remoteHit, false);
+            scheduleLaunch();
+        }
+    }
+
+    private class TargetListener implements IHipDexConnectListener {
+        public void connectionEstablished(HipHit remoteHit) {
+            completed(remoteHit, true);
+        }
+
+        public void connectionFailed(HipHit remoteHit) {
+            completed(remoteHit, false);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+//
+// HipDexConnectFuture - Pending outcome of a handshake started by connectToHit
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.protocol.HipHit;
+
+/**
+ * Completes once the handshake reaches ESTABLISHED, fails when it times
+ * out, is rejected or the connection is evicted, and also fails if the
+ * caller supplied deadline passes first. Futures for the same HIT share
+ * the handshake, which is only given up when all of them have timed out
+ * or been cancelled. The callback is called on the worker of the peer or
+ * on the timer thread, cancelling does not call it.
+ */
+public class HipDexConnectFuture {
+    public static final int STATE_PENDING     = 0;
+    public static final int STATE_ESTABLISHED = 1;
+    public static final int STATE_FAILED      = 2;
+    public static final int STATE_TIMED_OUT   = 3;
+    public static final int STATE_CANCELLED   = 4;
+
+    private HipDexEngine engine;
+    private HipDexTimerWheel timerWheel;
+    private HipHit remoteHit;
+    private IHipDexConnectListener callback;
+    private IHipDexConnectListener targetListener;
+    private HipDexTimeout deadlineTimeout = null;
+
+    private int state = STATE_PENDING;
+    private HipDexSessionKeys sessionKeys = null;
+
+    HipDexConnectFuture(HipDexEngine hipEngine, HipDexTimerWheel wheel, HipHit hit, IHipDexConnectListener listener) {
+        engine = hipEngine;
+        timerWheel = wheel;
+        remoteHit = hit;
+        callback = listener;
+        targetListener = new TargetListener();
+    }
+
+    IHipDexConnectListener getTargetListener() {
+        return targetListener;
+    }
+
+    void setDeadline(long timeoutMillis) {
+        deadlineTimeout = new HipDexTimeout(new Runnable() {
+            public void run() {
+                if (complete(STATE_TIMED_OUT, null)) {
+                    engine.abortConnection(remoteHit, targetListener);
+                    if (callback != null)
+                        callback.connectionFailed(remoteHit);
+                }
+            }
+        });
+        timerWheel.schedule(deadlineTimeout, timeoutMillis);
+    }
+
+    public HipHit getRemoteHit() {
+        return remoteHit;
+    }
+
+    public synchronized int getState() {
+        return state;
+    }
+
+    public synchronized boolean isDone() {
+        return state != STATE_PENDING;
+    }
+
+    // Null unless the state is STATE_ESTABLISHED
+    public synchronized HipDexSessionKeys getSessionKeys() {
+        return sessionKeys;
+    }
+
+    /**
+     * Waits for the handshake to complete for at most the given time, or
+     * without a limit if it is zero, and returns the state afterwards.
+     */
+    public synchronized int waitFor(long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (state == STATE_PENDING) {
+            if (timeoutMillis == 0) {
+                wait();
+            } else {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                wait(remaining);
+            }
+        }
+        return state;
+    }
+
+    // Stops waiting for the handshake if not yet done, the connection is
+    // freed unless other callers are still waiting for it
+    public boolean cancel() {
+        if (!complete(STATE_CANCELLED, null))
+            return false;
+        engine.abortConnection(remoteHit, targetListener);
+        return true;
+    }
+
+    private boolean complete(int newState, HipDexSessionKeys keys) {
+        synchronized (this) {
+            if (state != STATE_PENDING)
+                return false;
+            state = newState;
+            sessionKeys = keys;
+            notifyAll();
+        }
+        if (deadlineTimeout != null)
+            timerWheel.cancel(deadlineTimeout);
+        return true;
+    }
+
+    private class TargetListener implements IHipDexConnectListener {
+        public void connectionEstablished(HipHit hit) {
+            if (complete(STATE_ESTABLISHED, engine.getSessionKeys(hit)) && callback != null)
+                callback.connectionEstablished(hit);
+        }
+
+        public void connectionFailed(HipHit hit) {
+            if (complete(STATE_FAILED, null) && callback != null)
+                callback.connectionFailed(hit);
+        }
+    }
+}
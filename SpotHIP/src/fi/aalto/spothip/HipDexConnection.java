@@ -24,15 +24,9 @@
 package fi.aalto.spothip;
 
 import fi.aalto.spothip.crypto.*;
+import fi.aalto.spothip.platform.*;
 import fi.aalto.spothip.protocol.*;
 
-import com.sun.spotx.crypto.*;
-import com.sun.spotx.crypto.spec.*;
-import com.sun.spotx.crypto.implementation.*;
-import com.sun.spot.security.*;
-import com.sun.spot.security.implementation.*;
-import com.sun.spot.util.IEEEAddress;
-
 import java.io.IOException;
 
 public class HipDexConnection {
@@ -44,17 +38,28 @@ public class HipDexConnection {
     public static final int STATE_CLOSING       = 0x06;
     public static final int STATE_CLOSED        = 0x07;
 
+    private static final int INITIAL_RETRANSMISSION_TIME = 2*1000;
+    private static final int MAXIMUM_RETRANSMISSION_TIME = 32*1000;
+    private static final int MAXIMUM_RETRANSMISSIONS = 5;
+    private static final int CLOSE_NONCE_LENGTH = 8;
 
-    private ECPrivateKeyImpl privateKey;
-    private ECPublicKeyImpl publicKey;
+    private HipDexKeyPair keyPair;
 
-    private int currentState;
+    private volatile int currentState;
+    private volatile long lastActivityTime;
     private HipDexPuzzleUtil puzzleUtil;
+    private HipDexLruCache secretCache;
+    private HipDexLruCache publicKeyCache;
     private IHipDexConnectionDelegate delegate;
-    private HipPacket lastPacket;
+    private byte[] lastPacketBytes = null;
+    private int lastPacketLength = 0;
+    private int retransmissionCount;
+    private int retransmissionTime;
+    private HipDexTimeout retransmissionTimeout = null;
+    private long handshakeStartTime = 0;
 
-    private byte[] localHit;
-    private byte[] remoteHit;
+    private HipHit localHit;
+    private HipHit remoteHit;
 
     private HipDhGroupList dhGroupList = null;
 
@@ -63,97 +68,219 @@ public class HipDexConnection {
     private byte[] remoteEncryptionKey;
     private byte[] remoteIntegrityKey;
 
+    // CMAC contexts keyed with the integrity keys, used for every packet
+    private AesCmac localMac = null;
+    private AesCmac remoteMac = null;
+
     private byte[] randomI;
     private byte[] keyX;
     private byte[] keyY;
+    private byte[] closeNonce = null;
+    private byte[] acceptedI2 = null;
+    private int inboundSpi = 0;
+    private volatile HipDexSecurityAssociation securityAssociation = null;
+    private boolean cryptoPending = false;
 
-    public HipDexConnection(ECPrivateKeyImpl privKey, ECPublicKeyImpl pubKey,
-            HipDexPuzzleUtil puzzle, IHipDexConnectionDelegate connectionDelegate) {
-        privateKey = privKey;
-        publicKey = pubKey;
+    public HipDexConnection(HipDexKeyPair keys,
+            HipDexPuzzleUtil puzzle, HipDexLruCache secrets, HipDexLruCache publicKeys,
+            IHipDexConnectionDelegate connectionDelegate) {
+        keyPair = keys;
 
-        if (publicKey.getECCurve().getField().getBitSize() == 160) {
-            dhGroupList = new HipDhGroupList(HipDhGroupList.DH_GROUP_ECP160);
-        } else if (publicKey.getECCurve().getField().getBitSize() == 192) {
-            dhGroupList = new HipDhGroupList(HipDhGroupList.DH_GROUP_ECP192);
-        } else if (publicKey.getECCurve().getField().getBitSize() == 224) {
-            dhGroupList = new HipDhGroupList(HipDhGroupList.DH_GROUP_ECP224);
-        }
+        dhGroupList = createDhGroupList(keyPair.getCurve());
 
         currentState = STATE_UNASSOCIATED;
         puzzleUtil = puzzle;
+        secretCache = secrets;
+        publicKeyCache = publicKeys;
         delegate = connectionDelegate;
 
-        localHit = HipDexUtils.publicKeyToHit(publicKey);
+        localHit = HipDexUtils.publicKeyToHit(keyPair.getPublicKey());
+        lastActivityTime = System.currentTimeMillis();
+    }
+
+    static HipDhGroupList createDhGroupList(int curve) {
+        if (curve == IHipDexPlatform.CURVE_SECP160R1) {
+            return new HipDhGroupList(HipDhGroupList.DH_GROUP_ECP160);
+        } else if (curve == IHipDexPlatform.CURVE_SECP192R1) {
+            return new HipDhGroupList(HipDhGroupList.DH_GROUP_ECP192);
+        } else if (curve == IHipDexPlatform.CURVE_SECP224R1) {
+            return new HipDhGroupList(HipDhGroupList.DH_GROUP_ECP224);
+        }
+        return null;
     }
 
     public int getCurrentState() {
         return currentState;
     }
 
+    // Null until the handshake has agreed on SPIs in both directions
+    HipDexSecurityAssociation getSecurityAssociation() {
+        return securityAssociation;
+    }
+
+    private void installSecurityAssociation(int outboundSpi) {
+        try {
+            HipDexSecurityAssociation sa = new HipDexSecurityAssociation(inboundSpi, outboundSpi, remoteHit,
+                    localEncryptionKey, localIntegrityKey, remoteEncryptionKey, remoteIntegrityKey);
+            delegate.installSecurityAssociation(sa);
+            securityAssociation = sa;
+        } catch (HipDexCryptoException hce) {
+            HipDexLog.error("Creating security association failed");
+        }
+    }
+
+    private void releaseSecurityAssociation() {
+        HipDexSecurityAssociation sa = securityAssociation;
+        securityAssociation = null;
+        if (sa != null)
+            sa.clear();
+        if (inboundSpi != 0) {
+            delegate.releaseSpi(inboundSpi);
+            inboundSpi = 0;
+        }
+    }
+
+    HipDexSessionKeys getSessionKeys() {
+        return new HipDexSessionKeys(localEncryptionKey, localIntegrityKey,
+                remoteEncryptionKey, remoteIntegrityKey, keyX, keyY);
+    }
+
+    // The handshake is complete on our side in both of these states
+    public boolean isAssociated() {
+        int state = currentState;
+        return state == STATE_ESTABLISHED || state == STATE_R2_SENT;
+    }
+
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+
+    public HipHit getRemoteHit() {
+        return remoteHit;
+    }
+
+    void setRemoteHit(HipHit hit) {
+        remoteHit = hit;
+    }
+
+    HipDexTimeout getRetransmissionTimeout() {
+        return retransmissionTimeout;
+    }
+
+    void setRetransmissionTimeout(HipDexTimeout timeout) {
+        retransmissionTimeout = timeout;
+    }
+
+    private static boolean isRetransmittingState(int state) {
+        return state == STATE_I1_SENT || state == STATE_I2_SENT || state == STATE_CLOSING;
+    }
+
     private void changeCurrentState(int newState) {
-        // Update the timer state according to currentState and newState
-        if (currentState == STATE_I1_SENT || currentState == STATE_I2_SENT) {
-            if (newState != STATE_I1_SENT && newState != STATE_I2_SENT) {
-                // Stop the retransmission
-                delegate.signalStartRetransmission();
-            }
-        } else {
-            if (newState == STATE_I1_SENT || newState == STATE_I2_SENT) {
-                // Start the retransmission
-                delegate.signalStartRetransmission();
+        boolean wasRetransmitting = isRetransmittingState(currentState);
+        currentState = newState;
+
+        // The handshake is timed from the first I1 or I2 to ESTABLISHED or
+        // R2_SENT, whichever side we are
+        if (newState == STATE_ESTABLISHED || newState == STATE_R2_SENT) {
+            if (handshakeStartTime != 0) {
+                delegate.signalHandshakeCompleted(this, System.currentTimeMillis()-handshakeStartTime);
+                handshakeStartTime = 0;
             }
         }
-        currentState = newState;
+
+        // Update the timer state according to currentState and newState,
+        // every new retransmitting state starts again from the initial backoff
+        if (isRetransmittingState(newState)) {
+            retransmissionCount = 0;
+            retransmissionTime = INITIAL_RETRANSMISSION_TIME;
+            delegate.signalStartRetransmission(this, retransmissionTime);
+        } else if (wasRetransmitting) {
+            delegate.signalStopRetransmission(this);
+        }
     }
 
+    // Encodes straight into the retransmission buffer, which is reused for
+    // every packet of the handshake unless a larger packet comes along
     private void sendPacket(HipPacket packet) throws IOException {
-        lastPacket = packet;
-        delegate.sendPacket(packet);
+        reserveLastPacket(packet.getLength());
+        lastPacketLength = packet.writeTo(lastPacketBytes, 0);
+        lastActivityTime = System.currentTimeMillis();
+        if (HipDexLog.isDebugEnabled())
+            HipDexLog.debug("Sending packet: " + packet);
+        delegate.sendPacket(lastPacketBytes, 0, lastPacketLength);
     }
 
-    public void retransmitLastPacket(boolean forced) {
-        if (!forced) {
-            if (currentState != STATE_I1_SENT && currentState != STATE_I2_SENT)
-                return;
-            if (lastPacket == null)
+    private void reserveLastPacket(int length) {
+        if (lastPacketBytes == null || lastPacketBytes.length < length)
+            lastPacketBytes = new byte[length];
+    }
+
+    // Called when the retransmission timer of this connection expires
+    public void retransmissionTimeout() {
+        if (!isRetransmittingState(currentState) || lastPacketBytes == null)
+            return;
+
+        if (retransmissionCount >= MAXIMUM_RETRANSMISSIONS) {
+            if (currentState == STATE_CLOSING) {
+                // Peer never acknowledged, release the association anyway
+                HipDexLog.info("Close timed out");
+                changeCurrentState(STATE_CLOSED);
+                clearKeys();
                 return;
+            }
+            HipDexLog.info("Handshake timed out");
+            changeCurrentState(STATE_CLOSED);
+            delegate.signalHandshakeFailed(this);
+            return;
         }
-        System.out.println("Retransmitting last packet");
+
+        retransmissionCount++;
+        retransmissionTime = Math.min(2*retransmissionTime, MAXIMUM_RETRANSMISSION_TIME);
+        retransmitLastPacket(false);
+        delegate.signalStartRetransmission(this, retransmissionTime);
+    }
+
+    public void retransmitLastPacket(boolean forced) {
+        if (!forced && !isRetransmittingState(currentState))
+            return;
+        if (lastPacketBytes == null)
+            return;
+        HipDexLog.debug("Retransmitting last packet");
         try {
-            delegate.sendPacket(lastPacket);
+            delegate.sendPacket(lastPacketBytes, 0, lastPacketLength);
+            delegate.signalRetransmitted(this);
         } catch (IOException ioe) {}
     }
 
-    public void handlePacket(HipPacket packet, IEEEAddress sender) throws IOException {
+    public void handlePacket(HipPacket packet, String sender) throws IOException {
+        lastActivityTime = System.currentTimeMillis();
+
+        // Retransmissions of the packet being worked on are ignored until
+        // the crypto completes
+        if (cryptoPending && (packet.getType() == HipPacket.TYPE_R1 || packet.getType() == HipPacket.TYPE_I2))
+            return;
+
         if (currentState == STATE_UNASSOCIATED) {
-            if (packet.getType() == HipPacket.TYPE_I1) {
-                // Validate I1 packet, send R1 packet
-                processPacket((HipPacketI1)packet, sender);
-            } else if(packet.getType() == HipPacket.TYPE_I2) {
-                // Validate I2 packet, send R2 packet
-                if (processPacket((HipPacketI2)packet, sender)) {
-                    changeCurrentState(STATE_R2_SENT);
-                }
+            if (handshakeStartTime == 0)
+                handshakeStartTime = System.currentTimeMillis();
+            // I1 packets are answered by the engine without a connection
+            if (packet.getType() == HipPacket.TYPE_I2) {
+                // Validate I2 packet, R2 is sent once the keys are derived
+                if (!processPacket((HipPacketI2)packet, sender))
+                    discardUncommitted(STATE_UNASSOCIATED);
             }
         } else if (currentState == STATE_I1_SENT) {
             if (packet.getType() == HipPacket.TYPE_R1) {
-                // Validate R1 packet, send I2 packet
-                if (processPacket((HipPacketR1)packet, sender)) {
-                    changeCurrentState(STATE_I2_SENT);
-                }
+                // Validate R1 packet, I2 is sent once the keys are derived
+                processPacket((HipPacketR1)packet, sender);
             } else if(packet.getType() == HipPacket.TYPE_I2) {
-                // Validate I1 packet, send R2 packet
-                if (processPacket((HipPacketI1)packet, sender)) {
-                    changeCurrentState(STATE_R2_SENT);
-                }
+                // Validate I2 packet, R2 is sent once the keys are derived
+                processPacket((HipPacketI2)packet, sender);
             }
         } else if (currentState == STATE_I2_SENT) {
             if (packet.getType() == HipPacket.TYPE_I2) {
-                // Validate I2 packet, send R2 packet
-                if (processPacket((HipPacketI2)packet, sender)) {
-                    changeCurrentState(STATE_R2_SENT);
-                }
+                // Validate I2 packet, R2 is sent once the keys are derived
+                processPacket((HipPacketI2)packet, sender);
             } else if(packet.getType() == HipPacket.TYPE_R2) {
                 // Validate R2 packet, send nothing
                 if (processPacket((HipPacketR2)packet, sender)) {
@@ -162,29 +289,117 @@ public class HipDexConnection {
             }
         } else if (currentState == STATE_R2_SENT) {
             if (packet.getType() == HipPacket.TYPE_I2) {
-                // Validate I2 packet, re-send R2 packet
-                retransmitLastPacket(true);
+                // Re-send R2 packet if our R2 got lost, otherwise start over
+                if (isDuplicateI2((HipPacketI2)packet)) {
+                    retransmitLastPacket(true);
+                } else {
+                    processPacket((HipPacketI2)packet, sender);
+                }
+            } else if (packet.getType() == HipPacket.TYPE_CLOSE) {
+                // Validate CLOSE packet, send CLOSE_ACK
+                if (processPacket((HipPacketClose)packet, sender)) {
+                    changeCurrentState(STATE_CLOSED);
+                }
             }
         } else if (currentState == STATE_ESTABLISHED) {
             if (packet.getType() == HipPacket.TYPE_I2) {
-                // Validate I2 packet, re-send R2 packet
-                if (processPacket((HipPacketI2)packet, sender)) {
-                    changeCurrentState(STATE_R2_SENT);
+                // Re-send R2 packet if our R2 got lost, otherwise start over
+                if (isDuplicateI2((HipPacketI2)packet)) {
+                    retransmitLastPacket(true);
+                } else {
+                    processPacket((HipPacketI2)packet, sender);
+                }
+            } else if (packet.getType() == HipPacket.TYPE_CLOSE) {
+                // Validate CLOSE packet, send CLOSE_ACK
+                if (processPacket((HipPacketClose)packet, sender)) {
+                    changeCurrentState(STATE_CLOSED);
                 }
             }
         } else if (currentState == STATE_CLOSING) {
-            // TODO: not implemented
+            if (packet.getType() == HipPacket.TYPE_CLOSE) {
+                // Both ends are closing, acknowledge theirs
+                if (processPacket((HipPacketClose)packet, sender)) {
+                    changeCurrentState(STATE_CLOSED);
+                }
+            } else if (packet.getType() == HipPacket.TYPE_CLOSE_ACK) {
+                // Validate CLOSE_ACK packet, send nothing
+                if (processPacket((HipPacketCloseAck)packet, sender)) {
+                    changeCurrentState(STATE_CLOSED);
+                    clearKeys();
+                }
+            }
         } else if (currentState == STATE_CLOSED) {
-            // TODO: not implemented
+            if (packet.getType() == HipPacket.TYPE_I1 || packet.getType() == HipPacket.TYPE_I2) {
+                // Peer is starting over before we released the old state
+                changeCurrentState(STATE_UNASSOCIATED);
+                handlePacket(packet, sender);
+            } else if (packet.getType() == HipPacket.TYPE_CLOSE) {
+                // Our CLOSE_ACK was lost, send it again
+                if (lastPacketBytes != null && (lastPacketBytes[2]&0x7f) == HipPacket.TYPE_CLOSE_ACK)
+                    retransmitLastPacket(true);
+            }
+        }
+    }
 
+    // Starts closing an association, the state is kept until CLOSE_ACK
+    // arrives or the CLOSE retransmissions run out
+    public void close() throws IOException {
+        if (!isAssociated())
+            return;
+        releaseSecurityAssociation();
+        sendClose();
+        changeCurrentState(STATE_CLOSING);
+    }
+
+    // Drops the association state without waiting for the peer, an
+    // association still gets a single CLOSE so the peer can release too
+    void release() {
+        if (isAssociated()) {
+            try {
+                sendClose();
+            } catch (IOException ioe) {}
         }
+        changeCurrentState(STATE_CLOSED);
+        clearKeys();
+    }
+
+    private void sendClose() throws IOException {
+        closeNonce = new byte[CLOSE_NONCE_LENGTH];
+        HipDexPlatform.get().generateRandom(closeNonce, 0, closeNonce.length);
+
+        HipPacketClose closePacket = new HipPacketClose(new HipEchoRequestSigned(closeNonce));
+        closePacket.setSenderHit(localHit);
+        closePacket.setReceiverHit(remoteHit);
+        closePacket.setCmacContext(localMac);
+        sendPacket(closePacket);
+    }
+
+    private void clearKeys() {
+        releaseSecurityAssociation();
+        HipDexUtils.zeroize(localEncryptionKey);
+        HipDexUtils.zeroize(localIntegrityKey);
+        HipDexUtils.zeroize(remoteEncryptionKey);
+        HipDexUtils.zeroize(remoteIntegrityKey);
+        HipDexUtils.zeroize(keyX);
+        HipDexUtils.zeroize(keyY);
+        acceptedI2 = null;
+        localEncryptionKey = null;
+        localIntegrityKey = null;
+        remoteEncryptionKey = null;
+        remoteIntegrityKey = null;
+        localMac = null;
+        remoteMac = null;
+        keyX = null;
+        keyY = null;
+        randomI = null;
+        closeNonce = null;
     }
 
     // Host can be null in case of a broadcast
-    public void connectToHost(byte[] destinationHit) throws IOException {
+    public void connectToHost(HipHit destinationHit) throws IOException {
         if (currentState == STATE_UNASSOCIATED) {
-            remoteHit = new byte[destinationHit.length];
-            System.arraycopy(destinationHit, 0, remoteHit, 0, destinationHit.length);
+            remoteHit = destinationHit;
+            handshakeStartTime = System.currentTimeMillis();
 
             // Send the I1 packet
             HipPacketI1 i1Packet = new HipPacketI1(dhGroupList);
@@ -198,71 +413,57 @@ public class HipDexConnection {
         }
     }
 
-    private boolean processPacket(HipPacketI1 packet, IEEEAddress sender) throws IOException {
-        // No validation, just send R1
-        byte[] puzzleI = puzzleUtil.calculateI(packet.getSenderHit(), packet.getReceiverHit(), new byte[0], new byte[0]);
-        HipPuzzle puzzle = new HipPuzzle(puzzleUtil.getComplexity(), puzzleI);
-        HipHostId hostId = new HipHostId(publicKey);
-
-        HipPacketR1 r1Packet = new HipPacketR1(puzzle, hostId, dhGroupList);
-        r1Packet.setSenderHit(localHit);
-        r1Packet.setReceiverHit(packet.getSenderHit());
-        sendPacket(r1Packet);
-        return true;
-    }
-
-    private boolean processPacket(HipPacketR1 packet, IEEEAddress sender) throws IOException {
+    private boolean processPacket(HipPacketR1 packet, String sender) throws IOException {
         // Validate DH_GROUP_LIST
         if (!dhGroupList.equals(packet.getParameter(HipParameter.DH_GROUP_LIST))) {
-            System.out.println("Group DH list not equal");
+            HipDexLog.info("Group DH list not equal");
             return false;
         }
         
-        // Generate I2
+        // Generate I2 once the crypto is done
         HipPuzzle puzzle = (HipPuzzle)packet.getParameter(HipParameter.PUZZLE);
         HipHostId theirHostId = (HipHostId)packet.getParameter(HipParameter.HOST_ID);
         if (puzzle == null || theirHostId == null) {
-            System.out.println("Either puzzle or host id not found");
+            HipDexLog.info("Either puzzle or host id not found");
             return false;
         }
 
-        ECPublicKeyImpl theirPublicKey = theirHostId.getPublicKey();
+        Object theirPublicKey = getPublicKey(theirHostId);
         if (theirPublicKey == null) {
-            System.out.println("received host id not valid");
+            HipDexLog.info("received host id not valid");
             return false;
         }
 
-        if (!generateKeysFromPublicKey(theirPublicKey, true, packet.getSenderHit(), packet.getReceiverHit(), puzzle.getRandomI())) {
-            System.out.println("Generating keys using public key failed");
-            return false;
-        }
-        
-        byte[] encKey = generateSessionKeyAndEncrypt(true, puzzle.getRandomI());
-        if (encKey == null) {
-            System.out.println("Generating and encrypting session key failed");
-            return false;
-        }
+        HandshakeCrypto crypto = new HandshakeCrypto(true, theirPublicKey, packet.getReceiverHit(), packet.getSenderHit(), puzzle.getRandomI());
+        crypto.complexity = puzzle.getComplexity();
+        crypto.hostId = theirHostId.hi;
+        return submitCrypto(crypto);
+    }
 
-        randomI = puzzle.getRandomI();
-        byte[] solutionJ = HipDexPuzzleUtil.solvePuzzle(randomI, localHit, remoteHit, puzzle.getComplexity());
-        HipSolution solution = new HipSolution(puzzle.getComplexity(), randomI, solutionJ);
-        HipHostId ourHostId = new HipHostId(publicKey);
-        HipEncryptedKey encryptedKey = new HipEncryptedKey(encKey);
+    private void finishR1(HandshakeCrypto crypto) throws IOException {
+        HipSolution solution = new HipSolution((byte)crypto.complexity, randomI, crypto.solutionJ);
+        HipHostId ourHostId = new HipHostId(keyPair.getCurve(), keyPair.getPublicKey());
+        HipEncryptedKey encryptedKey = new HipEncryptedKey(crypto.encryptedKey);
 
-        HipPacketI2 i2Packet = new HipPacketI2(solution, ourHostId, encryptedKey);
+        // Offer our SPI for the data plane, the peer answers with its own in R2
+        releaseSecurityAssociation();
+        inboundSpi = delegate.reserveSpi();
+        HipEspInfo espInfo = (inboundSpi != 0) ? new HipEspInfo(0, inboundSpi) : null;
+
+        HipPacketI2 i2Packet = new HipPacketI2(espInfo, solution, ourHostId, encryptedKey);
         i2Packet.setSenderHit(localHit);
         i2Packet.setReceiverHit(remoteHit);
-        i2Packet.recalculateCmac(localIntegrityKey);
+        i2Packet.setCmacContext(localMac);
         sendPacket(i2Packet);
-        return true;
+        changeCurrentState(STATE_I2_SENT);
     }
     
-    private boolean processPacket(HipPacketI2 packet, IEEEAddress sender) throws IOException {
+    private boolean processPacket(HipPacketI2 packet, String sender) throws IOException {
         if (currentState == STATE_I2_SENT) {
             // Check if our HIT or their HIT is larger, if their HIT is larger
             // then just drop the packet, otherwise process and proceed
-            if (HipDexUtils.compareHits(localHit, remoteHit) < 0) {
-                System.out.println("Our HIT is smaller, act as initiator");
+            if (localHit.compareTo(remoteHit) < 0) {
+                HipDexLog.info("Our HIT is smaller, act as initiator");
                 return false;
             }
         }
@@ -272,141 +473,288 @@ public class HipDexConnection {
         HipEncryptedKey theirEncryptedKey = (HipEncryptedKey)packet.getParameter(HipParameter.ENCRYPTED_KEY);
         HipHipMac3 hipMac = (HipHipMac3)packet.getParameter(HipParameter.HIP_MAC_3);
         if (solution == null || hostId == null || theirEncryptedKey == null || hipMac == null) {
-            System.out.println("Either solution, host id, encrypted key or mac not found");
+            HipDexLog.info("Either solution, host id, encrypted key or mac not found");
             return false;
         }
 
-        boolean puzzleVerified = puzzleUtil.verifyPuzzle(solution.getRandomI(), solution.getSolutionJ(), packet.getSenderHit(), packet.getReceiverHit(), new byte[0], new byte[0]);
+        boolean puzzleVerified = puzzleUtil.verifyPuzzle(solution.getRandomI(), solution.getSolutionJ(), solution.getComplexity()&0xff, packet.getSenderHit(), packet.getReceiverHit(), new byte[0], new byte[0]);
         if (!puzzleVerified) {
-            System.out.println("Puzzle didn't verify correctly");
-        }
-        
-        // Update the remoteHit to be correct
-        remoteHit = new byte[packet.getSenderHit().length];
-        System.arraycopy(packet.getSenderHit(), 0, remoteHit, 0, remoteHit.length);
-        
-        ECPublicKeyImpl theirPublicKey = hostId.getPublicKey();
-        if (theirPublicKey == null) {
-            System.out.println("received host id not valid");
+            HipDexLog.info("Puzzle didn't verify correctly");
             return false;
         }
         
-        if (!generateKeysFromPublicKey(theirPublicKey, false, packet.getSenderHit(), packet.getReceiverHit(), solution.getRandomI())) {
-            System.out.println("Generating keys using public key failed");
-            return false;
-        }
-        System.out.println("I2 CMAC verified: " + packet.verifyCmac(remoteIntegrityKey));
-        System.out.println("EncryptedKey decrypted OK: " + decryptSessionKey(false, solution.getRandomI(), theirEncryptedKey.getContents()));
-        
-        byte[] encKey = generateSessionKeyAndEncrypt(false, solution.getRandomI());
-        if (encKey == null) {
-            System.out.println("Generating and encrypting session key failed");
+        Object theirPublicKey = getPublicKey(hostId);
+        if (theirPublicKey == null) {
+            HipDexLog.info("received host id not valid");
             return false;
         }
 
-        System.out.println("Session key X: " + HipDexUtils.byteArrayToString(keyX));
-        System.out.println("Session key Y: " + HipDexUtils.byteArrayToString(keyY));
+        // The packet refers to the receive buffer, which is reused before
+        // the crypto gets to verify its CMAC
+        HandshakeCrypto crypto = new HandshakeCrypto(false, theirPublicKey, packet.getSenderHit(), packet.getReceiverHit(), solution.getRandomI());
+        crypto.packet = packet.copy();
+        crypto.hostId = hostId.hi;
+        crypto.fingerprint = fingerprintI2(solution, theirEncryptedKey);
+        crypto.theirEncryptedKey = theirEncryptedKey.getContents();
+        HipEspInfo espInfo = (HipEspInfo)packet.getParameter(HipParameter.ESP_INFO);
+        if (espInfo != null)
+            crypto.theirSpi = espInfo.getNewSpi();
+        return submitCrypto(crypto);
+    }
 
-        HipEncryptedKey encryptedKey = new HipEncryptedKey(encKey);
-        
-        HipPacketR2 r2Packet = new HipPacketR2(dhGroupList, encryptedKey);
+    private void finishI2(HandshakeCrypto crypto) throws IOException {
+        // Update the remoteHit to be correct
+        remoteHit = crypto.hitI;
+        acceptedI2 = crypto.fingerprint;
+
+        HipEncryptedKey encryptedKey = new HipEncryptedKey(crypto.encryptedKey);
+
+        // Data plane only if the initiator offered an SPI too
+        releaseSecurityAssociation();
+        HipEspInfo espInfo = null;
+        if (crypto.theirSpi != 0) {
+            inboundSpi = delegate.reserveSpi();
+            if (inboundSpi != 0) {
+                espInfo = new HipEspInfo(0, inboundSpi);
+                installSecurityAssociation(crypto.theirSpi);
+            }
+        }
+
+        HipPacketR2 r2Packet = new HipPacketR2(espInfo, dhGroupList, encryptedKey);
         r2Packet.setSenderHit(localHit);
         r2Packet.setReceiverHit(remoteHit);
-        r2Packet.recalculateCmac(localIntegrityKey);
+        r2Packet.setCmacContext(localMac);
         sendPacket(r2Packet);
+        changeCurrentState(STATE_R2_SENT);
+    }
+
+    // Puzzle I and J plus the encrypted key X identify one I2 of the peer
+    private static byte[] fingerprintI2(HipSolution solution, HipEncryptedKey encryptedKey) {
+        byte[] randomI = solution.getRandomI();
+        byte[] solutionJ = solution.getSolutionJ();
+        byte[] keyX = encryptedKey.getContents();
+
+        byte[] fingerprint = new byte[randomI.length+solutionJ.length+keyX.length];
+        System.arraycopy(randomI, 0, fingerprint, 0, randomI.length);
+        System.arraycopy(solutionJ, 0, fingerprint, randomI.length, solutionJ.length);
+        System.arraycopy(keyX, 0, fingerprint, randomI.length+solutionJ.length, keyX.length);
+        return fingerprint;
+    }
+
+    // True for a retransmission of the I2 our last packet, an R2, answered
+    private boolean isDuplicateI2(HipPacketI2 packet) {
+        if (acceptedI2 == null || lastPacketBytes == null || (lastPacketBytes[2]&0x7f) != HipPacket.TYPE_R2)
+            return false;
+
+        HipSolution solution = (HipSolution)packet.getParameter(HipParameter.SOLUTION);
+        HipEncryptedKey encryptedKey = (HipEncryptedKey)packet.getParameter(HipParameter.ENCRYPTED_KEY);
+        if (solution == null || encryptedKey == null)
+            return false;
+
+        byte[] fingerprint = fingerprintI2(solution, encryptedKey);
+        if (fingerprint.length != acceptedI2.length)
+            return false;
+        for (int i=0; i<fingerprint.length; i++) {
+            if (fingerprint[i] != acceptedI2[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean submitCrypto(final HandshakeCrypto crypto) {
+        crypto.startState = currentState;
+        Runnable completion = new Runnable() {
+            public void run() {
+                try {
+                    finishCrypto(crypto);
+                } catch (IOException ioe) {}
+            }
+        };
+        if (!delegate.submitCrypto(this, crypto, !crypto.initiator, completion)) {
+            HipDexLog.info("Crypto queue full, dropping packet");
+            return false;
+        }
+        cryptoPending = true;
         return true;
     }
 
-    private boolean processPacket(HipPacketR2 packet, IEEEAddress sender) throws IOException {
+    // Back on the worker of this connection
+    private void finishCrypto(HandshakeCrypto crypto) throws IOException {
+        cryptoPending = false;
+        if (!crypto.success || currentState != crypto.startState) {
+            HipDexLog.info("Handshake crypto failed or is no longer needed");
+            crypto.clear();
+            if (!crypto.initiator)
+                discardUncommitted(crypto.startState);
+            return;
+        }
+        if (!crypto.initiator && (!crypto.cmacVerified || crypto.theirSessionKey == null)) {
+            HipDexLog.info("I2 CMAC not verified or encrypted key not decrypted");
+            crypto.clear();
+            discardUncommitted(crypto.startState);
+            return;
+        }
+
+        HipDexKeyUtil keys = crypto.keys;
+        if (crypto.initiator) {
+            localEncryptionKey = keys.getInitiatorEncryptionKey();
+            localIntegrityKey = keys.getInitiatorIntegrityKey();
+            remoteEncryptionKey = keys.getResponderEncryptionKey();
+            remoteIntegrityKey = keys.getResponderIntegrityKey();
+            keyX = crypto.ourSessionKey;
+        } else {
+            localEncryptionKey = keys.getResponderEncryptionKey();
+            localIntegrityKey = keys.getResponderIntegrityKey();
+            remoteEncryptionKey = keys.getInitiatorEncryptionKey();
+            remoteIntegrityKey = keys.getInitiatorIntegrityKey();
+            keyY = crypto.ourSessionKey;
+            keyX = crypto.theirSessionKey;
+        }
+        localMac = crypto.localMac;
+        remoteMac = crypto.remoteMac;
+        randomI = crypto.puzzleI;
+
+        if (crypto.initiator)
+            finishR1(crypto);
+        else
+            finishI2(crypto);
+    }
+
+    // The engine creates a connection for an I2 with a valid puzzle, it is
+    // only kept if that I2 also verifies
+    private void discardUncommitted(int startState) {
+        if (startState == STATE_UNASSOCIATED && currentState == STATE_UNASSOCIATED)
+            delegate.signalHandshakeFailed(this);
+    }
+
+    private boolean processPacket(HipPacketR2 packet, String sender) throws IOException {
         // Validate DH_GROUP_LIST
         if (!dhGroupList.equals(packet.getParameter(HipParameter.DH_GROUP_LIST))) {
-            System.out.println("Group DH list not equal");
+            HipDexLog.info("Group DH list not equal");
             return false;
         }
 
         HipEncryptedKey encryptedKey = (HipEncryptedKey)packet.getParameter(HipParameter.ENCRYPTED_KEY);
         HipHipMac3 hipMac = (HipHipMac3)packet.getParameter(HipParameter.HIP_MAC_3);
         if (randomI == null || encryptedKey == null || hipMac == null) {
-            System.out.println("Either randomI, encrypted key or mac not found");
+            HipDexLog.info("Either randomI, encrypted key or mac not found");
             return false;
         }
-        System.out.println("R2 CMAC verified: " + packet.verifyCmac(remoteIntegrityKey));
-        System.out.println("EncryptedKey decrypted OK: " + decryptSessionKey(true, randomI, encryptedKey.getContents()));
+        if (!packet.verifyCmac(remoteMac)) {
+            HipDexLog.info("R2 CMAC not verified");
+            return false;
+        }
+        byte[] theirSessionKey = decryptSessionKey(remoteEncryptionKey, randomI, encryptedKey.getContents());
+        if (theirSessionKey == null) {
+            HipDexLog.info("R2 encrypted key not decrypted");
+            return false;
+        }
+        keyY = theirSessionKey;
+
+        HipEspInfo espInfo = (HipEspInfo)packet.getParameter(HipParameter.ESP_INFO);
+        if (espInfo != null && inboundSpi != 0)
+            installSecurityAssociation(espInfo.getNewSpi());
 
-        System.out.println("Session key X: " + HipDexUtils.byteArrayToString(keyX));
-        System.out.println("Session key Y: " + HipDexUtils.byteArrayToString(keyY));
-        
         // Check the DH_GROUP_LIST, extract keying material,
         // cancel or restart handshake if DH_GROUP_LIST doesn't match
         return true;
     }
 
-    private boolean generateKeysFromPublicKey(ECPublicKeyImpl publicKey, boolean initiator, byte[] senderHit, byte[] receiverHit, byte[] randomI) {
-        ECDHKeyAgreement keyAgreement = new ECDHKeyAgreement();
-        try {
-            byte[] pubKey = new byte[1+2*publicKey.getECCurve().getField().getFFA().getByteSize()];
-            byte[] secret = new byte[(pubKey.length-1)/2];
-            publicKey.getW(pubKey, 0);
-          
-            keyAgreement.init(privateKey);
-            keyAgreement.generateSecret(pubKey, 0, pubKey.length, secret, 0);
-            System.out.println("Generated ECDH secret: " + HipDexUtils.byteArrayToString(secret));
-
-            HipDexKeyUtil keyUtil = new HipDexKeyUtil(16, 16);
-            if (initiator) {
-                keyUtil.generateKeys(receiverHit, senderHit, randomI, secret);
-                localEncryptionKey = keyUtil.getInitiatorEncryptionKey();
-                localIntegrityKey = keyUtil.getInitiatorIntegrityKey();
-                remoteEncryptionKey = keyUtil.getResponderEncryptionKey();
-                remoteIntegrityKey = keyUtil.getResponderIntegrityKey();
-            } else {
-                keyUtil.generateKeys(senderHit, receiverHit, randomI, secret);
-                localEncryptionKey = keyUtil.getResponderEncryptionKey();
-                localIntegrityKey = keyUtil.getResponderIntegrityKey();
-                remoteEncryptionKey = keyUtil.getInitiatorEncryptionKey();
-                remoteIntegrityKey = keyUtil.getInitiatorIntegrityKey();
-            }
-        } catch (Exception e) { return false; }
+    private boolean processPacket(HipPacketClose packet, String sender) throws IOException {
+        HipEchoRequestSigned echoRequest = (HipEchoRequestSigned)packet.getParameter(HipParameter.ECHO_REQUEST_SIGNED);
+        if (echoRequest == null || remoteMac == null) {
+            HipDexLog.info("Either echo request or integrity key not found");
+            return false;
+        }
+        if (!packet.verifyCmac(remoteMac)) {
+            HipDexLog.info("CLOSE CMAC didn't verify correctly");
+            return false;
+        }
+
+        HipPacketCloseAck closeAckPacket = new HipPacketCloseAck(new HipEchoResponseSigned(echoRequest.getOpaque()));
+        closeAckPacket.setSenderHit(localHit);
+        closeAckPacket.setReceiverHit(remoteHit);
+        closeAckPacket.setCmacContext(localMac);
+        sendPacket(closeAckPacket);
+
+        // Only the encoded CLOSE_ACK is kept in case it has to be resent
+        clearKeys();
+        return true;
+    }
+
+    private boolean processPacket(HipPacketCloseAck packet, String sender) throws IOException {
+        HipEchoResponseSigned echoResponse = (HipEchoResponseSigned)packet.getParameter(HipParameter.ECHO_RESPONSE_SIGNED);
+        if (echoResponse == null || closeNonce == null) {
+            HipDexLog.info("Either echo response or close nonce not found");
+            return false;
+        }
+        if (!HipDexUtils.equals(echoResponse.getOpaque(), closeNonce)) {
+            HipDexLog.info("CLOSE_ACK echo doesn't match our CLOSE");
+            return false;
+        }
+        if (!packet.verifyCmac(remoteMac)) {
+            HipDexLog.info("CLOSE_ACK CMAC didn't verify correctly");
+            return false;
+        }
         return true;
     }
 
-    private byte[] generateSessionKeyAndEncrypt(boolean initiator, byte[] randomI) {
+    // Decoding validates the point, only done once for each HI we see
+    private Object getPublicKey(HipHostId hostId) {
+        if (publicKeyCache == null)
+            return decodePublicKey(hostId);
+
+        Object theirPublicKey = publicKeyCache.get(hostId.hi);
+        if (theirPublicKey == null) {
+            theirPublicKey = decodePublicKey(hostId);
+            if (theirPublicKey != null)
+                publicKeyCache.put(hostId.hi, theirPublicKey);
+        }
+        return theirPublicKey;
+    }
+
+    private static Object decodePublicKey(HipHostId hostId) {
         try {
-            byte[] randomArray = new byte[16];
-            SecureRandom secureRandom = SecureRandom.getInstance(SecureRandom.ALG_SECURE_RANDOM);
-            secureRandom.generateData(randomArray, 0, randomArray.length);
-
-            SecretKeySpec keySpec = new SecretKeySpec(localEncryptionKey, 0, localEncryptionKey.length, "AES");
-            IvParameterSpec ivSpec = new IvParameterSpec(randomI, 0, randomI.length);
-            byte[] plaintext = new byte[randomArray.length + randomI.length];
-            System.arraycopy(randomArray, 0, plaintext, 0, randomArray.length);
-            System.arraycopy(randomI, 0, plaintext, randomArray.length, randomI.length);
-
-            Cipher aesCipher = Cipher.getInstance("AES/CBC/NOPADDING");
-            aesCipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-            aesCipher.doFinal(plaintext, 0, plaintext.length, plaintext, 0);
-            if (initiator) {
-                keyX = randomArray;
-            } else {
-                keyY = randomArray;
-            }
-            return plaintext;
+            return HipDexPlatform.get().decodePublicKey(hostId.getCurve(), hostId.hi, 2, hostId.hi.length-2);
+        } catch (HipDexCryptoException hce) {
+            return null;
         }
-        catch (Exception e) {}
-        return null;
     }
 
-    private boolean decryptSessionKey(boolean initiator, byte[] randomI, byte[] encryptedValue) {
+    private static AesCmac createCmac(byte[] integrityKey) throws HipDexCryptoException {
+        AesCmac aesCmac = new AesCmac();
+        aesCmac.init(integrityKey);
+        return aesCmac;
+    }
+
+    private static byte[] computeSecret(HipDexKeyPair keyPair, Object publicKey) throws HipDexCryptoException {
+        byte[] secret = new byte[HipDexPlatform.getCoordinateLength(keyPair.getCurve())];
+        HipDexPlatform.get().generateSecret(keyPair, publicKey, secret, 0);
+        return secret;
+    }
+
+    private static byte[] encryptSessionKey(byte[] encryptionKey, byte[] sessionKey, byte[] randomI) throws HipDexCryptoException {
+        byte[] plaintext = new byte[sessionKey.length + randomI.length];
+        System.arraycopy(sessionKey, 0, plaintext, 0, sessionKey.length);
+        System.arraycopy(randomI, 0, plaintext, sessionKey.length, randomI.length);
+
+        AesEngine aesCipher = AesEngine.getInstance();
+        aesCipher.init(encryptionKey);
+        aesCipher.encryptCbc(randomI, 0, plaintext, 0, plaintext.length, plaintext, 0);
+        aesCipher.clear();
+        return plaintext;
+    }
+
+    // Returns null if the key doesn't decrypt with the randomI inside
+    private static byte[] decryptSessionKey(byte[] encryptionKey, byte[] randomI, byte[] encryptedValue) {
         try {
             byte[] plaintextKey = new byte[16];
 
-            SecretKeySpec keySpec = new SecretKeySpec(remoteEncryptionKey, 0, remoteEncryptionKey.length, "AES");
-            IvParameterSpec ivSpec = new IvParameterSpec(randomI, 0, randomI.length);
-
             byte[] plaintext = new byte[plaintextKey.length + randomI.length];
-            Cipher aesCipher = Cipher.getInstance("AES/CBC/NOPADDING");
-            aesCipher.init(Cipher.DECRYPT_MODE, keySpec, ivSpec);
-            aesCipher.doFinal(encryptedValue, 0, encryptedValue.length, plaintext, 0);
+            AesEngine aesCipher = AesEngine.getInstance();
+            aesCipher.init(encryptionKey);
+            aesCipher.decryptCbc(randomI, 0, encryptedValue, 0, encryptedValue.length, plaintext, 0);
+            aesCipher.clear();
 
             // Check that randomI is correct inside encrypted key
             boolean success = true;
@@ -415,17 +763,117 @@ public class HipDexConnection {
                     success = false;
                 }
             }
-            if (!success) return false;
+            if (!success) return null;
 
             System.arraycopy(plaintext, 0, plaintextKey, 0, plaintextKey.length);
-            if (initiator) {
-                keyY = plaintextKey;
-            } else {
-                keyX = plaintextKey;
-            }
-            return true;
+            return plaintextKey;
         }
         catch (Exception e) {}
-        return false;
+        return null;
+    }
+
+    /**
+     * ECDH, key derivation, puzzle solving and the session key wrapping of
+     * one R1 or I2. Runs on the crypto executor and only touches its own
+     * fields, the connection picks up the results in finishCrypto.
+     */
+    private class HandshakeCrypto implements Runnable {
+        boolean initiator;
+        Object theirPublicKey;
+        byte[] hostId;
+        HipHit hitI;
+        HipHit hitR;
+        byte[] puzzleI;
+        int complexity;
+        HipPacket packet;
+        byte[] theirEncryptedKey;
+        byte[] fingerprint;
+        int theirSpi = 0;
+        int startState;
+
+        boolean success = false;
+        HipDexKeyUtil keys;
+        byte[] ourSessionKey;
+        byte[] encryptedKey;
+        byte[] theirSessionKey;
+        byte[] solutionJ;
+        boolean cmacVerified;
+        AesCmac localMac;
+        AesCmac remoteMac;
+
+        HandshakeCrypto(boolean isInitiator, Object publicKey, HipHit initiatorHit, HipHit responderHit, byte[] randomI) {
+            initiator = isInitiator;
+            theirPublicKey = publicKey;
+            hitI = initiatorHit;
+            hitR = responderHit;
+            puzzleI = randomI;
+        }
+
+        public void run() {
+            try {
+                byte[] secret = getSecret();
+                keys = new HipDexKeyUtil(16, 16);
+                keys.generateKeys(hitI, hitR, puzzleI, secret);
+                HipDexUtils.zeroize(secret);
+                if (initiator) {
+                    localMac = createCmac(keys.getInitiatorIntegrityKey());
+                    remoteMac = createCmac(keys.getResponderIntegrityKey());
+                } else {
+                    localMac = createCmac(keys.getResponderIntegrityKey());
+                    remoteMac = createCmac(keys.getInitiatorIntegrityKey());
+                }
+
+                ourSessionKey = new byte[16];
+                HipDexPlatform.get().generateRandom(ourSessionKey, 0, ourSessionKey.length);
+
+                if (initiator) {
+                    encryptedKey = encryptSessionKey(keys.getInitiatorEncryptionKey(), ourSessionKey, puzzleI);
+                    solutionJ = HipDexPuzzleUtil.solvePuzzle(puzzleI, hitI, hitR, complexity);
+                } else {
+                    // Nothing more is done for an I2 that does not verify
+                    cmacVerified = packet.verifyCmac(remoteMac);
+                    if (cmacVerified) {
+                        theirSessionKey = decryptSessionKey(keys.getInitiatorEncryptionKey(), puzzleI, theirEncryptedKey);
+                        encryptedKey = encryptSessionKey(keys.getResponderEncryptionKey(), ourSessionKey, puzzleI);
+                    }
+                }
+                success = true;
+            } catch (Exception e) {
+                success = false;
+            }
+        }
+
+        // Our key is static, so the secret with the same HOST_ID never changes
+        private byte[] getSecret() throws HipDexCryptoException {
+            if (secretCache == null)
+                return computeSecret(keyPair, theirPublicKey);
+
+            // Copied under the lock as eviction zeroizes the cached array
+            synchronized (secretCache) {
+                byte[] cached = (byte[])secretCache.get(hostId);
+                if (cached != null) {
+                    byte[] secret = new byte[cached.length];
+                    System.arraycopy(cached, 0, secret, 0, cached.length);
+                    return secret;
+                }
+            }
+
+            byte[] secret = computeSecret(keyPair, theirPublicKey);
+            byte[] cached = new byte[secret.length];
+            System.arraycopy(secret, 0, cached, 0, secret.length);
+            secretCache.put(hostId, cached);
+            return secret;
+        }
+
+        void clear() {
+            HipDexUtils.zeroize(ourSessionKey);
+            HipDexUtils.zeroize(theirSessionKey);
+            if (keys != null) {
+                HipDexUtils.zeroize(keys.getInitiatorEncryptionKey());
+                HipDexUtils.zeroize(keys.getInitiatorIntegrityKey());
+                HipDexUtils.zeroize(keys.getResponderEncryptionKey());
+                HipDexUtils.zeroize(keys.getResponderIntegrityKey());
+            }
+        }
     }
 }
@@ -0,0 +1,133 @@
+//
+// HipDexCryptoExecutor - Bounded thread pool for the handshake crypto
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+/**
+ * Runs the ECDH and key derivation of handshakes off the workers. At most
+ * threadCount jobs are in flight and queueLength more are waiting, after
+ * that submit refuses new jobs so that a flood of I2 packets can't queue
+ * up an unbounded amount of crypto work.
+ */
+class HipDexCryptoExecutor implements Runnable {
+    private Thread[] threads;
+    private volatile boolean running = false;
+
+    private Runnable[] queue;
+    private int queueHead = 0;
+    private int queueCount = 0;
+    private int rejectedJobs = 0;
+
+    HipDexCryptoExecutor(int threadCount, int queueLength) {
+        threads = new Thread[Math.max(1, threadCount)];
+        queue = new Runnable[Math.max(1, queueLength)];
+    }
+
+    synchronized void start() {
+        if (running)
+            return;
+
+        running = true;
+        for (int i=0; i<threads.length; i++) {
+            threads[i] = new Thread(this);
+            threads[i].start();
+        }
+    }
+
+    void stop() throws InterruptedException {
+        Thread[] executorThreads;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            executorThreads = new Thread[threads.length];
+            for (int i=0; i<threads.length; i++) {
+                executorThreads[i] = threads[i];
+                threads[i] = null;
+            }
+            for (int i=0; i<queue.length; i++)
+                queue[i] = null;
+            queueCount = 0;
+            notifyAll();
+        }
+        for (int i=0; i<executorThreads.length; i++)
+            executorThreads[i].join();
+    }
+
+    synchronized int getRejectedJobs() {
+        return rejectedJobs;
+    }
+
+    synchronized int getQueuedJobs() {
+        return queueCount;
+    }
+
+    /**
+     * Queues the job, returns false if the executor is stopped or all the
+     * slots of the queue are taken.
+     */
+    synchronized boolean submit(Runnable job) {
+        if (!running || queueCount == queue.length) {
+            rejectedJobs++;
+            return false;
+        }
+
+        queue[(queueHead+queueCount) % queue.length] = job;
+        queueCount++;
+        notify();
+        return true;
+    }
+
+    private synchronized Runnable take() throws InterruptedException {
+        while (running && queueCount == 0) {
+            wait();
+        }
+        if (!running)
+            return null;
+
+        Runnable job = queue[queueHead];
+        queue[queueHead] = null;
+        queueHead = (queueHead+1) % queue.length;
+        queueCount--;
+        return job;
+    }
+
+    public void run() {
+        while (true) {
+            Runnable job;
+            try {
+                job = take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (job == null)
+                return;
+
+            try {
+                job.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+//
+// HipDexData - Application data received from a peer
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.protocol.HipHit;
+
+/**
+ * Reusable holder for HipDexEngine.receiveData, the buffer grows to the
+ * largest payload received into it.
+ */
+public class HipDexData {
+    private HipHit remoteHit = null;
+    private byte[] data;
+    private int length = 0;
+
+    public HipDexData(int capacity) {
+        data = new byte[capacity];
+    }
+
+    public HipHit getRemoteHit() {
+        return remoteHit;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    void set(HipHit sender, byte[] src, int srcLength) {
+        if (data.length < srcLength)
+            data = new byte[srcLength];
+        System.arraycopy(src, 0, data, 0, srcLength);
+        length = srcLength;
+        remoteHit = sender;
+    }
+}
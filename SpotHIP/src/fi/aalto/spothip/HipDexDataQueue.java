@@ -0,0 +1,98 @@
+//
+// HipDexDataQueue - Received application data waiting for the application
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.protocol.HipHit;
+
+/**
+ * Ring of preallocated buffers between the workers and the application.
+ * When the application falls behind the queue fills up and the workers
+ * drop what arrives after that instead of buffering without a limit.
+ */
+class HipDexDataQueue {
+    private byte[][] buffers;
+    private int[] lengths;
+    private HipHit[] senders;
+    private int head = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    HipDexDataQueue(int queueLength, int maximumLength) {
+        buffers = new byte[queueLength][maximumLength];
+        lengths = new int[queueLength];
+        senders = new HipHit[queueLength];
+    }
+
+    synchronized boolean offer(HipHit sender, byte[] data, int offset, int length) {
+        if (closed || count == buffers.length || length > buffers[0].length)
+            return false;
+
+        int tail = (head+count) % buffers.length;
+        System.arraycopy(data, offset, buffers[tail], 0, length);
+        lengths[tail] = length;
+        senders[tail] = sender;
+        count++;
+        notify();
+        return true;
+    }
+
+    /**
+     * Copies the oldest payload into the given HipDexData, waiting for at
+     * most timeoutMillis or forever if it is zero. Returns false on timeout
+     * or if the queue was closed.
+     */
+    synchronized boolean take(HipDexData out, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && count == 0) {
+            if (timeoutMillis == 0) {
+                wait();
+            } else {
+                long remaining = end - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                wait(remaining);
+            }
+        }
+        if (count == 0)
+            return false;
+
+        out.set(senders[head], buffers[head], lengths[head]);
+        senders[head] = null;
+        head = (head+1) % buffers.length;
+        count--;
+        return true;
+    }
+
+    synchronized void open() {
+        closed = false;
+    }
+
+    synchronized void close() {
+        closed = true;
+        count = 0;
+        for (int i=0; i<senders.length; i++)
+            senders[i] = null;
+        notifyAll();
+    }
+}
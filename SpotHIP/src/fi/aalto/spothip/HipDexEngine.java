@@ -23,131 +23,425 @@
 
 package fi.aalto.spothip;
 
+import fi.aalto.spothip.crypto.HipDexCryptoException;
 import fi.aalto.spothip.crypto.HipDexPuzzleUtil;
+import fi.aalto.spothip.platform.HipDexKeyPair;
+import fi.aalto.spothip.platform.HipDexPlatform;
+import fi.aalto.spothip.platform.IHipDexPlatform;
+import fi.aalto.spothip.protocol.HipHit;
+import fi.aalto.spothip.protocol.HipHostId;
 import fi.aalto.spothip.protocol.HipPacket;
+import fi.aalto.spothip.protocol.HipParameter;
+import fi.aalto.spothip.protocol.HipR1Template;
+import fi.aalto.spothip.protocol.HipSolution;
+import fi.aalto.spothip.transport.*;
 
-import com.sun.spot.peripheral.Spot;
-import com.sun.spot.util.IEEEAddress;
-
-import com.sun.spot.security.*;
-import com.sun.spot.security.implementation.*;
-import javax.microedition.io.*;
 import java.io.*;
-
-import java.util.*;
+import java.util.Vector;
 
 public class HipDexEngine implements Runnable, IHipDexConnectionDelegate {
     private static final int PUZZLE_REGENERATION_TIME = 120*1000;
-    private static final int RETRANSMISSION_TIME = 10*1000;
+    private static final int PUZZLE_ADJUST_INTERVAL = 5*1000;
+    private static final int MINIMUM_PUZZLE_COMPLEXITY = 8;
+    private static final int MAXIMUM_PUZZLE_COMPLEXITY = 16;
+
+    // Per source address limits for I1 and I2 packets
+    private static final int HANDSHAKE_RATE = 5;
+    private static final int HANDSHAKE_BURST = 10;
+    private static final int RATE_LIMITED_SOURCES = 64;
+
+    // ECDH secrets of recent peers, see HipDexConnection.HandshakeCrypto
+    private static final int SECRET_CACHE_SIZE = 16;
+    private static final int SECRET_CACHE_TTL = 60*60*1000;
+    private static final int PUBLIC_KEY_CACHE_SIZE = 16;
+
+    // Data plane, SPIs for two associations per connection during rekeying
+    private static final int SECURITY_ASSOCIATIONS = 64;
+    private static final int DATA_QUEUE_LENGTH = 16;
+
+    // Handshakes doing ECDH at once and waiting for it
+    private static final int CRYPTO_THREADS = 1;
+    private static final int CRYPTO_QUEUE_LENGTH = 8;
+    private static final int TIMER_TICK_LENGTH = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
     private static final int HIP_PORT = 123;
+    private static final int RECEIVE_BATCH_SIZE = 8;
+    private static final int WORKER_QUEUE_LENGTH = 32;
+    private static final int RECEIVER_HIT_OFFSET = 24;
+
+    // Connection table bounds, see makeRoom and ConnectionSweepTask
+    private static final int MAXIMUM_CONNECTIONS = 32;
+    private static final int SWEEP_INTERVAL = 5*1000;
+    private static final int HALF_OPEN_IDLE_TIME = 30*1000;
+    private static final int CLOSED_LINGER_TIME = 10*1000;
+    private static final int ASSOCIATION_EVICTION_IDLE_TIME = 60*1000;
+    private static final int ASSOCIATION_IDLE_TIME = 15*60*1000;
 
     private Thread mainThread = null;
     private volatile boolean running = false;
     
-    private Timer puzzleRegenerationTimer = null;
-    private Timer retransmissionTimer = null;
-
-    private HipDexPuzzleUtil puzzleUtil = new HipDexPuzzleUtil();
-    private ECPrivateKeyImpl privateKey = null;
-    private ECPublicKeyImpl publicKey = null;
-    private String ourHitString = null;
+    private HipDexTimerWheel timerWheel = new HipDexTimerWheel(TIMER_TICK_LENGTH, TIMER_WHEEL_SIZE);
+    private HipDexTimeout puzzleRegenerationTimeout = new HipDexTimeout(new PuzzleRegenerationTask());
+    private HipDexTimeout connectionSweepTimeout = new HipDexTimeout(new ConnectionSweepTask());
+
+    private HipDexPuzzleUtil puzzleUtil = new HipDexPuzzleUtil(MINIMUM_PUZZLE_COMPLEXITY);
+    private HipDexPuzzleController puzzleController =
+            new HipDexPuzzleController(puzzleUtil, MINIMUM_PUZZLE_COMPLEXITY, MAXIMUM_PUZZLE_COMPLEXITY);
+    private HipDexTimeout puzzleAdjustTimeout = new HipDexTimeout(new PuzzleAdjustTask());
+    private HipDexRateLimiter handshakeLimiter =
+            new HipDexRateLimiter(HANDSHAKE_RATE, HANDSHAKE_BURST, RATE_LIMITED_SOURCES);
+    private HipDexLruCache publicKeyCache = new HipDexLruCache(PUBLIC_KEY_CACHE_SIZE, 0);
+    private HipDexLruCache secretCache = new HipDexLruCache(SECRET_CACHE_SIZE, SECRET_CACHE_TTL) {
+        protected void evicted(Object value) {
+            HipDexUtils.zeroize((byte[])value);
+        }
+    };
+    private HipDexKeyPair keyPair = null;
+    private HipHit ourHit = null;
+    private HipR1Template r1Template = null;
+    private Object r1TemplateLock = new Object();
 
     private boolean listening;
-    private IEEEAddress localAddress = null;
-    private DatagramConnection incomingConnection = null;
-    private DatagramConnection outgoingConnection = null;
-    private Datagram incomingDatagram = null;
-    private Datagram outgoingDatagram = null;
-
-    private Hashtable connections = new Hashtable();
-    private int connectionsRequiringRetransmission = 0;
+    private IHipDexTransport transport;
+    private HipDexDatagram[] incomingDatagrams = null;
+    private HipDexWorker[] workers;
+    private HipDexCryptoExecutor cryptoExecutor = null;
+    private int cryptoThreads = CRYPTO_THREADS;
+    private int cryptoQueueLength = CRYPTO_QUEUE_LENGTH;
+    private HipDexPacketFilter packetFilter = null;
+    private HipDexMetrics metrics = null;
+
+    private HipHitTable connections = new HipHitTable(MAXIMUM_CONNECTIONS);
+    private HipHitTable locators = new HipHitTable(MAXIMUM_CONNECTIONS);
+    private HipHitTable connectListeners = new HipHitTable();
+    private HipDexSaTable securityAssociations = new HipDexSaTable(SECURITY_ASSOCIATIONS);
+    private HipDexDataQueue dataQueue = null;
+    private int maximumConnections = MAXIMUM_CONNECTIONS;
+
+
+    public HipDexEngine(boolean listen) throws HipDexCryptoException {
+        this(listen, HipDexPlatform.get().createTransport(HIP_PORT));
+    }
 
+    public HipDexEngine(boolean listen, IHipDexTransport hipTransport) throws HipDexCryptoException {
+        this(listen, hipTransport, 1);
+    }
 
-    public HipDexEngine(boolean listen) {
+    public HipDexEngine(boolean listen, IHipDexTransport hipTransport, int workerCount)
+            throws HipDexCryptoException {
         listening = listen;
-
-        try {
-            // Create objects containing the private and public keys of Alice and Bob
-            int curveType = ECKeyImpl.SECP192R1;
-            privateKey = new ECPrivateKeyImpl(curveType);
-            publicKey = new ECPublicKeyImpl(curveType);
-            ECKeyImpl.genKeyPair(publicKey, privateKey);
-            ourHitString = HipDexUtils.byteArrayToString(HipDexUtils.publicKeyToHit(publicKey));
-            System.out.println("Our HIT: " + ourHitString);
-        }
-        catch (InvalidKeyException ike) { ike.printStackTrace(); }
-        catch (NoSuchAlgorithmException nsae) { nsae.printStackTrace(); }
-   }
+        transport = hipTransport;
+        workers = new HipDexWorker[Math.max(1, workerCount)];
+
+        // Without a host identity there is nothing the engine could do
+        keyPair = HipDexPlatform.get().generateKeyPair(IHipDexPlatform.CURVE_SECP192R1);
+        ourHit = HipDexUtils.publicKeyToHit(keyPair.getPublicKey());
+        packetFilter = new HipDexPacketFilter(ourHit);
+        metrics = new HipDexMetrics(packetFilter);
+        if (HipDexLog.isInfoEnabled())
+            HipDexLog.info("Our HIT: " + ourHit);
+    }
 
     public synchronized void start() throws IOException {
         if (running)
             return;
 
-        localAddress = new IEEEAddress(Spot.getInstance().getRadioPolicyManager().getIEEEAddress());
-        incomingConnection = (DatagramConnection) Connector.open("radiogram://:" + HIP_PORT);
-        outgoingConnection = (DatagramConnection) Connector.open("radiogram://broadcast:" + HIP_PORT);
-        incomingDatagram = incomingConnection.newDatagram(incomingConnection.getMaximumLength());
-        outgoingDatagram = outgoingConnection.newDatagram(outgoingConnection.getMaximumLength());
+        transport.open();
+        incomingDatagrams = new HipDexDatagram[RECEIVE_BATCH_SIZE];
+        for (int i=0; i<incomingDatagrams.length; i++) {
+            incomingDatagrams[i] = new HipDexDatagram(transport.getMaximumLength());
+        }
+        for (int i=0; i<workers.length; i++) {
+            workers[i] = new HipDexWorker(this, WORKER_QUEUE_LENGTH, transport.getMaximumLength());
+            workers[i].start();
+        }
+        cryptoExecutor = new HipDexCryptoExecutor(cryptoThreads, cryptoQueueLength);
+        cryptoExecutor.start();
+        if (dataQueue == null)
+            dataQueue = new HipDexDataQueue(DATA_QUEUE_LENGTH, transport.getMaximumLength());
+        dataQueue.open();
 
+        running = true;
         mainThread = new Thread(this);
         mainThread.start();
-        
-        puzzleRegenerationTimer = new Timer();
-        puzzleRegenerationTimer.scheduleAtFixedRate(new PuzzleRegenerationTimerTask(), PUZZLE_REGENERATION_TIME, PUZZLE_REGENERATION_TIME);
 
-        running = true;
+        timerWheel.start();
+        timerWheel.schedule(puzzleRegenerationTimeout, PUZZLE_REGENERATION_TIME);
+        timerWheel.schedule(connectionSweepTimeout, SWEEP_INTERVAL);
+        if (listening)
+            timerWheel.schedule(puzzleAdjustTimeout, PUZZLE_ADJUST_INTERVAL);
+    }
+
+    public void setMaximumConnections(int maximum) {
+        maximumConnections = Math.max(1, maximum);
+    }
+
+    // Takes effect on the next start
+    public synchronized void setCryptoLimits(int maximumInFlight, int maximumQueued) {
+        cryptoThreads = Math.max(1, maximumInFlight);
+        cryptoQueueLength = Math.max(1, maximumQueued);
     }
 
     public void run() {
         try {
             while (running) {
-                incomingDatagram.reset();
-                incomingConnection.receive(incomingDatagram);
-                String senderString = incomingDatagram.getAddress();
-                System.out.println("Received packet from: " + senderString);
-
-                // Parse the received data into a HipPacket
-                HipPacket packet = HipPacket.parse(incomingDatagram.getData(),
-                        incomingDatagram.getOffset(), incomingDatagram.getLength());
-                if (packet == null) {
-                    System.out.println("Parsing the packet failed");
-                    continue;
-                }
-                if (!ourHitString.equals(HipDexUtils.byteArrayToString(packet.getReceiverHit()))) {
-                    System.out.println("Receiver HIT doesn't match our HIT");
-                    continue;
+                int count = transport.receive(incomingDatagrams);
+                for (int i=0; i<count; i++) {
+                    routeDatagram(incomingDatagrams[i]);
                 }
+            }
+        } catch (Exception e) {
+            // Closing the transport interrupts the receive when stopping
+            if (running)
+                e.printStackTrace();
+            return;
+        }
+    }
 
-                System.out.println("Received packet data: " + packet);
-                String senderHitString = HipDexUtils.byteArrayToString(packet.getSenderHit());
+    private void routeDatagram(HipDexDatagram datagram) {
+        byte[] data = datagram.getData();
+        if (HipDexSecurityAssociation.isDataPacket(data, 0, datagram.getLength())) {
+            // Data goes to the worker of the peer the SPI belongs to
+            HipDexSecurityAssociation sa = securityAssociations.get(HipDexSecurityAssociation.getSpi(data, 0));
+            if (sa == null) {
+                metrics.dataUnknownSpi();
+                return;
+            }
+            int index = (sa.getRemoteHit().hashCode() & 0x7fffffff) % workers.length;
+            workers[index].offer(datagram);
+            return;
+        }
+        if (!packetFilter.accept(data, 0, datagram.getLength()))
+            return;
 
-                // Get the connection that should process the packet
-                HipDexConnection conn = (HipDexConnection)connections.get(senderHitString);
-                if (conn == null) {
-                    if (!listening)
-                        continue;
-                    conn = new HipDexConnection(privateKey, publicKey, puzzleUtil, this);
-                    connections.put(senderHitString, conn);
-                }
+        // The sender HIT is at bytes 8..24 of the HIP header
+        int index = (HipHit.hashCode(data, 8) & 0x7fffffff) % workers.length;
+        workers[index].offer(datagram);
+    }
+
+    // Runs the task on the worker owning the given peer HIT
+    private void postToWorker(HipHit hit, Runnable task) {
+        int index = (hit.hashCode() & 0x7fffffff) % workers.length;
+        HipDexWorker worker = workers[index];
+        if (worker != null)
+            worker.post(task);
+    }
+
+    public HipHit getLocalHit() {
+        return ourHit;
+    }
+
+    public HipDexPacketFilter getPacketFilter() {
+        return packetFilter;
+    }
+
+    public HipDexMetrics getMetrics() {
+        return metrics;
+    }
+
+    public HipDexLruCache getSecretCache() {
+        return secretCache;
+    }
+
+    public HipDexLruCache getPublicKeyCache() {
+        return publicKeyCache;
+    }
+
+    public int getConnectionCount(int state) {
+        int count = 0;
+        Vector values = connections.values();
+        for (int i=0; i<values.size(); i++) {
+            if (((HipDexConnection)values.elementAt(i)).getCurrentState() == state)
+                count++;
+        }
+        return count;
+    }
 
-                IEEEAddress sender = new IEEEAddress(senderString);
-                conn.handlePacket(packet, sender);
+    public int getDroppedPacketCount() {
+        int dropped = packetFilter.getDroppedCount();
+        for (int i=0; i<workers.length; i++) {
+            if (workers[i] != null)
+                dropped += workers[i].getDroppedPackets();
+        }
+        return dropped;
+    }
+
+    // Called by the worker threads, packets of one sender HIT are always
+    // handled by the same thread
+    void handleDatagram(HipDexWorker worker, HipDexDatagram datagram) throws IOException {
+        String senderString = datagram.getAddress();
+        if (HipDexSecurityAssociation.isDataPacket(datagram.getData(), 0, datagram.getLength())) {
+            handleData(datagram);
+            return;
+        }
+
+        // Parse the received data into a HipPacket, it is a view over the
+        // worker buffer and is only valid until this call returns
+        HipPacket packet = HipPacket.parse(datagram.getData(), 0, datagram.getLength());
+        if (packet == null) {
+            metrics.parseFailed();
+            if (HipDexLog.isInfoEnabled())
+                HipDexLog.info("Parsing the packet from " + senderString + " failed");
+            return;
+        }
+        metrics.packetReceived(packet.getType());
+        if (HipDexLog.isDebugEnabled())
+            HipDexLog.debug("Received packet of type " + packet.getType() + " from " + senderString + ": " + packet);
+
+        byte type = packet.getType();
+        if (type == HipPacket.TYPE_I1 || type == HipPacket.TYPE_I2) {
+            if (!handshakeLimiter.tryAcquire(senderString == null ? "" : senderString)) {
+                metrics.rateLimited();
+                return;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+
+        // Get the connection that should process the packet. As responder an
+        // I1 is answered without any state, and only an I2 with a valid
+        // puzzle solution can create a connection.
+        HipDexConnection conn = (HipDexConnection)connections.get(packet.getSenderHit());
+        if (type == HipPacket.TYPE_I1 && listening) {
+            if (conn == null || conn.getCurrentState() == HipDexConnection.STATE_CLOSED) {
+                respondToI1(worker, packet, senderString);
+                return;
+            }
+        }
+        if (conn == null) {
+            if (!listening || type != HipPacket.TYPE_I2)
+                return;
+            if (!verifySolution(packet)) {
+                metrics.puzzleFailed();
+                HipDexLog.info("Dropping I2 without a valid puzzle solution");
+                return;
+            }
+            conn = createConnection(packet.getSenderHit());
+            if (conn == null) {
+                HipDexLog.info("Connection table full, dropping packet");
+                return;
+            }
+        }
+
+        learnLocator(packet.getSenderHit(), senderString);
+        if (type == HipPacket.TYPE_I2)
+            puzzleController.puzzleSolved();
+        conn.handlePacket(packet, senderString);
+    }
+
+    private void respondToI1(HipDexWorker worker, HipPacket packet, String address) throws IOException {
+        // The I is computed over the K of the template, which may already
+        // differ from the complexity the puzzle util hands out
+        HipR1Template template = getR1Template();
+        byte[] puzzleI = puzzleUtil.calculateI(template.getComplexity(), packet.getSenderHit(), packet.getReceiverHit(), new byte[0], new byte[0]);
+
+        byte[] buffer = worker.getSendBuffer(template.getLength());
+        int length = template.writeTo(buffer, 0, packet.getSenderHit(), puzzleI);
+        puzzleController.puzzleIssued();
+        sendPacketTo(buffer, 0, length, address);
+    }
+
+    // Cheap next to the ECDH the connection does for the I2 afterwards
+    private boolean verifySolution(HipPacket packet) {
+        HipSolution solution = (HipSolution)packet.getParameter(HipParameter.SOLUTION);
+        if (solution == null)
+            return false;
+        return puzzleUtil.verifyPuzzle(solution.getRandomI(), solution.getSolutionJ(), solution.getComplexity()&0xff,
+                packet.getSenderHit(), packet.getReceiverHit(), new byte[0], new byte[0]);
+    }
+
+    private void learnLocator(HipHit hit, String address) {
+        if (address == null)
             return;
+        if (!address.equals(locators.get(hit)))
+            locators.put(hit, address);
+    }
+
+    // Only I1 is used for discovery, everything else is sent by unicast
+    // once we have heard from the peer, falling back to broadcast otherwise
+    private String getLocator(byte[] data, int offset) {
+        if ((data[offset+2]&0x7f) == HipPacket.TYPE_I1)
+            return null;
+        return (String)locators.get(data, offset+RECEIVER_HIT_OFFSET);
+    }
+
+    private void handleData(HipDexDatagram datagram) {
+        byte[] data = datagram.getData();
+        HipDexSecurityAssociation sa = securityAssociations.get(HipDexSecurityAssociation.getSpi(data, 0));
+        if (sa == null) {
+            metrics.dataUnknownSpi();
+            return;
+        }
+
+        int length = sa.decrypt(data, 0, datagram.getLength());
+        if (length < 0) {
+            metrics.dataRejected(length);
+            return;
+        }
+        metrics.dataReceived();
+        learnLocator(sa.getRemoteHit(), datagram.getAddress());
+        if (!dataQueue.offer(sa.getRemoteHit(), data, HipDexSecurityAssociation.HEADER_LENGTH, length))
+            metrics.dataDropped();
+    }
+
+    /**
+     * Encrypts and sends the data to an established peer on the calling
+     * thread, so a busy transport holds the caller back. Returns false if
+     * there is no security association with the peer.
+     */
+    public boolean sendData(HipHit remoteHit, byte[] data, int offset, int length) throws IOException {
+        HipDexConnection conn = (HipDexConnection)connections.get(remoteHit);
+        HipDexSecurityAssociation sa = (conn != null) ? conn.getSecurityAssociation() : null;
+        String address = (String)locators.get(remoteHit);
+        if (sa == null || address == null)
+            return false;
+        if (length + HipDexSecurityAssociation.getOverhead(length) > transport.getMaximumLength())
+            throw new IOException("Data too long for the transport");
+
+        synchronized (sa) {
+            int packetLength = sa.encrypt(data, offset, length);
+            if (packetLength < 0)
+                return false;
+            transport.send(sa.getOutboundBuffer(), 0, packetLength, address);
         }
+        metrics.dataSent();
+        return true;
+    }
+
+    /**
+     * Waits for data from any peer for at most timeoutMillis, or forever if
+     * it is zero. Data that arrives while the application is not keeping up
+     * is dropped once DATA_QUEUE_LENGTH packets are waiting.
+     */
+    public boolean receiveData(HipDexData data, long timeoutMillis) throws IOException, InterruptedException {
+        HipDexDataQueue queue = dataQueue;
+        if (!running || queue == null)
+            throw new IOException("Instance of HipDex not running");
+        return queue.take(data, timeoutMillis);
+    }
+
+    public int reserveSpi() {
+        return securityAssociations.reserve();
+    }
+
+    public void installSecurityAssociation(HipDexSecurityAssociation association) {
+        securityAssociations.install(association);
+    }
+
+    public void releaseSpi(int spi) {
+        securityAssociations.release(spi);
     }
 
-    public synchronized void sendPacket(HipPacket packet) throws IOException {
-        byte[] packetBytes = packet.getBytes();
-        System.out.println("Requesting to send packet of length " + packetBytes.length + ": " + packet);
-        HipDexUtils.printPacket(packetBytes);
+    public void sendPacket(byte[] data, int offset, int length) throws IOException {
+        sendPacketTo(data, offset, length, getLocator(data, offset));
+    }
+
+    private void sendPacketTo(byte[] data, int offset, int length, String address) throws IOException {
+        if (HipDexLog.isDebugEnabled()) {
+            HipDexLog.debug("Sending packet of length " + length + " to " + address);
+            HipDexUtils.printPacket(data, offset, length);
+        }
 
-        Datagram datagram = outgoingConnection.newDatagram(outgoingConnection.getMaximumLength());
-        datagram.write(packetBytes);
-        outgoingConnection.send(datagram);
-        System.out.println("Packet sent successfully");
+        transport.send(data, offset, length, address);
+        metrics.packetSent((byte)(data[offset+2]&0x7f));
     }
 
     public synchronized void stop() throws IOException, InterruptedException {
@@ -156,67 +450,386 @@ public class HipDexEngine implements Runnable, IHipDexConnectionDelegate {
 
         running = false;
 
-        // First cancel all the timers
-        puzzleRegenerationTimer.cancel();
-        puzzleRegenerationTimer = null;
-        if (retransmissionTimer != null) {
-            retransmissionTimer.cancel();
-            retransmissionTimer = null;
-        }
-
-        // Close connection and join main thread
-        localAddress = null;
-        incomingConnection.close();
-        incomingConnection = null;
-        outgoingConnection.close();
-        outgoingConnection = null;
-        incomingDatagram = null;
-        outgoingDatagram = null;
+        // First stop all the timers
+        timerWheel.stop();
 
+        // Close transport, join main thread and the workers
+        transport.close();
         mainThread.join();
         mainThread = null;
+        incomingDatagrams = null;
+        cryptoExecutor.stop();
+        cryptoExecutor = null;
+        secretCache.clear();
+        dataQueue.close();
+        for (int i=0; i<workers.length; i++) {
+            workers[i].stop();
+            workers[i] = null;
+        }
     }
 
-    public synchronized void connectToHit(byte[] remoteHit) throws IOException {
+    public HipDexConnectFuture connectToHit(byte[] remoteHit) throws IOException {
+        if (remoteHit.length != HipHit.LENGTH)
+            throw new IOException("Remote HIT length is not correct");
+        return connectToHit(new HipHit(remoteHit));
+    }
+
+    public HipDexConnectFuture connectToHit(HipHit remoteHit) throws IOException {
+        return connectToHit(remoteHit, 0, null);
+    }
+
+    /**
+     * Starts a handshake with the HIT, which fails unless it completes in
+     * timeoutMillis. Without a timeout the handshake fails only after its
+     * retransmissions run out. The listener, if any, is called once with
+     * the outcome.
+     */
+    public HipDexConnectFuture connectToHit(HipHit remoteHit, long timeoutMillis, IHipDexConnectListener listener) throws IOException {
         if (!running)
             throw new IOException("Instance of HipDex not running");
-        if (remoteHit.length != 16)
-            throw new IOException("Remote HIT length is not correct");
-        
-        HipDexConnection conn = new HipDexConnection(privateKey, publicKey, puzzleUtil, this);
-        connections.put(HipDexUtils.byteArrayToString(remoteHit), conn);
-        conn.connectToHost(remoteHit);
+
+        HipDexConnectFuture future = new HipDexConnectFuture(this, timerWheel, remoteHit, listener);
+        if (timeoutMillis > 0)
+            future.setDeadline(timeoutMillis);
+        if (!startConnection(remoteHit, future.getTargetListener())) {
+            future.cancel();
+            throw new IOException("Connection table full");
+        }
+        return future;
     }
 
-    public synchronized void signalStartRetransmission() {
-        connectionsRequiringRetransmission++;
-        if (retransmissionTimer == null) {
-            retransmissionTimer = new Timer();
-            retransmissionTimer.scheduleAtFixedRate(new RetransmissionTimerTask(), RETRANSMISSION_TIME, RETRANSMISSION_TIME);
+    /**
+     * Starts handshakes with all the HITs in the vector, with at most the
+     * given number in progress at once. The listener, if any, is told about
+     * the outcome of each of them.
+     */
+    public HipDexBulkConnect connectToHits(Vector remoteHits, int concurrency, IHipDexConnectListener listener) throws IOException {
+        if (!running)
+            throw new IOException("Instance of HipDex not running");
+
+        HipDexBulkConnect bulkConnect = new HipDexBulkConnect(this, timerWheel, remoteHits, concurrency, listener);
+        bulkConnect.start();
+        return bulkConnect;
+    }
+
+    // Sends the I1 from the worker of the peer. Returns false if there was
+    // no room for the connection, otherwise the listener gets called once.
+    boolean startConnection(final HipHit remoteHit, IHipDexConnectListener listener) {
+        if (!running)
+            return false;
+
+        HipDexConnection conn;
+        synchronized (connections) {
+            conn = (HipDexConnection)connections.get(remoteHit);
+            if (conn != null && conn.isAssociated()) {
+                conn = null;
+            } else if (conn != null && conn.getCurrentState() != HipDexConnection.STATE_CLOSED) {
+                // Handshake already in progress, wait for it to complete
+                addConnectListener(remoteHit, listener);
+                return true;
+            } else {
+                if (conn != null)
+                    evictConnection(conn);
+                conn = createConnection(remoteHit);
+                if (conn == null)
+                    return false;
+                addConnectListener(remoteHit, listener);
+            }
         }
+        if (conn == null) {
+            if (listener != null)
+                listener.connectionEstablished(remoteHit);
+            return true;
+        }
+
+        final HipDexConnection newConn = conn;
+        postToWorker(remoteHit, new Runnable() {
+            public void run() {
+                try {
+                    newConn.connectToHost(remoteHit);
+                } catch (IOException ioe) {
+                    notifyConnectListeners(removeConnectListeners(remoteHit), remoteHit, false);
+                }
+            }
+        });
+        return true;
+    }
+
+    // Stops the listener from waiting for the handshake, which is given up
+    // only when no other caller is waiting for it any more
+    void abortConnection(HipHit remoteHit, IHipDexConnectListener listener) {
+        synchronized (connections) {
+            synchronized (connectListeners) {
+                Vector listeners = (Vector)connectListeners.get(remoteHit);
+                if (listeners == null || !listeners.removeElement(listener))
+                    return;
+                if (!listeners.isEmpty())
+                    return;
+                connectListeners.remove(remoteHit);
+            }
+            HipDexConnection conn = (HipDexConnection)connections.get(remoteHit);
+            if (conn != null && !conn.isAssociated())
+                evictConnection(conn);
+        }
+    }
+
+    HipDexSessionKeys getSessionKeys(HipHit remoteHit) {
+        HipDexConnection conn = (HipDexConnection)connections.get(remoteHit);
+        if (conn == null || !conn.isAssociated())
+            return null;
+        return conn.getSessionKeys();
+    }
+
+    private void addConnectListener(HipHit remoteHit, IHipDexConnectListener listener) {
+        if (listener == null)
+            return;
+        synchronized (connectListeners) {
+            Vector listeners = (Vector)connectListeners.get(remoteHit);
+            if (listeners == null) {
+                listeners = new Vector();
+                connectListeners.put(remoteHit, listeners);
+            }
+            listeners.addElement(listener);
+        }
+    }
+
+    private Vector removeConnectListeners(HipHit remoteHit) {
+        return (Vector)connectListeners.remove(remoteHit);
     }
 
-    public synchronized void signalStopRetransmission() {
-        connectionsRequiringRetransmission--;
-        if (connectionsRequiringRetransmission == 0 && retransmissionTimer != null) {
-            retransmissionTimer.cancel();
-            retransmissionTimer = null;
+    private void notifyConnectListeners(Vector listeners, HipHit remoteHit, boolean established) {
+        if (listeners == null)
+            return;
+        for (int i=0; i<listeners.size(); i++) {
+            IHipDexConnectListener listener = (IHipDexConnectListener)listeners.elementAt(i);
+            try {
+                if (established)
+                    listener.connectionEstablished(remoteHit);
+                else
+                    listener.connectionFailed(remoteHit);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
         }
     }
 
-    private class PuzzleRegenerationTimerTask extends TimerTask {
+    public void closeConnection(HipHit remoteHit) {
+        final HipDexConnection conn = (HipDexConnection)connections.get(remoteHit);
+        if (conn == null)
+            return;
+        postToWorker(remoteHit, new Runnable() {
+            public void run() {
+                try {
+                    conn.close();
+                } catch (IOException ioe) {}
+            }
+        });
+    }
+
+    private HipDexConnection createConnection(HipHit remoteHit) {
+        synchronized (connections) {
+            if (!makeRoom())
+                return null;
+            HipDexConnection conn = new HipDexConnection(keyPair, puzzleUtil, secretCache, publicKeyCache, this);
+            conn.setRemoteHit(remoteHit);
+            connections.put(remoteHit, conn);
+            return conn;
+        }
+    }
+
+    // Evicts the least recently active connection that has not completed
+    // the handshake. Associations are only evicted once they have been idle
+    // for a while, so a flood of I1 packets cannot push them out.
+    private boolean makeRoom() {
+        if (connections.size() < maximumConnections)
+            return true;
+
+        long now = System.currentTimeMillis();
+        HipDexConnection victim = null;
+        Vector values = connections.values();
+        for (int i=0; i<values.size(); i++) {
+            HipDexConnection conn = (HipDexConnection)values.elementAt(i);
+            boolean associated = conn.isAssociated();
+            if (associated && now-conn.getLastActivityTime() < ASSOCIATION_EVICTION_IDLE_TIME)
+                continue;
+
+            if (victim == null) {
+                victim = conn;
+            } else if (victim.isAssociated() != associated) {
+                if (victim.isAssociated())
+                    victim = conn;
+            } else if (conn.getLastActivityTime() < victim.getLastActivityTime()) {
+                victim = conn;
+            }
+        }
+        if (victim == null)
+            return false;
+        evictConnection(victim);
+        return true;
+    }
+
+    // Removes the connection from the table right away and releases its
+    // state on the worker owning it, called with the connections lock held
+    private void evictConnection(final HipDexConnection conn) {
+        final HipHit remoteHit = conn.getRemoteHit();
+        Vector removedListeners = null;
+        if (connections.get(remoteHit) == conn) {
+            connections.remove(remoteHit);
+            removedListeners = removeConnectListeners(remoteHit);
+        }
+        final Vector listeners = removedListeners;
+        postToWorker(remoteHit, new Runnable() {
+            public void run() {
+                conn.release();
+                if (connections.get(remoteHit) == null)
+                    locators.remove(remoteHit);
+                notifyConnectListeners(listeners, remoteHit, false);
+            }
+        });
+    }
+
+    /**
+     * Runs the job on the crypto executor and the completion afterwards on
+     * the worker of the connection. Returns false if the executor is busy.
+     * Only the work done as responder is load the puzzle can push back on,
+     * so only that is counted towards the complexity.
+     */
+    public boolean submitCrypto(HipDexConnection connection, final Runnable job, final boolean responder,
+            final Runnable completion) {
+        HipDexCryptoExecutor executor = cryptoExecutor;
+        final HipHit remoteHit = connection.getRemoteHit();
+        if (executor == null || remoteHit == null)
+            return false;
+
+        Runnable timedJob = new Runnable() {
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                try {
+                    job.run();
+                } finally {
+                    if (responder)
+                        puzzleController.addCryptoTime(System.currentTimeMillis()-startTime);
+                    postToWorker(remoteHit, completion);
+                }
+            }
+        };
+        if (!executor.submit(timedJob)) {
+            metrics.cryptoRejected();
+            return false;
+        }
+        return true;
+    }
+
+    public void signalStartRetransmission(HipDexConnection connection, int delay) {
+        HipDexTimeout timeout = connection.getRetransmissionTimeout();
+        if (timeout == null) {
+            timeout = new HipDexTimeout(new RetransmissionTask(connection));
+            connection.setRetransmissionTimeout(timeout);
+        }
+        timerWheel.schedule(timeout, delay);
+    }
+
+    public void signalStopRetransmission(HipDexConnection connection) {
+        HipDexTimeout timeout = connection.getRetransmissionTimeout();
+        if (timeout != null)
+            timerWheel.cancel(timeout);
+    }
+
+    public void signalRetransmitted(HipDexConnection connection) {
+        metrics.retransmitted();
+    }
+
+    public void signalHandshakeCompleted(HipDexConnection connection, long duration) {
+        metrics.handshakeCompleted(duration);
+        HipHit remoteHit = connection.getRemoteHit();
+        if (remoteHit != null && connections.get(remoteHit) == connection)
+            notifyConnectListeners(removeConnectListeners(remoteHit), remoteHit, true);
+    }
+
+    public void signalHandshakeFailed(HipDexConnection connection) {
+        metrics.handshakeFailed();
+        HipHit remoteHit = connection.getRemoteHit();
+        Vector listeners = null;
+        synchronized (connections) {
+            if (remoteHit != null && connections.get(remoteHit) == connection) {
+                connections.remove(remoteHit);
+                locators.remove(remoteHit);
+                listeners = removeConnectListeners(remoteHit);
+            }
+        }
+        notifyConnectListeners(listeners, remoteHit, false);
+    }
+
+    // Rebuilt whenever the puzzle complexity has changed since the last R1
+    private HipR1Template getR1Template() {
+        int complexity = puzzleUtil.getComplexity();
+        synchronized (r1TemplateLock) {
+            if (r1Template == null || r1Template.getComplexity() != complexity) {
+                r1Template = new HipR1Template(ourHit, complexity, HipDexPuzzleUtil.RAND_LENGTH,
+                        new HipHostId(keyPair.getCurve(), keyPair.getPublicKey()),
+                        HipDexConnection.createDhGroupList(keyPair.getCurve()));
+            }
+            return r1Template;
+        }
+    }
+
+    private class PuzzleRegenerationTask implements Runnable {
         public void run() {
             puzzleUtil.regenerateRandom();
+            timerWheel.schedule(puzzleRegenerationTimeout, PUZZLE_REGENERATION_TIME);
+        }
+    }
+
+    private class PuzzleAdjustTask implements Runnable {
+        public void run() {
+            int complexity = puzzleController.adjust();
+            if (HipDexLog.isDebugEnabled())
+                HipDexLog.debug("Puzzle complexity is " + complexity);
+            timerWheel.schedule(puzzleAdjustTimeout, PUZZLE_ADJUST_INTERVAL);
         }
     }
 
-    private class RetransmissionTimerTask extends TimerTask {
+    private class ConnectionSweepTask implements Runnable {
         public void run() {
-            Enumeration conns = connections.elements();
-            while (conns.hasMoreElements()) {
-                HipDexConnection conn = (HipDexConnection)conns.nextElement();
-                conn.retransmitLastPacket(false);
+            long now = System.currentTimeMillis();
+            synchronized (connections) {
+                Vector values = connections.values();
+                for (int i=0; i<values.size(); i++) {
+                    HipDexConnection conn = (HipDexConnection)values.elementAt(i);
+                    long idle = now-conn.getLastActivityTime();
+                    int state = conn.getCurrentState();
+
+                    // Retransmitting states time out by themselves
+                    if (state == HipDexConnection.STATE_CLOSED && idle > CLOSED_LINGER_TIME) {
+                        evictConnection(conn);
+                    } else if (state == HipDexConnection.STATE_UNASSOCIATED && idle > HALF_OPEN_IDLE_TIME) {
+                        evictConnection(conn);
+                    } else if (conn.isAssociated() && idle > ASSOCIATION_IDLE_TIME) {
+                        closeConnection(conn.getRemoteHit());
+                    }
+                }
             }
+            timerWheel.schedule(connectionSweepTimeout, SWEEP_INTERVAL);
+        }
+    }
+
+    // Expires on the timer thread and hands the retransmission over to the
+    // worker of the connection, so that the connection stays single-threaded
+    private class RetransmissionTask implements Runnable {
+        private HipDexConnection connection;
+        private Runnable workerTask;
+
+        RetransmissionTask(HipDexConnection conn) {
+            connection = conn;
+            workerTask = new Runnable() {
+                public void run() {
+                    connection.retransmissionTimeout();
+                }
+            };
+        }
+
+        public void run() {
+            postToWorker(connection.getRemoteHit(), workerTask);
         }
     }
 }
@@ -0,0 +1,76 @@
+//
+// HipDexLog - Level checked console logging
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+/**
+ * Console output on the SPOT is slow, so callers building a message
+ * should check the level first and skip formatting it when disabled.
+ * Key material must never be passed here, whatever the level.
+ */
+public final class HipDexLog {
+    public static final int LEVEL_NONE  = 0;
+    public static final int LEVEL_ERROR = 1;
+    public static final int LEVEL_INFO  = 2;
+    public static final int LEVEL_DEBUG = 3;
+
+    private static int level = LEVEL_ERROR;
+
+    private HipDexLog() {
+    }
+
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static boolean isErrorEnabled() {
+        return level >= LEVEL_ERROR;
+    }
+
+    public static boolean isInfoEnabled() {
+        return level >= LEVEL_INFO;
+    }
+
+    public static boolean isDebugEnabled() {
+        return level >= LEVEL_DEBUG;
+    }
+
+    public static void error(String message) {
+        if (level >= LEVEL_ERROR)
+            System.out.println(message);
+    }
+
+    public static void info(String message) {
+        if (level >= LEVEL_INFO)
+            System.out.println(message);
+    }
+
+    public static void debug(String message) {
+        if (level >= LEVEL_DEBUG)
+            System.out.println(message);
+    }
+}
@@ -0,0 +1,188 @@
+//
+// HipDexLruCache - Bounded cache with expiry keyed by byte arrays
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import java.util.Hashtable;
+
+/**
+ * Least recently used entries are evicted when the cache is full and
+ * entries older than the time to live are dropped on lookup, a time to
+ * live of zero keeps entries until they are evicted. Subclasses
+ * can override evicted to clean up values that leave the cache, it is
+ * called with the cache locked.
+ */
+public class HipDexLruCache {
+    private int capacity;
+    private long timeToLive;
+
+    private Hashtable entries = new Hashtable();
+    private Entry head = null;
+    private Entry tail = null;
+    private Key probe = new Key(null);
+
+    private int hits = 0;
+    private int misses = 0;
+
+    public HipDexLruCache(int maximumEntries, long timeToLiveMillis) {
+        capacity = Math.max(1, maximumEntries);
+        timeToLive = timeToLiveMillis;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    public synchronized Object get(byte[] key) {
+        probe.data = key;
+        Entry entry = (Entry)entries.get(probe);
+        probe.data = null;
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (timeToLive > 0 && System.currentTimeMillis()-entry.created > timeToLive) {
+            remove(entry);
+            misses++;
+            return null;
+        }
+
+        unlink(entry);
+        linkFirst(entry);
+        hits++;
+        return entry.value;
+    }
+
+    // The key is copied, the value is owned by the cache afterwards
+    public synchronized void put(byte[] key, Object value) {
+        byte[] keyCopy = new byte[key.length];
+        System.arraycopy(key, 0, keyCopy, 0, key.length);
+        Key entryKey = new Key(keyCopy);
+
+        Entry old = (Entry)entries.get(entryKey);
+        if (old != null)
+            remove(old);
+        while (entries.size() >= capacity && tail != null)
+            remove(tail);
+
+        Entry entry = new Entry(entryKey, value);
+        entries.put(entryKey, entry);
+        linkFirst(entry);
+    }
+
+    public synchronized void remove(byte[] key) {
+        probe.data = key;
+        Entry entry = (Entry)entries.get(probe);
+        probe.data = null;
+        if (entry != null)
+            remove(entry);
+    }
+
+    public synchronized void clear() {
+        while (tail != null)
+            remove(tail);
+    }
+
+    protected void evicted(Object value) {
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.key);
+        unlink(entry);
+        evicted(entry.value);
+        entry.value = null;
+    }
+
+    private void linkFirst(Entry entry) {
+        entry.prev = null;
+        entry.next = head;
+        if (head != null)
+            head.prev = entry;
+        head = entry;
+        if (tail == null)
+            tail = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.prev != null)
+            entry.prev.next = entry.next;
+        else
+            head = entry.next;
+        if (entry.next != null)
+            entry.next.prev = entry.prev;
+        else
+            tail = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+    }
+
+    private static class Key {
+        byte[] data;
+
+        Key(byte[] keyData) {
+            data = keyData;
+        }
+
+        public int hashCode() {
+            int hash = 0;
+            for (int i=0; i<data.length; i++)
+                hash = 31*hash + data[i];
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            byte[] other = ((Key)o).data;
+            if (other.length != data.length)
+                return false;
+            for (int i=0; i<data.length; i++) {
+                if (other[i] != data[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Entry {
+        Key key;
+        Object value;
+        long created;
+        Entry prev = null;
+        Entry next = null;
+
+        Entry(Key entryKey, Object entryValue) {
+            key = entryKey;
+            value = entryValue;
+            created = System.currentTimeMillis();
+        }
+    }
+}
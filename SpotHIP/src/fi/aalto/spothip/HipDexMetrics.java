@@ -0,0 +1,227 @@
+//
+// HipDexMetrics - Counters and latency histogram of an engine
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+/**
+ * Counts are kept per HIP packet type, the drop reasons are read from the
+ * packet filter. All methods are safe to call from any thread.
+ */
+public class HipDexMetrics {
+    private static final int PACKET_TYPE_COUNT = 0x80;
+
+    // Upper bounds of the handshake latency buckets in milliseconds, the
+    // last bucket holds everything slower than the last bound
+    private static final int[] LATENCY_BOUNDS = {
+        50, 100, 250, 500, 1000, 2000, 4000, 8000, 16000, 32000
+    };
+
+    private HipDexPacketFilter packetFilter;
+
+    private int[] receivedPackets = new int[PACKET_TYPE_COUNT];
+    private int[] sentPackets = new int[PACKET_TYPE_COUNT];
+    private int parseFailures = 0;
+    private int rateLimited = 0;
+    private int invalidPuzzles = 0;
+    private int cryptoRejected = 0;
+    private int retransmissions = 0;
+    private int handshakesCompleted = 0;
+    private int handshakesFailed = 0;
+
+    // Data plane, see HipDexSecurityAssociation
+    private int dataSent = 0;
+    private int dataReceived = 0;
+    private int dataUnknownSpi = 0;
+    private int dataReplayed = 0;
+    private int dataAuthFailed = 0;
+    private int dataDropped = 0;
+
+    private int[] latencyBuckets = new int[LATENCY_BOUNDS.length+1];
+    private long latencySum = 0;
+
+    public HipDexMetrics(HipDexPacketFilter filter) {
+        packetFilter = filter;
+    }
+
+    synchronized void packetReceived(byte type) {
+        receivedPackets[type&0x7f]++;
+    }
+
+    synchronized void packetSent(byte type) {
+        sentPackets[type&0x7f]++;
+    }
+
+    synchronized void parseFailed() {
+        parseFailures++;
+    }
+
+    synchronized void rateLimited() {
+        rateLimited++;
+    }
+
+    synchronized void cryptoRejected() {
+        cryptoRejected++;
+    }
+
+    synchronized void puzzleFailed() {
+        invalidPuzzles++;
+    }
+
+    synchronized void retransmitted() {
+        retransmissions++;
+    }
+
+    synchronized void handshakeFailed() {
+        handshakesFailed++;
+    }
+
+    synchronized void handshakeCompleted(long millis) {
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && millis > LATENCY_BOUNDS[bucket])
+            bucket++;
+        latencyBuckets[bucket]++;
+        latencySum += millis;
+        handshakesCompleted++;
+    }
+
+    synchronized void dataSent() {
+        dataSent++;
+    }
+
+    synchronized void dataReceived() {
+        dataReceived++;
+    }
+
+    synchronized void dataUnknownSpi() {
+        dataUnknownSpi++;
+    }
+
+    // One of the HipDexSecurityAssociation.DECRYPT_ errors
+    synchronized void dataRejected(int error) {
+        if (error == HipDexSecurityAssociation.DECRYPT_REPLAYED)
+            dataReplayed++;
+        else
+            dataAuthFailed++;
+    }
+
+    synchronized void dataDropped() {
+        dataDropped++;
+    }
+
+    public synchronized int getReceivedCount(byte type) {
+        return receivedPackets[type&0x7f];
+    }
+
+    public synchronized int getSentCount(byte type) {
+        return sentPackets[type&0x7f];
+    }
+
+    public int getDropCount(int reason) {
+        return packetFilter.getCount(reason);
+    }
+
+    // Packet types are 7 bits, the counts above are indexed by type
+    public int getPacketTypeCount() {
+        return PACKET_TYPE_COUNT;
+    }
+
+    // Includes HipDexPacketFilter.ACCEPTED as the first reason
+    public int getDropReasonCount() {
+        return HipDexPacketFilter.REASON_COUNT;
+    }
+
+    public synchronized int getParseFailureCount() {
+        return parseFailures;
+    }
+
+    public synchronized int getRateLimitedCount() {
+        return rateLimited;
+    }
+
+    public synchronized int getCryptoRejectedCount() {
+        return cryptoRejected;
+    }
+
+    public synchronized int getInvalidPuzzleCount() {
+        return invalidPuzzles;
+    }
+
+    public synchronized int getRetransmissionCount() {
+        return retransmissions;
+    }
+
+    public synchronized int getDataSentCount() {
+        return dataSent;
+    }
+
+    public synchronized int getDataReceivedCount() {
+        return dataReceived;
+    }
+
+    public synchronized int getDataUnknownSpiCount() {
+        return dataUnknownSpi;
+    }
+
+    public synchronized int getDataReplayedCount() {
+        return dataReplayed;
+    }
+
+    // Also counts malformed packets
+    public synchronized int getDataAuthFailedCount() {
+        return dataAuthFailed;
+    }
+
+    // Arrived while the receive queue was full
+    public synchronized int getDataDroppedCount() {
+        return dataDropped;
+    }
+
+    public synchronized int getHandshakesCompleted() {
+        return handshakesCompleted;
+    }
+
+    public synchronized int getHandshakesFailed() {
+        return handshakesFailed;
+    }
+
+    public synchronized long getAverageHandshakeLatency() {
+        if (handshakesCompleted == 0)
+            return 0;
+        return latencySum/handshakesCompleted;
+    }
+
+    public int getLatencyBucketCount() {
+        return latencyBuckets.length;
+    }
+
+    // Returns -1 for the last, unbounded bucket
+    public int getLatencyBucketBound(int bucket) {
+        if (bucket >= LATENCY_BOUNDS.length)
+            return -1;
+        return LATENCY_BOUNDS[bucket];
+    }
+
+    public synchronized int getLatencyBucketValue(int bucket) {
+        return latencyBuckets[bucket];
+    }
+}
@@ -0,0 +1,83 @@
+//
+// HipDexPacketFilter - Rejects foreign packets before they are parsed
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.protocol.HipHit;
+import fi.aalto.spothip.protocol.HipPacket;
+
+/**
+ * Checks the fixed HIP header fields straight from the receive buffer, so
+ * that packets addressed to other hosts on a broadcast medium are dropped
+ * without copying, checksumming or parsing them.
+ */
+public class HipDexPacketFilter {
+    public static final int ACCEPTED          = 0;
+    public static final int DROP_TOO_SHORT    = 1;
+    public static final int DROP_BAD_LENGTH   = 2;
+    public static final int DROP_UNKNOWN_TYPE = 3;
+    public static final int DROP_NOT_FOR_US   = 4;
+    static final int REASON_COUNT             = 5;
+
+    private static final int HIP_HEADER_LENGTH = 40;
+    private static final int RECEIVER_HIT_OFFSET = 24;
+
+    private HipHit ourHit;
+    private int[] counters = new int[REASON_COUNT];
+
+    public HipDexPacketFilter(HipHit localHit) {
+        ourHit = localHit;
+    }
+
+    public int check(byte[] data, int offset, int length) {
+        if (length < HIP_HEADER_LENGTH)
+            return DROP_TOO_SHORT;
+
+        int packetLength = 8+(data[offset+1]&0xff)*8;
+        if (packetLength < HIP_HEADER_LENGTH || packetLength > length)
+            return DROP_BAD_LENGTH;
+        if (!HipPacket.isSupportedType((byte)(data[offset+2]&0x7f)))
+            return DROP_UNKNOWN_TYPE;
+        if (!ourHit.equals(data, offset+RECEIVER_HIT_OFFSET))
+            return DROP_NOT_FOR_US;
+        return ACCEPTED;
+    }
+
+    public boolean accept(byte[] data, int offset, int length) {
+        int result = check(data, offset, length);
+        counters[result]++;
+        return result == ACCEPTED;
+    }
+
+    public int getCount(int reason) {
+        return counters[reason];
+    }
+
+    public int getDroppedCount() {
+        int dropped = 0;
+        for (int i=1; i<counters.length; i++) {
+            dropped += counters[i];
+        }
+        return dropped;
+    }
+}
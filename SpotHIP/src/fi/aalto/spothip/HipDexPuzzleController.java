@@ -0,0 +1,91 @@
+//
+// HipDexPuzzleController - Adapts the puzzle difficulty to the responder load
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.crypto.HipDexPuzzleUtil;
+
+/**
+ * Looks at the time spent in handshake crypto, which is dominated by the
+ * ECDH, and at the puzzles handed out but not yet solved during the
+ * last interval. Over the targets the complexity is raised in big steps,
+ * when idle it is lowered one bit at a time back towards the minimum.
+ */
+public class HipDexPuzzleController {
+    // Percentage of the interval spent in handshake crypto
+    private static final int HIGH_CRYPTO_LOAD = 50;
+    private static final int LOW_CRYPTO_LOAD = 10;
+    private static final int HIGH_PENDING_PUZZLES = 20;
+    private static final int LOW_PENDING_PUZZLES = 2;
+    private static final int RAISE_STEP = 2;
+
+    private HipDexPuzzleUtil puzzleUtil;
+    private int minimumComplexity;
+    private int maximumComplexity;
+
+    private long intervalStart;
+    private long cryptoTime = 0;
+    private int puzzlesIssued = 0;
+    private int puzzlesSolved = 0;
+
+    public HipDexPuzzleController(HipDexPuzzleUtil puzzle, int minComplexity, int maxComplexity) {
+        puzzleUtil = puzzle;
+        minimumComplexity = minComplexity;
+        maximumComplexity = maxComplexity;
+        intervalStart = System.currentTimeMillis();
+    }
+
+    public synchronized void puzzleIssued() {
+        puzzlesIssued++;
+    }
+
+    public synchronized void puzzleSolved() {
+        puzzlesSolved++;
+    }
+
+    public synchronized void addCryptoTime(long processingMillis) {
+        cryptoTime += processingMillis;
+    }
+
+    // Called periodically, returns the complexity in use afterwards
+    public synchronized int adjust() {
+        long now = System.currentTimeMillis();
+        long interval = Math.max(1, now-intervalStart);
+        int cryptoLoad = (int)(100*cryptoTime/interval);
+        int pending = Math.max(0, puzzlesIssued-puzzlesSolved);
+
+        int complexity = puzzleUtil.getComplexity();
+        if (cryptoLoad > HIGH_CRYPTO_LOAD || pending > HIGH_PENDING_PUZZLES) {
+            complexity = Math.min(maximumComplexity, complexity+RAISE_STEP);
+        } else if (cryptoLoad < LOW_CRYPTO_LOAD && pending < LOW_PENDING_PUZZLES) {
+            complexity = Math.max(minimumComplexity, complexity-1);
+        }
+        puzzleUtil.setComplexity(complexity);
+
+        intervalStart = now;
+        cryptoTime = 0;
+        puzzlesIssued = 0;
+        puzzlesSolved = 0;
+        return complexity;
+    }
+}
@@ -0,0 +1,103 @@
+//
+// HipDexRateLimiter - Token bucket per source address
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+/**
+ * Each source address gets its own bucket, refilled at a steady rate up to
+ * the burst size. The number of buckets is bounded, once they run out the
+ * sources without a bucket share a single one so a flood of spoofed
+ * addresses cannot grow the table.
+ */
+public class HipDexRateLimiter {
+    // Tokens are kept in thousandths to refill with integer arithmetic
+    private static final int TOKEN_SCALE = 1000;
+
+    private int ratePerSecond;
+    private long burst;
+    private int maximumSources;
+
+    private Hashtable buckets = new Hashtable();
+    private Bucket sharedBucket;
+
+    public HipDexRateLimiter(int rate, int burstSize, int maxSources) {
+        ratePerSecond = rate;
+        burst = (long)burstSize*TOKEN_SCALE;
+        maximumSources = maxSources;
+        sharedBucket = new Bucket(System.currentTimeMillis());
+    }
+
+    public synchronized boolean tryAcquire(String source) {
+        long now = System.currentTimeMillis();
+        Bucket bucket = (Bucket)buckets.get(source);
+        if (bucket == null) {
+            if (buckets.size() >= maximumSources)
+                removeIdleBuckets(now);
+            if (buckets.size() < maximumSources) {
+                bucket = new Bucket(now);
+                buckets.put(source, bucket);
+            } else {
+                bucket = sharedBucket;
+            }
+        }
+
+        refill(bucket, now);
+        if (bucket.tokens < TOKEN_SCALE)
+            return false;
+        bucket.tokens -= TOKEN_SCALE;
+        return true;
+    }
+
+    private void refill(Bucket bucket, long now) {
+        long elapsed = now-bucket.lastRefill;
+        if (elapsed <= 0)
+            return;
+        bucket.tokens = Math.min(burst, bucket.tokens + elapsed*ratePerSecond*TOKEN_SCALE/1000);
+        bucket.lastRefill = now;
+    }
+
+    // A bucket that has filled up again holds no information
+    private void removeIdleBuckets(long now) {
+        Enumeration keys = buckets.keys();
+        while (keys.hasMoreElements()) {
+            Object key = keys.nextElement();
+            Bucket bucket = (Bucket)buckets.get(key);
+            refill(bucket, now);
+            if (bucket.tokens >= burst)
+                buckets.remove(key);
+        }
+    }
+
+    private class Bucket {
+        long tokens;
+        long lastRefill;
+
+        Bucket(long now) {
+            tokens = burst;
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+//
+// HipDexSaTable - Security associations indexed by inbound SPI
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+/**
+ * The low bits of an SPI select the slot and the bits above them count
+ * up every time a slot is handed out, so a stale SPI never matches the
+ * next association in the same slot. The high byte always stays zero.
+ */
+class HipDexSaTable {
+    private static final int SLOT_BITS = 12;
+    private static final int SLOT_MASK = (1<<SLOT_BITS)-1;
+    private static final int GENERATION_MASK = 0xfff;
+
+    private int[] spis;
+    private HipDexSecurityAssociation[] associations;
+    private int generation = 0;
+    private int nextSlot = 0;
+
+    HipDexSaTable(int capacity) {
+        capacity = Math.min(Math.max(1, capacity), SLOT_MASK+1);
+        spis = new int[capacity];
+        associations = new HipDexSecurityAssociation[capacity];
+    }
+
+    // Returns zero if all the slots are taken
+    synchronized int reserve() {
+        for (int i=0; i<spis.length; i++) {
+            int slot = (nextSlot+i) % spis.length;
+            if (spis[slot] == 0) {
+                generation = (generation % GENERATION_MASK) + 1;
+                spis[slot] = (generation<<SLOT_BITS) | slot;
+                nextSlot = (slot+1) % spis.length;
+                return spis[slot];
+            }
+        }
+        return 0;
+    }
+
+    synchronized boolean install(HipDexSecurityAssociation association) {
+        int spi = association.getInboundSpi();
+        int slot = spi & SLOT_MASK;
+        if (slot >= spis.length || spis[slot] != spi)
+            return false;
+        associations[slot] = association;
+        return true;
+    }
+
+    synchronized void release(int spi) {
+        int slot = spi & SLOT_MASK;
+        if (slot < spis.length && spis[slot] == spi) {
+            spis[slot] = 0;
+            associations[slot] = null;
+        }
+    }
+
+    synchronized HipDexSecurityAssociation get(int spi) {
+        int slot = spi & SLOT_MASK;
+        if (slot >= spis.length || spis[slot] != spi)
+            return null;
+        return associations[slot];
+    }
+}
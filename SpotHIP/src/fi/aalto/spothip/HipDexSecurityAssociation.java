@@ -0,0 +1,233 @@
+//
+// HipDexSecurityAssociation - ESP style protection of application data
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.crypto.AesCmac;
+import fi.aalto.spothip.crypto.AesEngine;
+import fi.aalto.spothip.crypto.HipDexCryptoException;
+import fi.aalto.spothip.platform.HipDexPlatform;
+import fi.aalto.spothip.platform.IHipDexPlatform;
+import fi.aalto.spothip.protocol.HipHit;
+
+/**
+ * Data packets are laid out like ESP with AES-CBC and an AES-CMAC ICV:
+ *
+ *   SPI (4) | sequence (4) | IV (16) | payload, padding, pad length,
+ *   next header (n*16) | ICV (12)
+ *
+ * The ICV covers everything before it. Our SPIs always have a zero high
+ * byte, HIP packets start with next header 59, so the first byte tells
+ * the two apart. The outbound side is locked by the sender, the inbound
+ * side is only used by the worker owning the peer.
+ */
+public class HipDexSecurityAssociation {
+    static final int HEADER_LENGTH = 24;
+    static final int ICV_LENGTH = 12;
+    private static final int BLOCK_SIZE = 16;
+    private static final int IV_OFFSET = 8;
+    private static final int REPLAY_WINDOW = 64;
+    private static final byte NO_NEXT_HEADER = 59;
+
+    static final int DECRYPT_MALFORMED = -1;
+    static final int DECRYPT_REPLAYED = -2;
+    static final int DECRYPT_AUTH_FAILED = -3;
+
+    private int inboundSpi;
+    private int outboundSpi;
+    private HipHit remoteHit;
+
+    private AesEngine outboundCipher;
+    private AesCmac outboundMac;
+    private IHipDexPlatform ivRandom;
+    private long outboundSequence = 0;
+    private byte[] outboundBuffer = null;
+
+    private AesEngine inboundCipher;
+    private AesCmac inboundMac;
+    private long highestSequence = 0;
+    private long replayBitmap = 0;
+    private byte[] icv = new byte[ICV_LENGTH];
+
+    HipDexSecurityAssociation(int ourSpi, int theirSpi, HipHit hit, byte[] localEncryptionKey, byte[] localIntegrityKey,
+            byte[] remoteEncryptionKey, byte[] remoteIntegrityKey) throws HipDexCryptoException {
+        inboundSpi = ourSpi;
+        outboundSpi = theirSpi;
+        remoteHit = hit;
+
+        outboundCipher = AesEngine.getInstance();
+        outboundCipher.init(localEncryptionKey);
+        outboundMac = new AesCmac(ICV_LENGTH);
+        outboundMac.init(localIntegrityKey);
+        ivRandom = HipDexPlatform.get();
+
+        inboundCipher = AesEngine.getInstance();
+        inboundCipher.init(remoteEncryptionKey);
+        inboundMac = new AesCmac(ICV_LENGTH);
+        inboundMac.init(remoteIntegrityKey);
+    }
+
+    static boolean isDataPacket(byte[] data, int offset, int length) {
+        return length >= HEADER_LENGTH+BLOCK_SIZE+ICV_LENGTH && data[offset] == 0;
+    }
+
+    static int getSpi(byte[] data, int offset) {
+        return readInt(data, offset);
+    }
+
+    static int getOverhead(int payloadLength) {
+        int padded = (payloadLength+2+BLOCK_SIZE-1) / BLOCK_SIZE * BLOCK_SIZE;
+        return HEADER_LENGTH + padded - payloadLength + ICV_LENGTH;
+    }
+
+    int getInboundSpi() {
+        return inboundSpi;
+    }
+
+    int getOutboundSpi() {
+        return outboundSpi;
+    }
+
+    HipHit getRemoteHit() {
+        return remoteHit;
+    }
+
+    // Valid until the next call to encrypt, callers hold the lock of this
+    // association until they are done with it
+    byte[] getOutboundBuffer() {
+        return outboundBuffer;
+    }
+
+    /**
+     * Encrypts the payload into the outbound buffer and returns the length
+     * of the packet, or -1 if the sequence numbers have run out and the
+     * association needs to be established again.
+     */
+    synchronized int encrypt(byte[] data, int offset, int length) {
+        if (outboundSequence >= 0xffffffffL)
+            return -1;
+        outboundSequence++;
+
+        int packetLength = length + getOverhead(length);
+        if (outboundBuffer == null || outboundBuffer.length < packetLength)
+            outboundBuffer = new byte[packetLength];
+        byte[] buffer = outboundBuffer;
+
+        writeInt(buffer, 0, outboundSpi);
+        writeInt(buffer, 4, (int)outboundSequence);
+        ivRandom.generateRandom(buffer, IV_OFFSET, BLOCK_SIZE);
+
+        // Payload followed by the ESP trailer, padding bytes count up from 1
+        int cipherLength = packetLength-HEADER_LENGTH-ICV_LENGTH;
+        int padLength = cipherLength-length-2;
+        System.arraycopy(data, offset, buffer, HEADER_LENGTH, length);
+        for (int i=0; i<padLength; i++)
+            buffer[HEADER_LENGTH+length+i] = (byte)(i+1);
+        buffer[HEADER_LENGTH+cipherLength-2] = (byte)padLength;
+        buffer[HEADER_LENGTH+cipherLength-1] = NO_NEXT_HEADER;
+
+        outboundCipher.encryptCbc(buffer, IV_OFFSET, buffer, HEADER_LENGTH, cipherLength, buffer, HEADER_LENGTH);
+
+        calculateIcv(outboundMac, buffer, 0, HEADER_LENGTH+cipherLength, buffer, HEADER_LENGTH+cipherLength);
+        return packetLength;
+    }
+
+    /**
+     * Verifies and decrypts the packet in place. Returns the length of the
+     * payload, which starts at HEADER_LENGTH, or one of the DECRYPT_ errors.
+     */
+    int decrypt(byte[] data, int offset, int length) {
+        int cipherLength = length-HEADER_LENGTH-ICV_LENGTH;
+        if (cipherLength < BLOCK_SIZE || cipherLength % BLOCK_SIZE != 0)
+            return DECRYPT_MALFORMED;
+        if (readInt(data, offset) != inboundSpi)
+            return DECRYPT_MALFORMED;
+
+        // Cheap replay check first, the window only moves once authenticated
+        long sequence = readInt(data, offset+4) & 0xffffffffL;
+        if (!checkReplay(sequence))
+            return DECRYPT_REPLAYED;
+
+        calculateIcv(inboundMac, data, offset, HEADER_LENGTH+cipherLength, icv, 0);
+        int diff = 0;
+        for (int i=0; i<ICV_LENGTH; i++)
+            diff |= icv[i] ^ data[offset+HEADER_LENGTH+cipherLength+i];
+        if (diff != 0)
+            return DECRYPT_AUTH_FAILED;
+
+        inboundCipher.decryptCbc(data, offset+IV_OFFSET, data, offset+HEADER_LENGTH, cipherLength, data, offset+HEADER_LENGTH);
+
+        int padLength = data[offset+HEADER_LENGTH+cipherLength-2]&0xff;
+        if (padLength+2 > cipherLength)
+            return DECRYPT_MALFORMED;
+        updateReplay(sequence);
+        return cipherLength-padLength-2;
+    }
+
+    private boolean checkReplay(long sequence) {
+        if (sequence == 0)
+            return false;
+        if (sequence > highestSequence)
+            return true;
+        long offset = highestSequence-sequence;
+        if (offset >= REPLAY_WINDOW)
+            return false;
+        return (replayBitmap & (1L << (int)offset)) == 0;
+    }
+
+    private void updateReplay(long sequence) {
+        if (sequence > highestSequence) {
+            long shift = sequence-highestSequence;
+            replayBitmap = (shift >= REPLAY_WINDOW) ? 0 : replayBitmap << (int)shift;
+            replayBitmap |= 1;
+            highestSequence = sequence;
+        } else {
+            replayBitmap |= 1L << (int)(highestSequence-sequence);
+        }
+    }
+
+    private static void calculateIcv(AesCmac mac, byte[] data, int offset, int length, byte[] out, int outOffset) {
+        mac.reset();
+        mac.update(data, offset, length);
+        mac.doFinal(out, outOffset);
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) ((value>>24)&0xff);
+        buffer[offset+1] = (byte) ((value>>16)&0xff);
+        buffer[offset+2] = (byte) ((value>>8)&0xff);
+        buffer[offset+3] = (byte) (value&0xff);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset]&0xff)<<24)|((data[offset+1]&0xff)<<16)|
+               ((data[offset+2]&0xff)<<8)|(data[offset+3]&0xff);
+    }
+
+    // Stops any further sends through this association
+    synchronized void clear() {
+        HipDexUtils.zeroize(outboundBuffer);
+        outboundCipher.clear();
+        outboundSequence = 0xffffffffL;
+    }
+}
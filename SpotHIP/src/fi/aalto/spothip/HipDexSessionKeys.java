@@ -0,0 +1,89 @@
+//
+// HipDexSessionKeys - Key material of an established association
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+/**
+ * Copies of the keys derived during the handshake, taken when it
+ * completed. Key X is the session key of the initiator and key Y the
+ * one of the responder.
+ */
+public class HipDexSessionKeys {
+    private byte[] localEncryptionKey;
+    private byte[] localIntegrityKey;
+    private byte[] remoteEncryptionKey;
+    private byte[] remoteIntegrityKey;
+    private byte[] keyX;
+    private byte[] keyY;
+
+    HipDexSessionKeys(byte[] localEncKey, byte[] localIntKey, byte[] remoteEncKey, byte[] remoteIntKey,
+            byte[] initiatorKey, byte[] responderKey) {
+        localEncryptionKey = copy(localEncKey);
+        localIntegrityKey = copy(localIntKey);
+        remoteEncryptionKey = copy(remoteEncKey);
+        remoteIntegrityKey = copy(remoteIntKey);
+        keyX = copy(initiatorKey);
+        keyY = copy(responderKey);
+    }
+
+    private static byte[] copy(byte[] data) {
+        if (data == null)
+            return null;
+        byte[] ret = new byte[data.length];
+        System.arraycopy(data, 0, ret, 0, data.length);
+        return ret;
+    }
+
+    public byte[] getLocalEncryptionKey() {
+        return localEncryptionKey;
+    }
+
+    public byte[] getLocalIntegrityKey() {
+        return localIntegrityKey;
+    }
+
+    public byte[] getRemoteEncryptionKey() {
+        return remoteEncryptionKey;
+    }
+
+    public byte[] getRemoteIntegrityKey() {
+        return remoteIntegrityKey;
+    }
+
+    public byte[] getKeyX() {
+        return keyX;
+    }
+
+    public byte[] getKeyY() {
+        return keyY;
+    }
+
+    public void clear() {
+        HipDexUtils.zeroize(localEncryptionKey);
+        HipDexUtils.zeroize(localIntegrityKey);
+        HipDexUtils.zeroize(remoteEncryptionKey);
+        HipDexUtils.zeroize(remoteIntegrityKey);
+        HipDexUtils.zeroize(keyX);
+        HipDexUtils.zeroize(keyY);
+    }
+}
@@ -0,0 +1,48 @@
+//
+// HipDexTimeout - Reusable entry of the HipDexTimerWheel
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+/**
+ * A timeout can be scheduled again after it has expired or while it is
+ * still pending, so each user only needs to allocate one.
+ */
+public class HipDexTimeout {
+    Runnable task;
+
+    // Wheel bookkeeping, guarded by the wheel
+    long deadlineTick;
+    int slot = -1;
+    HipDexTimeout prev = null;
+    HipDexTimeout next = null;
+    HipDexTimeout expiredNext = null;
+    boolean firing = false;
+
+    public HipDexTimeout(Runnable timeoutTask) {
+        task = timeoutTask;
+    }
+
+    public boolean isScheduled() {
+        return slot >= 0;
+    }
+}
@@ -0,0 +1,215 @@
+//
+// HipDexTimerWheel - Hashed timing wheel for all engine timeouts
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+/**
+ * Timeouts are hashed into slots by their deadline tick. The wheel thread
+ * only wakes up for the next slot that has something expiring in it, and
+ * sleeps without a timeout when nothing is scheduled. Expired tasks are run
+ * on the wheel thread and should only hand work over to other threads.
+ */
+public class HipDexTimerWheel implements Runnable {
+    private int tickLength;
+    private HipDexTimeout[] slots;
+
+    private long startTime;
+    private long currentTick = 0;
+    private int scheduledCount = 0;
+
+    private Thread thread = null;
+    private boolean running = false;
+
+    public HipDexTimerWheel(int tickMillis, int slotCount) {
+        tickLength = tickMillis;
+        slots = new HipDexTimeout[slotCount];
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+
+        running = true;
+        startTime = System.currentTimeMillis();
+        currentTick = 0;
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        Thread wheelThread;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            wheelThread = thread;
+            thread = null;
+            notifyAll();
+        }
+        wheelThread.join();
+
+        synchronized (this) {
+            for (int i=0; i<slots.length; i++) {
+                while (slots[i] != null)
+                    unlink(slots[i]);
+            }
+        }
+    }
+
+    public synchronized int getScheduledCount() {
+        return scheduledCount;
+    }
+
+    /**
+     * Schedules the timeout to expire after the given delay, replacing the
+     * previous deadline if the timeout is already scheduled.
+     */
+    public synchronized void schedule(HipDexTimeout timeout, long delayMillis) {
+        if (timeout.isScheduled())
+            unlink(timeout);
+        timeout.firing = false;
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        long deadlineTick = (elapsed + delayMillis + tickLength - 1) / tickLength;
+        if (deadlineTick <= currentTick)
+            deadlineTick = currentTick + 1;
+
+        timeout.deadlineTick = deadlineTick;
+        timeout.slot = (int)(deadlineTick % slots.length);
+        timeout.prev = null;
+        timeout.next = slots[timeout.slot];
+        if (timeout.next != null)
+            timeout.next.prev = timeout;
+        slots[timeout.slot] = timeout;
+        scheduledCount++;
+
+        // Let the wheel thread recalculate its sleep time
+        notify();
+    }
+
+    public synchronized boolean cancel(HipDexTimeout timeout) {
+        if (timeout.firing) {
+            // Expired but its task has not been run yet
+            timeout.firing = false;
+            return true;
+        }
+        if (!timeout.isScheduled())
+            return false;
+        unlink(timeout);
+        return true;
+    }
+
+    private void unlink(HipDexTimeout timeout) {
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            slots[timeout.slot] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        scheduledCount--;
+    }
+
+    // Collects everything due up to targetTick into a chain of expiredNext
+    private HipDexTimeout advance(long targetTick) {
+        HipDexTimeout expired = null;
+        long steps = Math.min(targetTick-currentTick, slots.length);
+        for (long k=1; k<=steps; k++) {
+            int slot = (int)((currentTick+k) % slots.length);
+            HipDexTimeout timeout = slots[slot];
+            while (timeout != null) {
+                HipDexTimeout following = timeout.next;
+                if (timeout.deadlineTick <= targetTick) {
+                    unlink(timeout);
+                    timeout.firing = true;
+                    timeout.expiredNext = expired;
+                    expired = timeout;
+                }
+                timeout = following;
+            }
+        }
+        currentTick = targetTick;
+        return expired;
+    }
+
+    // Returns the tick of the next slot with an expiring timeout
+    private long nextDeadlineTick() {
+        for (int k=1; k<=slots.length; k++) {
+            long tick = currentTick+k;
+            for (HipDexTimeout t=slots[(int)(tick % slots.length)]; t!=null; t=t.next) {
+                if (t.deadlineTick == tick)
+                    return tick;
+            }
+        }
+        return currentTick+slots.length;
+    }
+
+    public void run() {
+        while (true) {
+            HipDexTimeout expired = null;
+            synchronized (this) {
+                while (running && expired == null) {
+                    long nowTick = (System.currentTimeMillis()-startTime) / tickLength;
+                    if (nowTick > currentTick)
+                        expired = advance(nowTick);
+                    if (expired != null)
+                        break;
+
+                    try {
+                        if (scheduledCount == 0) {
+                            wait();
+                        } else {
+                            long wakeup = startTime + nextDeadlineTick()*tickLength;
+                            wait(Math.max(1, wakeup-System.currentTimeMillis()));
+                        }
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (!running)
+                    return;
+            }
+
+            // Run the tasks outside the lock, they are allowed to reschedule
+            while (expired != null) {
+                HipDexTimeout timeout = expired;
+                boolean firing;
+                synchronized (this) {
+                    expired = timeout.expiredNext;
+                    timeout.expiredNext = null;
+                    firing = timeout.firing;
+                    timeout.firing = false;
+                }
+                if (!firing)
+                    continue;
+                try {
+                    timeout.task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -23,9 +23,7 @@
 
 package fi.aalto.spothip;
 
-import com.sun.spot.util.IEEEAddress;
-import com.sun.spot.security.InvalidKeyException;
-import com.sun.spot.security.implementation.ECPublicKeyImpl;
+import fi.aalto.spothip.protocol.HipHit;
 
 public class HipDexUtils {
     public static byte[] LTrunc(byte[] input, int bits) {
@@ -45,9 +43,7 @@ public class HipDexUtils {
         return ret;
     }
 
-    public static byte[] addressToBytes(IEEEAddress address) {
-        long longval = address.asLong();
-        
+    public static byte[] addressToBytes(long longval) {
         byte[] ret = new byte[8];
         for (int i=ret.length-1; i>=0; i--) {
             ret[i] = (byte)(longval&0xff);
@@ -56,17 +52,28 @@ public class HipDexUtils {
         return ret;
     }
 
-    public static byte[] publicKeyToHit(ECPublicKeyImpl publicKey) {
-        byte[] hit = new byte[16];
+    // The public key is the uncompressed point, the X coordinate follows 0x04
+    public static HipHit publicKeyToHit(byte[] publicKey) {
+        byte[] hit = new byte[HipHit.LENGTH];
         hit[0] = 0x20;
         hit[1] = 0x01;
         hit[2] = 0x00;
         hit[3] = 0x15; // 5 = LTRUNC
 
-        byte[] pubKey = new byte[1+2*publicKey.getECCurve().getField().getFFA().getByteSize()];
-        try { publicKey.getW(pubKey, 0); } catch (InvalidKeyException ike) {}
-        System.arraycopy(pubKey, 1, hit, 4, hit.length-4);
-        return hit;
+        System.arraycopy(publicKey, 1, hit, 4, hit.length-4);
+        return new HipHit(hit);
+    }
+
+    public static boolean equals(byte[] a, byte[] b) {
+        if (a == b)
+            return true;
+        if (a == null || b == null || a.length != b.length)
+            return false;
+        for (int i=0; i<a.length; i++) {
+            if (a[i] != b[i])
+                return false;
+        }
+        return true;
     }
 
     public static String byteArrayToString(byte[] data) {
@@ -81,21 +88,35 @@ public class HipDexUtils {
         return ret;
     }
 
+    public static void zeroize(byte[] data) {
+        if (data == null)
+            return;
+        for (int i=0; i<data.length; i++)
+            data[i] = 0;
+    }
+
     public static void printPacket(byte[] data) {
         if (data == null)
             return;
+        printPacket(data, 0, data.length);
+    }
 
-        for (int i=0; i<data.length/16; i++) {
+    public static void printPacket(byte[] data, int offset, int length) {
+        if (data == null)
+            return;
+
+        for (int i=0; i<length/16; i++) {
             String idxString = Integer.toHexString(i<<4);
             for (int j=0; j<8-idxString.length(); j++)
                 System.out.print("0");
             System.out.print(idxString+"  ");
 
-            for (int j=16*i; j<16*i+16 && j<data.length; j++) {
-                if (data[j]>=0 && data[j] < 16) {
+            for (int j=16*i; j<16*i+16 && j<length; j++) {
+                byte b = data[offset+j];
+                if (b>=0 && b < 16) {
                     System.out.print("0");
                 }
-                System.out.print(Integer.toHexString(data[j]&0xff) + " ");
+                System.out.print(Integer.toHexString(b&0xff) + " ");
                 if ((j+1)%8 == 0) {
                     System.out.print(" ");
                 }
@@ -103,21 +124,4 @@ public class HipDexUtils {
             System.out.println();
         }
     }
-
-    public static int compareHits(byte[] hitA, byte[] hitB) {
-        if (hitA.length < hitB.length)
-            return -1;
-        if (hitA.length > hitB.length)
-            return 1;
-
-        for (int i=0; i<hitA.length; i++) {
-            if (hitA[i] == hitB[i])
-                continue;
-            if (hitA[i] < hitB[i])
-                return -1;
-            if (hitA[i] > hitB[i])
-                return 1;
-        }
-        return 0;
-    }
 }
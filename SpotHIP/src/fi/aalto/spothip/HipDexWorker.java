@@ -0,0 +1,164 @@
+//
+// HipDexWorker - Packet processing thread for a shard of peers
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.transport.HipDexDatagram;
+
+import java.util.Vector;
+
+/**
+ * Every sender HIT is always routed to the same worker, so all the packets
+ * of one HipDexConnection are processed by a single thread.
+ */
+class HipDexWorker implements Runnable {
+    private HipDexEngine engine;
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    // Ring of preallocated datagrams, the head is being processed
+    private HipDexDatagram[] queue;
+    private int queueHead = 0;
+    private int queueCount = 0;
+    private int droppedPackets = 0;
+
+    // Tasks posted by other threads, run before the queued datagrams
+    private Vector tasks = new Vector();
+
+    // Scratch buffer for packets the engine sends without a connection
+    private byte[] sendBuffer = null;
+
+    HipDexWorker(HipDexEngine hipEngine, int queueLength, int maximumLength) {
+        engine = hipEngine;
+        queue = new HipDexDatagram[queueLength];
+        for (int i=0; i<queue.length; i++) {
+            queue[i] = new HipDexDatagram(maximumLength);
+        }
+    }
+
+    synchronized void start() {
+        if (running)
+            return;
+
+        running = true;
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    void stop() throws InterruptedException {
+        Thread workerThread;
+        synchronized (this) {
+            if (!running)
+                return;
+            running = false;
+            workerThread = thread;
+            thread = null;
+            notifyAll();
+        }
+        workerThread.join();
+    }
+
+    // Only to be used from the worker thread itself
+    byte[] getSendBuffer(int length) {
+        if (sendBuffer == null || sendBuffer.length < length)
+            sendBuffer = new byte[length];
+        return sendBuffer;
+    }
+
+    synchronized int getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    /**
+     * Copies the datagram into the queue of this worker, returns false and
+     * drops the datagram if the queue is full.
+     */
+    synchronized boolean offer(HipDexDatagram datagram) {
+        if (queueCount == queue.length) {
+            droppedPackets++;
+            return false;
+        }
+
+        int tail = (queueHead+queueCount) % queue.length;
+        queue[tail].set(datagram.getData(), 0, datagram.getLength(), datagram.getAddress());
+        queueCount++;
+        notify();
+        return true;
+    }
+
+    synchronized void post(Runnable task) {
+        tasks.addElement(task);
+        notify();
+    }
+
+    // Returns either a Runnable or the datagram at the head of the queue
+    private synchronized Object take() throws InterruptedException {
+        while (running && tasks.isEmpty() && queueCount == 0) {
+            wait();
+        }
+        if (!running)
+            return null;
+        if (!tasks.isEmpty()) {
+            Object task = tasks.firstElement();
+            tasks.removeElementAt(0);
+            return task;
+        }
+        return queue[queueHead];
+    }
+
+    private synchronized void release() {
+        queue[queueHead].reset();
+        queueHead = (queueHead+1) % queue.length;
+        queueCount--;
+    }
+
+    public void run() {
+        while (true) {
+            Object item;
+            try {
+                item = take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (item == null)
+                return;
+
+            if (item instanceof Runnable) {
+                try {
+                    ((Runnable)item).run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
+            try {
+                engine.handleDatagram(this, (HipDexDatagram)item);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                release();
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+//
+// HipHitTable - Open addressing hash table keyed by HIT
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip;
+
+import fi.aalto.spothip.protocol.HipHit;
+
+import java.util.Vector;
+
+/**
+ * Linear probing table, lookups do not allocate and can be done either
+ * with a HipHit or directly with the HIT bytes of a received packet.
+ */
+public class HipHitTable {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private HipHit[] keys;
+    private Object[] values;
+    private int size = 0;
+
+    public HipHitTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public HipHitTable(int initialCapacity) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < 2*initialCapacity)
+            capacity <<= 1;
+        keys = new HipHit[capacity];
+        values = new Object[capacity];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized Object get(HipHit hit) {
+        int mask = keys.length-1;
+        for (int i=hit.hashCode()&mask; keys[i] != null; i=(i+1)&mask) {
+            if (keys[i].equals(hit))
+                return values[i];
+        }
+        return null;
+    }
+
+    public synchronized Object get(byte[] data, int offset) {
+        int mask = keys.length-1;
+        for (int i=HipHit.hashCode(data, offset)&mask; keys[i] != null; i=(i+1)&mask) {
+            if (keys[i].equals(data, offset))
+                return values[i];
+        }
+        return null;
+    }
+
+    public synchronized Object put(HipHit hit, Object value) {
+        int mask = keys.length-1;
+        int i = hit.hashCode()&mask;
+        for (; keys[i] != null; i=(i+1)&mask) {
+            if (keys[i].equals(hit)) {
+                Object old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+
+        keys[i] = hit;
+        values[i] = value;
+        size++;
+        if (2*size > keys.length)
+            resize(2*keys.length);
+        return null;
+    }
+
+    public synchronized Object remove(HipHit hit) {
+        int mask = keys.length-1;
+        int i = hit.hashCode()&mask;
+        while (keys[i] != null && !keys[i].equals(hit))
+            i = (i+1)&mask;
+        if (keys[i] == null)
+            return null;
+
+        Object old = values[i];
+        keys[i] = null;
+        values[i] = null;
+        size--;
+
+        // Shift back the following entries of the probe sequence
+        int j = i;
+        while (true) {
+            j = (j+1)&mask;
+            if (keys[j] == null)
+                break;
+            int home = keys[j].hashCode()&mask;
+            boolean between = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if (between)
+                continue;
+            keys[i] = keys[j];
+            values[i] = values[j];
+            keys[j] = null;
+            values[j] = null;
+            i = j;
+        }
+        return old;
+    }
+
+    public synchronized Vector values() {
+        Vector ret = new Vector(size);
+        for (int i=0; i<values.length; i++) {
+            if (keys[i] != null)
+                ret.addElement(values[i]);
+        }
+        return ret;
+    }
+
+    private void resize(int capacity) {
+        HipHit[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new HipHit[capacity];
+        values = new Object[capacity];
+
+        int mask = capacity-1;
+        for (int i=0; i<oldKeys.length; i++) {
+            if (oldKeys[i] == null)
+                continue;
+            int j = oldKeys[i].hashCode()&mask;
+            while (keys[j] != null)
+                j = (j+1)&mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
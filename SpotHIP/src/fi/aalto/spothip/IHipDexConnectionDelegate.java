@@ -24,12 +24,19 @@
 package fi.aalto.spothip;
 
 import fi.aalto.spothip.protocol.*;
-import com.sun.spot.util.IEEEAddress;
 import java.io.IOException;
 
 public interface IHipDexConnectionDelegate {
-    public void sendPacket(HipPacket packet) throws IOException;
+    public void sendPacket(byte[] data, int offset, int length) throws IOException;
+    public boolean submitCrypto(HipDexConnection connection, Runnable job, boolean responder, Runnable completion);
+
+    public int reserveSpi();
+    public void installSecurityAssociation(HipDexSecurityAssociation association);
+    public void releaseSpi(int spi);
     
-    public void signalStartRetransmission();
-    public void signalStopRetransmission();
+    public void signalStartRetransmission(HipDexConnection connection, int delay);
+    public void signalStopRetransmission(HipDexConnection connection);
+    public void signalRetransmitted(HipDexConnection connection);
+    public void signalHandshakeCompleted(HipDexConnection connection, long duration);
+    public void signalHandshakeFailed(HipDexConnection connection);
 }
@@ -49,12 +49,14 @@ public class StartApplication extends MIDlet {
         };
 
         /*
-        HipDexEngine server = new HipDexEngine(true);
-        try { server.start(); }
+        try { new HipDexEngine(true).start(); }
         catch (Exception e) { e.printStackTrace(); }
         */
-        HipDexEngine client = new HipDexEngine(false);
-        try { client.start(); client.connectToHit(remoteHit); }
+        try {
+            HipDexEngine client = new HipDexEngine(false);
+            client.start();
+            client.connectToHit(remoteHit);
+        }
         catch (Exception e) { e.printStackTrace(); }
     }
 
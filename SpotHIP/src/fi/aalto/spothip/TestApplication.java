@@ -23,8 +23,12 @@
 
 package fi.aalto.spothip;
 
+import fi.aalto.spothip.crypto.AesCmac;
+import fi.aalto.spothip.crypto.AesEngine;
+import fi.aalto.spothip.crypto.HipDexCryptoException;
 import fi.aalto.spothip.crypto.HipDexPuzzleUtil;
 import fi.aalto.spothip.HipDexEngine;
+import fi.aalto.spothip.protocol.HipHit;
 
 import com.sun.spot.peripheral.Spot;
 import com.sun.spot.util.*;
@@ -63,6 +67,7 @@ public class TestApplication extends MIDlet {
                 Runtime.getRuntime().freeMemory() + "/" +
                 Runtime.getRuntime().totalMemory());
 
+        aesBenchmark(4096);
         puzzleTest(8);
         ecdhTest(ECKeyImpl.SECP160R1);
         ecdhTest(ECKeyImpl.SECP192R1);
@@ -91,24 +96,62 @@ public class TestApplication extends MIDlet {
     }
 
 
+    private void aesBenchmark(int blocks) {
+        String[] names = { "platform", "table", "constant time" };
+        byte[] key = new byte[AesEngine.KEY_LENGTH];
+        byte[] iv = new byte[AesEngine.BLOCK_SIZE];
+        byte[] data = new byte[8*AesEngine.BLOCK_SIZE];
+
+        for (int backend=AesEngine.BACKEND_PLATFORM; backend<=AesEngine.BACKEND_CONSTANT_TIME; backend++) {
+            try {
+                AesEngine engine = AesEngine.getInstance(backend);
+                engine.init(key);
+                AesCmac aesCmac = new AesCmac(AesEngine.BLOCK_SIZE, AesEngine.getInstance(backend));
+                aesCmac.init(key);
+
+                long startTime = System.currentTimeMillis();
+                for (int i=0; i<blocks; i++)
+                    engine.encryptBlock(data, 0, data, 0);
+                long blockTime = System.currentTimeMillis()-startTime;
+
+                startTime = System.currentTimeMillis();
+                for (int i=0; i<blocks/8; i++)
+                    engine.encryptCbc(iv, 0, data, 0, data.length, data, 0);
+                long cbcTime = System.currentTimeMillis()-startTime;
+
+                startTime = System.currentTimeMillis();
+                for (int i=0; i<blocks/8; i++) {
+                    aesCmac.update(data, 0, data.length);
+                    aesCmac.doFinal(iv, 0);
+                }
+                long cmacTime = System.currentTimeMillis()-startTime;
+
+                System.out.println("AES " + names[backend] + ": " + blocks + " blocks in " + blockTime +
+                        " ms, CBC " + cbcTime + " ms, CMAC " + cmacTime + " ms");
+            } catch (HipDexCryptoException hce) {
+                System.out.println("AES " + names[backend] + " not available: " + hce.getMessage());
+            }
+        }
+    }
+
     private void puzzleTest(int complexity) {
         IEEEAddress remoteAddress = new IEEEAddress(Spot.getInstance().getRadioPolicyManager().getIEEEAddress());
-        byte[] hitI = new byte[16];
-        byte[] hitR = new byte[16];
+        HipHit hitI = new HipHit(new byte[HipHit.LENGTH]);
+        HipHit hitR = new HipHit(new byte[HipHit.LENGTH]);
 
         // Responder does this when sending R1
         HipDexPuzzleUtil rPuzzle = new HipDexPuzzleUtil(complexity);
-        byte[] I = rPuzzle.calculateI(hitI, hitR, new byte[0], new byte[0]);
+        byte[] I = rPuzzle.calculateI(complexity, hitI, hitR, new byte[0], new byte[0]);
 
         // Initiator does this when sending I2
         long startTime = System.currentTimeMillis();
-        byte[] solution = HipDexPuzzleUtil.solvePuzzle(I, hitI, hitR, rPuzzle.getComplexity());
+        byte[] solution = HipDexPuzzleUtil.solvePuzzle(I, hitI, hitR, complexity);
         long endTime = System.currentTimeMillis();
         System.out.println("Solved puzzle in " + (endTime-startTime) + " milliseconds");
 
         // Responder does this when received I2
         startTime = System.currentTimeMillis();
-        boolean verified = rPuzzle.verifyPuzzle(I, solution, hitI, hitR, new byte[0], new byte[0]);
+        boolean verified = rPuzzle.verifyPuzzle(I, solution, complexity, hitI, hitR, new byte[0], new byte[0]);
         endTime = System.currentTimeMillis();
         System.out.println("Verified puzzle as " + verified + " in " + (endTime-startTime) + " milliseconds");
    }
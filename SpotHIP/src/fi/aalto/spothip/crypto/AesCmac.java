@@ -23,41 +23,38 @@
 
 package fi.aalto.spothip.crypto;
 
-import com.sun.spot.security.*;
-import com.sun.spotx.crypto.*;
-import com.sun.spotx.crypto.spec.*;
-
-import javax.microedition.io.*;
-
 public class AesCmac {
     private static final byte CONSTANT = (byte) 0x87;
-    private static final int BLOCK_SIZE = 16;
+    private static final int BLOCK_SIZE = AesEngine.BLOCK_SIZE;
 
     private int macLength;
-    private Cipher aesCipher;
-    
+    private AesEngine aesEngine;
+
+    // CBC chaining value of the blocks transformed so far
+    private byte[] chain;
     private byte[] buffer;
     private int bufferCount;
 
     private byte[] k1;
     private byte[] k2;
 
-    public AesCmac() throws NoSuchAlgorithmException {
+    public AesCmac() throws HipDexCryptoException {
         this(BLOCK_SIZE);
     }
 
-    public AesCmac(int length) throws NoSuchAlgorithmException {
+    public AesCmac(int length) throws HipDexCryptoException {
+        this(length, AesEngine.getInstance());
+    }
+
+    public AesCmac(int length, AesEngine engine) throws HipDexCryptoException {
         if (length > BLOCK_SIZE) {
-            throw new NoSuchAlgorithmException("AES CMAC maximum length is " + BLOCK_SIZE);
+            throw new HipDexCryptoException("AES CMAC maximum length is " + BLOCK_SIZE);
         }
 
-        try {
-            macLength = length;
-            aesCipher = Cipher.getInstance("AES/CBC/NOPADDING");
-            buffer = new byte[BLOCK_SIZE];
-        } catch (NoSuchPaddingException nspe) {
-            nspe.printStackTrace();
-        }
+        macLength = length;
+        aesEngine = engine;
+        chain = new byte[BLOCK_SIZE];
+        buffer = new byte[BLOCK_SIZE];
     }
 
     private byte[] doubleSubKey(byte[] k) {
@@ -76,81 +73,113 @@ public class AesCmac {
         return ret;
     }
 
-    public final void init(Key key) throws InvalidKeyException {
-        if (!(key instanceof SecretKeySpec)) {
-            throw new InvalidKeyException("Key is not of required type SecretKey.");
-        }
-        if (!((SecretKeySpec)key).getAlgorithm().equals("AES")) {
-            throw new InvalidKeyException("Key is not an AES key.");
-        }
-        aesCipher.init(Cipher.ENCRYPT_MODE, key);
+    public final void init(byte[] key) throws HipDexCryptoException {
+        init(key, 0, key.length);
+    }
+
+    public final void init(byte[] key, int offset, int length) throws HipDexCryptoException {
+        aesEngine.init(key, offset, length);
 
         // First calculate k0 from zero bytes
         byte[] k0 = new byte[BLOCK_SIZE];
-        try {
-            aesCipher.update(k0, 0, k0.length, k0, 0);
-        } catch (ShortBufferException sbe) {}
+        aesEngine.encryptBlock(k0, 0, k0, 0);
 
         // Calculate values for k1 and k2
         k1 = doubleSubKey(k0);
         k2 = doubleSubKey(k1);
+        reset();
+    }
 
-        aesCipher.init(Cipher.ENCRYPT_MODE, key);
+    /**
+     * Drops any data given since the last doFinal, keeping the key and the
+     * subkeys.
+     */
+    public final void reset() {
+        for (int i=0; i<BLOCK_SIZE; i++)
+            chain[i] = 0;
         bufferCount = 0;
     }
 
+    public final int getMacLength() {
+        return macLength;
+    }
+
     public final void updateByte(byte b) {
-        updateBlock(new byte[] { b });
+        updateValue(b, 1);
     }
 
     public final void updateShort(short s) {
-        byte[] block = new byte[2];
-        block[0] = (byte) (s>>8);
-        block[1] = (byte) (s);
-        updateBlock(block);
+        updateValue(s, 2);
     }
 
     public final void updateInt(int i) {
-        byte[] block = new byte[4];
-        block[0] = (byte) (i>>24);
-        block[1] = (byte) (i>>16);
-        block[2] = (byte) (i>>8);
-        block[3] = (byte) (i);
-        updateBlock(block);
+        updateValue(i, 4);
+    }
+
+    // Same buffering rules as update, without going through an array
+    private void updateValue(int value, int count) {
+        boolean partial = (bufferCount > 0);
+        for (int shift=8*(count-1); shift>=0; shift-=8) {
+            if (bufferCount == BLOCK_SIZE)
+                transformBuffer();
+            buffer[bufferCount++] = (byte) (value>>shift);
+        }
+        if (partial && bufferCount == BLOCK_SIZE)
+            transformBuffer();
     }
 
     public final void updateBlock(byte[] data) {
-        int currentOffset = 0;
-        
-        if (data.length < BLOCK_SIZE-bufferCount) {
-            System.arraycopy(data, 0, buffer, bufferCount, data.length);
-            bufferCount += data.length;
+        update(data, 0, data.length);
+    }
+
+    /**
+     * The last block given is kept in the buffer for doFinal, except when
+     * the call only completes a partially filled buffer, which is transformed
+     * right away. Keys derived with CKDF depend on that, so it is kept.
+     */
+    public final void update(byte[] data, int offset, int length) {
+        if (length < BLOCK_SIZE-bufferCount) {
+            System.arraycopy(data, offset, buffer, bufferCount, length);
+            bufferCount += length;
             return;
         } else if (bufferCount > 0) {
-            System.arraycopy(data, 0, buffer, bufferCount, BLOCK_SIZE-bufferCount);
-            try {
-                aesCipher.update(buffer, 0, BLOCK_SIZE, buffer, 0);
-            } catch (ShortBufferException sbe) {}
-            currentOffset += BLOCK_SIZE-bufferCount;
-            bufferCount = 0;
+            int fill = BLOCK_SIZE-bufferCount;
+            System.arraycopy(data, offset, buffer, bufferCount, fill);
+            transformBuffer();
+            offset += fill;
+            length -= fill;
         }
 
-        // Transform all the full blocks in data
-        while (currentOffset+BLOCK_SIZE < data.length) {
-            try {
-                aesCipher.update(data, currentOffset, BLOCK_SIZE, buffer, 0);
-            } catch (ShortBufferException sbe) {}
-            currentOffset += BLOCK_SIZE;
+        // Transform all the full blocks in data except the last one
+        int fullLength = (length > 0) ? (length-1) / BLOCK_SIZE * BLOCK_SIZE : 0;
+        for (int done=0; done<fullLength; done+=BLOCK_SIZE) {
+            for (int i=0; i<BLOCK_SIZE; i++)
+                chain[i] ^= data[offset+done+i];
+            aesEngine.encryptBlock(chain, 0, chain, 0);
         }
 
         // Save the leftover bytes to buffer
-        if (currentOffset != data.length) {
-            System.arraycopy(data, currentOffset, buffer, 0, data.length-currentOffset);
-            bufferCount = data.length-currentOffset;
-        }
+        System.arraycopy(data, offset+fullLength, buffer, 0, length-fullLength);
+        bufferCount = length-fullLength;
+    }
+
+    private void transformBuffer() {
+        for (int i=0; i<BLOCK_SIZE; i++)
+            chain[i] ^= buffer[i];
+        aesEngine.encryptBlock(chain, 0, chain, 0);
+        bufferCount = 0;
     }
 
     public final byte[] doFinal() {
+        byte[] mac = new byte[macLength];
+        doFinal(mac, 0);
+        return mac;
+    }
+
+    /**
+     * Writes the MAC into the given buffer and returns its length.
+     */
+    public final int doFinal(byte[] out, int offset) {
         byte[] subKey = k1;
         if (bufferCount < BLOCK_SIZE) {
             // Add padding and XOR with k2 instead
@@ -160,22 +189,14 @@ public class AesCmac {
             subKey = k2;
         }
         for (int i=0; i<BLOCK_SIZE; i++) {
-            buffer[i] ^= subKey[i];
+            chain[i] ^= buffer[i] ^ subKey[i];
         }
 
-        // Calculate the final CMAC calue
-        try {
-            aesCipher.doFinal(buffer, 0, BLOCK_SIZE, buffer, 0);
-        }
-        // These should never happen because we pad manually
-        catch (ShortBufferException sbe) {}
-        catch (IllegalBlockSizeException ibse) {}
-        catch (BadPaddingException ibse) {}
-        bufferCount = 0;
-
-        byte[] mac = new byte[macLength];
-        System.arraycopy(buffer, 0, mac, 0, macLength);
-        return  mac;
+        // Calculate the final CMAC value
+        aesEngine.encryptBlock(chain, 0, chain, 0);
+        System.arraycopy(chain, 0, out, offset, macLength);
+        reset();
+        return macLength;
     }
 
     public final byte[] calculateHash(byte[] data) {
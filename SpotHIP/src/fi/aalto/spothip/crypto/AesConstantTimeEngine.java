@@ -0,0 +1,317 @@
+//
+// AesConstantTimeEngine - Constant time AES-128
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.crypto;
+
+/**
+ * No table lookups or branches depend on the key or the data. SubBytes is
+ * done on all 16 bytes at once with the Boyar-Peralta circuit over bit
+ * planes of the state, the rest works on bytes with masked arithmetic.
+ * Several times slower than the table engine.
+ */
+final class AesConstantTimeEngine extends AesEngine {
+    private static final int ROUNDS = 10;
+
+    private byte[] roundKeys = new byte[BLOCK_SIZE*(ROUNDS+1)];
+    private byte[] state = new byte[BLOCK_SIZE];
+    private int[] planes = new int[8];
+
+    private static int xtime(int b) {
+        return ((b<<1) ^ (-((b>>>7)&1) & 0x1b)) & 0xff;
+    }
+
+    protected void setKey(byte[] key, int offset) {
+        System.arraycopy(key, offset, roundKeys, 0, BLOCK_SIZE);
+        byte[] word = new byte[BLOCK_SIZE];
+        int rcon = 1;
+        for (int i=BLOCK_SIZE; i<roundKeys.length; i+=4) {
+            if (i % BLOCK_SIZE == 0) {
+                word[0] = roundKeys[i-3];
+                word[1] = roundKeys[i-2];
+                word[2] = roundKeys[i-1];
+                word[3] = roundKeys[i-4];
+                subBytes(word);
+                word[0] ^= (byte) rcon;
+                rcon = xtime(rcon);
+            } else {
+                System.arraycopy(roundKeys, i-4, word, 0, 4);
+            }
+            for (int j=0; j<4; j++)
+                roundKeys[i+j] = (byte) (roundKeys[i-BLOCK_SIZE+j] ^ word[j]);
+        }
+        for (int i=0; i<word.length; i++)
+            word[i] = 0;
+    }
+
+    public void clear() {
+        for (int i=0; i<roundKeys.length; i++)
+            roundKeys[i] = 0;
+        for (int i=0; i<state.length; i++)
+            state[i] = 0;
+    }
+
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        byte[] s = state;
+        System.arraycopy(in, inOffset, s, 0, BLOCK_SIZE);
+        addRoundKey(s, 0);
+        for (int r=1; r<=ROUNDS; r++) {
+            subBytes(s);
+            shiftRows(s);
+            if (r < ROUNDS)
+                mixColumns(s);
+            addRoundKey(s, r);
+        }
+        System.arraycopy(s, 0, out, outOffset, BLOCK_SIZE);
+    }
+
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        byte[] s = state;
+        System.arraycopy(in, inOffset, s, 0, BLOCK_SIZE);
+        addRoundKey(s, ROUNDS);
+        for (int r=ROUNDS-1; r>=0; r--) {
+            invShiftRows(s);
+            invSubBytes(s);
+            addRoundKey(s, r);
+            if (r > 0)
+                invMixColumns(s);
+        }
+        System.arraycopy(s, 0, out, outOffset, BLOCK_SIZE);
+    }
+
+    private void addRoundKey(byte[] s, int round) {
+        int offset = round*BLOCK_SIZE;
+        for (int i=0; i<BLOCK_SIZE; i++)
+            s[i] ^= roundKeys[offset+i];
+    }
+
+    private static void shiftRows(byte[] s) {
+        byte t = s[1]; s[1] = s[5]; s[5] = s[9]; s[9] = s[13]; s[13] = t;
+        t = s[2]; s[2] = s[10]; s[10] = t;
+        t = s[6]; s[6] = s[14]; s[14] = t;
+        t = s[15]; s[15] = s[11]; s[11] = s[7]; s[7] = s[3]; s[3] = t;
+    }
+
+    private static void invShiftRows(byte[] s) {
+        byte t = s[13]; s[13] = s[9]; s[9] = s[5]; s[5] = s[1]; s[1] = t;
+        t = s[2]; s[2] = s[10]; s[10] = t;
+        t = s[6]; s[6] = s[14]; s[14] = t;
+        t = s[3]; s[3] = s[7]; s[7] = s[11]; s[11] = s[15]; s[15] = t;
+    }
+
+    private static void mixColumns(byte[] s) {
+        for (int c=0; c<BLOCK_SIZE; c+=4) {
+            int a0 = s[c]&0xff, a1 = s[c+1]&0xff, a2 = s[c+2]&0xff, a3 = s[c+3]&0xff;
+            int all = a0 ^ a1 ^ a2 ^ a3;
+            s[c] = (byte) (a0 ^ all ^ xtime(a0^a1));
+            s[c+1] = (byte) (a1 ^ all ^ xtime(a1^a2));
+            s[c+2] = (byte) (a2 ^ all ^ xtime(a2^a3));
+            s[c+3] = (byte) (a3 ^ all ^ xtime(a3^a0));
+        }
+    }
+
+    // InvMixColumns is MixColumns after a cheap preprocessing step
+    private static void invMixColumns(byte[] s) {
+        for (int c=0; c<BLOCK_SIZE; c+=4) {
+            int u = xtime(xtime((s[c]^s[c+2])&0xff));
+            int v = xtime(xtime((s[c+1]^s[c+3])&0xff));
+            s[c] ^= (byte) u;
+            s[c+1] ^= (byte) v;
+            s[c+2] ^= (byte) u;
+            s[c+3] ^= (byte) v;
+        }
+        mixColumns(s);
+    }
+
+    // The inverse S-box is the S-box between two inverse affine transforms
+    private void invSubBytes(byte[] s) {
+        invAffine(s);
+        subBytes(s);
+        invAffine(s);
+    }
+
+    private static void invAffine(byte[] s) {
+        for (int i=0; i<s.length; i++) {
+            int b = s[i]&0xff;
+            int r = ((b<<1)|(b>>>7)) ^ ((b<<3)|(b>>>5)) ^ ((b<<6)|(b>>>2)) ^ 0x05;
+            s[i] = (byte) r;
+        }
+    }
+
+    private void subBytes(byte[] s) {
+        int[] q = planes;
+        for (int j=0; j<8; j++)
+            q[j] = 0;
+        for (int i=0; i<s.length; i++) {
+            int b = s[i];
+            for (int j=0; j<8; j++)
+                q[j] |= ((b>>>j)&1) << i;
+        }
+
+        sboxCircuit(q);
+
+        for (int i=0; i<s.length; i++) {
+            int b = 0;
+            for (int j=0; j<8; j++)
+                b |= ((q[j]>>>i)&1) << j;
+            s[i] = (byte) b;
+        }
+    }
+
+    // Plane 7 holds the most significant bits
+    private static void sboxCircuit(int[] q) {
+        int x0 = q[7], x1 = q[6], x2 = q[5], x3 = q[4];
+        int x4 = q[3], x5 = q[2], x6 = q[1], x7 = q[0];
+
+        // Top linear transformation
+        int y14 = x3 ^ x5;
+        int y13 = x0 ^ x6;
+        int y9 = x0 ^ x3;
+        int y8 = x0 ^ x5;
+        int t0 = x1 ^ x2;
+        int y1 = t0 ^ x7;
+        int y4 = y1 ^ x3;
+        int y12 = y13 ^ y14;
+        int y2 = y1 ^ x0;
+        int y5 = y1 ^ x6;
+        int y3 = y5 ^ y8;
+        int t1 = x4 ^ y12;
+        int y15 = t1 ^ x5;
+        int y20 = t1 ^ x1;
+        int y6 = y15 ^ x7;
+        int y10 = y15 ^ t0;
+        int y11 = y20 ^ y9;
+        int y7 = x7 ^ y11;
+        int y17 = y10 ^ y11;
+        int y19 = y10 ^ y8;
+        int y16 = t0 ^ y11;
+        int y21 = y13 ^ y16;
+        int y18 = x0 ^ y16;
+
+        // Non-linear section
+        int t2 = y12 & y15;
+        int t3 = y3 & y6;
+        int t4 = t3 ^ t2;
+        int t5 = y4 & x7;
+        int t6 = t5 ^ t2;
+        int t7 = y13 & y16;
+        int t8 = y5 & y1;
+        int t9 = t8 ^ t7;
+        int t10 = y2 & y7;
+        int t11 = t10 ^ t7;
+        int t12 = y9 & y11;
+        int t13 = y14 & y17;
+        int t14 = t13 ^ t12;
+        int t15 = y8 & y10;
+        int t16 = t15 ^ t12;
+        int t17 = t4 ^ t14;
+        int t18 = t6 ^ t16;
+        int t19 = t9 ^ t14;
+        int t20 = t11 ^ t16;
+        int t21 = t17 ^ y20;
+        int t22 = t18 ^ y19;
+        int t23 = t19 ^ y21;
+        int t24 = t20 ^ y18;
+
+        int t25 = t21 ^ t22;
+        int t26 = t21 & t23;
+        int t27 = t24 ^ t26;
+        int t28 = t25 & t27;
+        int t29 = t28 ^ t22;
+        int t30 = t23 ^ t24;
+        int t31 = t22 ^ t26;
+        int t32 = t31 & t30;
+        int t33 = t32 ^ t24;
+        int t34 = t23 ^ t33;
+        int t35 = t27 ^ t33;
+        int t36 = t24 & t35;
+        int t37 = t36 ^ t34;
+        int t38 = t27 ^ t36;
+        int t39 = t29 & t38;
+        int t40 = t25 ^ t39;
+
+        int t41 = t40 ^ t37;
+        int t42 = t29 ^ t33;
+        int t43 = t29 ^ t40;
+        int t44 = t33 ^ t37;
+        int t45 = t42 ^ t41;
+        int z0 = t44 & y15;
+        int z1 = t37 & y6;
+        int z2 = t33 & x7;
+        int z3 = t43 & y16;
+        int z4 = t40 & y1;
+        int z5 = t29 & y7;
+        int z6 = t42 & y11;
+        int z7 = t45 & y17;
+        int z8 = t41 & y10;
+        int z9 = t44 & y12;
+        int z10 = t37 & y3;
+        int z11 = t33 & y4;
+        int z12 = t43 & y13;
+        int z13 = t40 & y5;
+        int z14 = t29 & y2;
+        int z15 = t42 & y9;
+        int z16 = t45 & y14;
+        int z17 = t41 & y8;
+
+        // Bottom linear transformation
+        int t46 = z15 ^ z16;
+        int t47 = z10 ^ z11;
+        int t48 = z5 ^ z13;
+        int t49 = z9 ^ z10;
+        int t50 = z2 ^ z12;
+        int t51 = z2 ^ z5;
+        int t52 = z7 ^ z8;
+        int t53 = z0 ^ z3;
+        int t54 = z6 ^ z7;
+        int t55 = z16 ^ z17;
+        int t56 = z12 ^ t48;
+        int t57 = t50 ^ t53;
+        int t58 = z4 ^ t46;
+        int t59 = z3 ^ t54;
+        int t60 = t46 ^ t57;
+        int t61 = z14 ^ t57;
+        int t62 = t52 ^ t58;
+        int t63 = t49 ^ t58;
+        int t64 = z4 ^ t59;
+        int t65 = t61 ^ t62;
+        int t66 = z1 ^ t63;
+        int s0 = t59 ^ t63;
+        int s6 = t56 ^ ~t62;
+        int s7 = t48 ^ ~t60;
+        int t67 = t64 ^ t65;
+        int s3 = t53 ^ t66;
+        int s4 = t51 ^ t66;
+        int s5 = t47 ^ t65;
+        int s1 = t64 ^ ~s3;
+        int s2 = t55 ^ ~t67;
+
+        q[7] = s0;
+        q[6] = s1;
+        q[5] = s2;
+        q[4] = s3;
+        q[3] = s4;
+        q[2] = s5;
+        q[1] = s6;
+        q[0] = s7;
+    }
+}
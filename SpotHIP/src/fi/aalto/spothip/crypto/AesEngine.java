@@ -0,0 +1,134 @@
+//
+// AesEngine - AES-128 block cipher backends
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.crypto;
+
+import fi.aalto.spothip.platform.HipDexPlatform;
+
+/**
+ * Raw AES-128 block operations for the CMAC and CBC code, so they don't
+ * have to go through the provider for every block. Instances are not
+ * thread safe and keep their round keys until cleared.
+ */
+public abstract class AesEngine {
+    public static final int BLOCK_SIZE = 16;
+    public static final int KEY_LENGTH = 16;
+
+    public static final int BACKEND_PLATFORM = 0;
+    public static final int BACKEND_TABLE = 1;
+    public static final int BACKEND_CONSTANT_TIME = 2;
+
+    private static final int BACKEND_UNSET = -1;
+
+    // Chosen by the platform unless set. The table engine leaks key bits
+    // through the cache timing, so it is only used when asked for, mainly
+    // to benchmark against, and the constant time engine is opt-in.
+    private static int defaultBackend = BACKEND_UNSET;
+
+    // Scratch blocks for chaining, in and out may be the same array
+    private byte[] chain = new byte[BLOCK_SIZE];
+    private byte[] saved = new byte[BLOCK_SIZE];
+
+    public static synchronized void setDefaultBackend(int backend) {
+        if (backend < BACKEND_PLATFORM || backend > BACKEND_CONSTANT_TIME)
+            throw new IllegalArgumentException("Unknown AES backend " + backend);
+        defaultBackend = backend;
+    }
+
+    public static synchronized int getDefaultBackend() {
+        if (defaultBackend == BACKEND_UNSET)
+            return HipDexPlatform.get().getDefaultAesBackend();
+        return defaultBackend;
+    }
+
+    public static AesEngine getInstance() throws HipDexCryptoException {
+        return getInstance(getDefaultBackend());
+    }
+
+    public static AesEngine getInstance(int backend) throws HipDexCryptoException {
+        switch (backend) {
+            case BACKEND_PLATFORM:
+                return HipDexPlatform.get().createAesEngine();
+            case BACKEND_TABLE:
+                return new AesTableEngine();
+            case BACKEND_CONSTANT_TIME:
+                return new AesConstantTimeEngine();
+        }
+        throw new HipDexCryptoException("Unknown AES backend " + backend);
+    }
+
+    public final void init(byte[] key) throws HipDexCryptoException {
+        init(key, 0, key.length);
+    }
+
+    public final void init(byte[] key, int offset, int length) throws HipDexCryptoException {
+        if (length != KEY_LENGTH)
+            throw new HipDexCryptoException("AES key length must be " + KEY_LENGTH);
+        setKey(key, offset);
+    }
+
+    protected abstract void setKey(byte[] key, int offset) throws HipDexCryptoException;
+
+    public abstract void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+    public abstract void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset);
+
+    /**
+     * Overwrites the round keys, the engine needs to be initialized again.
+     */
+    public abstract void clear();
+
+    /**
+     * CBC without padding, the length has to be a multiple of the block size.
+     */
+    public void encryptCbc(byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        checkLength(length);
+        System.arraycopy(iv, ivOffset, chain, 0, BLOCK_SIZE);
+        for (int done=0; done<length; done+=BLOCK_SIZE) {
+            for (int i=0; i<BLOCK_SIZE; i++)
+                chain[i] ^= in[inOffset+done+i];
+            encryptBlock(chain, 0, chain, 0);
+            System.arraycopy(chain, 0, out, outOffset+done, BLOCK_SIZE);
+        }
+    }
+
+    public void decryptCbc(byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        checkLength(length);
+        System.arraycopy(iv, ivOffset, chain, 0, BLOCK_SIZE);
+        for (int done=0; done<length; done+=BLOCK_SIZE) {
+            // Keep the ciphertext, decrypting in place overwrites it
+            System.arraycopy(in, inOffset+done, saved, 0, BLOCK_SIZE);
+            decryptBlock(saved, 0, out, outOffset+done);
+            for (int i=0; i<BLOCK_SIZE; i++)
+                out[outOffset+done+i] ^= chain[i];
+
+            byte[] tmp = chain;
+            chain = saved;
+            saved = tmp;
+        }
+    }
+
+    private static void checkLength(int length) {
+        if (length % BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("CBC length must be a multiple of " + BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,191 @@
+//
+// AesTableEngine - Table driven AES-128
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.crypto;
+
+/**
+ * One 256 entry table per direction, the other three are rotations of it,
+ * which keeps the tables at 2.5 kB. The table lookups depend on the key and
+ * the data, so this is fast but not constant time and never the default.
+ */
+final class AesTableEngine extends AesEngine {
+    private static final int ROUNDS = 10;
+
+    static final byte[] SBOX = new byte[256];
+    static final byte[] INV_SBOX = new byte[256];
+    private static final int[] TE = new int[256];
+    private static final int[] TD = new int[256];
+
+    static {
+        // Powers of the generator 3 give the multiplicative inverses
+        int[] exp = new int[256];
+        int[] log = new int[256];
+        int x = 1;
+        for (int i=0; i<255; i++) {
+            exp[i] = x;
+            log[x] = i;
+            x ^= xtime(x);
+        }
+
+        for (int i=0; i<256; i++) {
+            int inv = (i == 0) ? 0 : exp[(255-log[i]) % 255];
+            int s = inv ^ rotl8(inv, 1) ^ rotl8(inv, 2) ^ rotl8(inv, 3) ^ rotl8(inv, 4) ^ 0x63;
+            SBOX[i] = (byte) s;
+            INV_SBOX[s] = (byte) i;
+        }
+
+        for (int i=0; i<256; i++) {
+            int s = SBOX[i]&0xff;
+            TE[i] = (xtime(s)<<24) | (s<<16) | (s<<8) | (xtime(s)^s);
+
+            int si = INV_SBOX[i]&0xff;
+            TD[i] = (mul(si, 14, exp, log)<<24) | (mul(si, 9, exp, log)<<16) |
+                    (mul(si, 13, exp, log)<<8) | mul(si, 11, exp, log);
+        }
+    }
+
+    private int[] encryptKeys = new int[4*(ROUNDS+1)];
+    private int[] decryptKeys = new int[4*(ROUNDS+1)];
+
+    private static int xtime(int b) {
+        return ((b<<1) ^ ((b&0x80) != 0 ? 0x1b : 0)) & 0xff;
+    }
+
+    private static int rotl8(int b, int n) {
+        return ((b<<n) | (b>>>(8-n))) & 0xff;
+    }
+
+    private static int mul(int a, int b, int[] exp, int[] log) {
+        if (a == 0)
+            return 0;
+        return exp[(log[a]+log[b]) % 255];
+    }
+
+    private static int rotr(int w, int n) {
+        return (w>>>n) | (w<<(32-n));
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset]&0xff)<<24) | ((data[offset+1]&0xff)<<16) |
+               ((data[offset+2]&0xff)<<8) | (data[offset+3]&0xff);
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value>>24);
+        data[offset+1] = (byte) (value>>16);
+        data[offset+2] = (byte) (value>>8);
+        data[offset+3] = (byte) value;
+    }
+
+    private static int subWord(int w) {
+        return ((SBOX[w>>>24]&0xff)<<24) | ((SBOX[(w>>>16)&0xff]&0xff)<<16) |
+               ((SBOX[(w>>>8)&0xff]&0xff)<<8) | (SBOX[w&0xff]&0xff);
+    }
+
+    protected void setKey(byte[] key, int offset) {
+        int[] ek = encryptKeys;
+        for (int i=0; i<4; i++)
+            ek[i] = readInt(key, offset+4*i);
+        int rcon = 1;
+        for (int i=4; i<ek.length; i++) {
+            int temp = ek[i-1];
+            if (i % 4 == 0) {
+                temp = subWord((temp<<8) | (temp>>>24)) ^ (rcon<<24);
+                rcon = xtime(rcon);
+            }
+            ek[i] = ek[i-4] ^ temp;
+        }
+
+        // Equivalent inverse cipher, the middle round keys get InvMixColumns
+        int[] dk = decryptKeys;
+        for (int r=0; r<=ROUNDS; r++) {
+            for (int j=0; j<4; j++) {
+                int w = ek[4*(ROUNDS-r)+j];
+                if (r > 0 && r < ROUNDS) {
+                    w = TD[SBOX[w>>>24]&0xff] ^ rotr(TD[SBOX[(w>>>16)&0xff]&0xff], 8) ^
+                        rotr(TD[SBOX[(w>>>8)&0xff]&0xff], 16) ^ rotr(TD[SBOX[w&0xff]&0xff], 24);
+                }
+                dk[4*r+j] = w;
+            }
+        }
+    }
+
+    public void clear() {
+        for (int i=0; i<encryptKeys.length; i++) {
+            encryptKeys[i] = 0;
+            decryptKeys[i] = 0;
+        }
+    }
+
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        int[] rk = encryptKeys;
+        int s0 = readInt(in, inOffset) ^ rk[0];
+        int s1 = readInt(in, inOffset+4) ^ rk[1];
+        int s2 = readInt(in, inOffset+8) ^ rk[2];
+        int s3 = readInt(in, inOffset+12) ^ rk[3];
+
+        int k = 4;
+        for (int r=1; r<ROUNDS; r++) {
+            int t0 = TE[s0>>>24] ^ rotr(TE[(s1>>>16)&0xff], 8) ^ rotr(TE[(s2>>>8)&0xff], 16) ^ rotr(TE[s3&0xff], 24) ^ rk[k];
+            int t1 = TE[s1>>>24] ^ rotr(TE[(s2>>>16)&0xff], 8) ^ rotr(TE[(s3>>>8)&0xff], 16) ^ rotr(TE[s0&0xff], 24) ^ rk[k+1];
+            int t2 = TE[s2>>>24] ^ rotr(TE[(s3>>>16)&0xff], 8) ^ rotr(TE[(s0>>>8)&0xff], 16) ^ rotr(TE[s1&0xff], 24) ^ rk[k+2];
+            int t3 = TE[s3>>>24] ^ rotr(TE[(s0>>>16)&0xff], 8) ^ rotr(TE[(s1>>>8)&0xff], 16) ^ rotr(TE[s2&0xff], 24) ^ rk[k+3];
+            s0 = t0; s1 = t1; s2 = t2; s3 = t3;
+            k += 4;
+        }
+
+        writeInt(out, outOffset, lastRound(SBOX, s0, s1, s2, s3) ^ rk[k]);
+        writeInt(out, outOffset+4, lastRound(SBOX, s1, s2, s3, s0) ^ rk[k+1]);
+        writeInt(out, outOffset+8, lastRound(SBOX, s2, s3, s0, s1) ^ rk[k+2]);
+        writeInt(out, outOffset+12, lastRound(SBOX, s3, s0, s1, s2) ^ rk[k+3]);
+    }
+
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        int[] rk = decryptKeys;
+        int s0 = readInt(in, inOffset) ^ rk[0];
+        int s1 = readInt(in, inOffset+4) ^ rk[1];
+        int s2 = readInt(in, inOffset+8) ^ rk[2];
+        int s3 = readInt(in, inOffset+12) ^ rk[3];
+
+        int k = 4;
+        for (int r=1; r<ROUNDS; r++) {
+            int t0 = TD[s0>>>24] ^ rotr(TD[(s3>>>16)&0xff], 8) ^ rotr(TD[(s2>>>8)&0xff], 16) ^ rotr(TD[s1&0xff], 24) ^ rk[k];
+            int t1 = TD[s1>>>24] ^ rotr(TD[(s0>>>16)&0xff], 8) ^ rotr(TD[(s3>>>8)&0xff], 16) ^ rotr(TD[s2&0xff], 24) ^ rk[k+1];
+            int t2 = TD[s2>>>24] ^ rotr(TD[(s1>>>16)&0xff], 8) ^ rotr(TD[(s0>>>8)&0xff], 16) ^ rotr(TD[s3&0xff], 24) ^ rk[k+2];
+            int t3 = TD[s3>>>24] ^ rotr(TD[(s2>>>16)&0xff], 8) ^ rotr(TD[(s1>>>8)&0xff], 16) ^ rotr(TD[s0&0xff], 24) ^ rk[k+3];
+            s0 = t0; s1 = t1; s2 = t2; s3 = t3;
+            k += 4;
+        }
+
+        writeInt(out, outOffset, lastRound(INV_SBOX, s0, s3, s2, s1) ^ rk[k]);
+        writeInt(out, outOffset+4, lastRound(INV_SBOX, s1, s0, s3, s2) ^ rk[k+1]);
+        writeInt(out, outOffset+8, lastRound(INV_SBOX, s2, s1, s0, s3) ^ rk[k+2]);
+        writeInt(out, outOffset+12, lastRound(INV_SBOX, s3, s2, s1, s0) ^ rk[k+3]);
+    }
+
+    // Takes the row bytes of the output column from the given words
+    private static int lastRound(byte[] box, int w0, int w1, int w2, int w3) {
+        return ((box[w0>>>24]&0xff)<<24) | ((box[(w1>>>16)&0xff]&0xff)<<16) |
+               ((box[(w2>>>8)&0xff]&0xff)<<8) | (box[w3&0xff]&0xff);
+    }
+}
@@ -23,8 +23,7 @@
 
 package fi.aalto.spothip.crypto;
 
-import fi.aalto.spothip.HipDexUtils;
-import com.sun.spotx.crypto.spec.SecretKeySpec;
+import fi.aalto.spothip.protocol.HipHit;
 
 public class HipDexKeyUtil {
     private byte[] iEncryptionKey;
@@ -55,59 +54,46 @@ public class HipDexKeyUtil {
         return rIntegrityKey;
     }
 
-    public final void generateKeys(byte[] hitI, byte[] hitR, byte[] iarr, byte[] input) throws Exception {
-        if (hitI.length != 16 || hitR.length != 16)
-            throw new Exception("HIT length invalid, must be 128 bits");
+    public final void generateKeys(HipHit hitI, HipHit hitR, byte[] iarr, byte[] input) throws Exception {
         if (iarr.length != 16)
             throw new Exception("I length invalid, must be 128 bits (AES block size)");
 
         AesCmac aesCmac = null;
-        SecretKeySpec iKey = null;
         try {
             aesCmac = new AesCmac();
-            iKey = new SecretKeySpec(iarr, 0, iarr.length, "AES");
         } catch (Exception e) {
             e.printStackTrace();
             return;
         }
 
         // Check which HIT is greater
-        boolean iGreater = (HipDexUtils.compareHits(hitI, hitR) > 0);
+        boolean iGreater = (hitI.compareTo(hitR) > 0);
 
         // Combine the hits to byte array, smaller first
         byte[] hitsCombined = new byte[32];
         if (iGreater) {
-            System.arraycopy(hitR, 0, hitsCombined, 0, 16);
-            System.arraycopy(hitI, 0, hitsCombined, 16, 16);
+            hitR.writeTo(hitsCombined, 0);
+            hitI.writeTo(hitsCombined, 16);
         } else {
-            System.arraycopy(hitI, 0, hitsCombined, 0, 16);
-            System.arraycopy(hitR, 0, hitsCombined, 16, 16);
+            hitI.writeTo(hitsCombined, 0);
+            hitR.writeTo(hitsCombined, 16);
         }
 
         // Perform CKDF extract, results in key data ck
         byte[] extractString = "CKDF-Extract".getBytes();
-        aesCmac.init(iKey);
+        aesCmac.init(iarr);
         aesCmac.updateBlock(input);
         aesCmac.updateBlock(hitsCombined);
         aesCmac.updateBlock(extractString);
         byte[] ckarr = aesCmac.doFinal();
 
-        // Create secret key from the ck data
-        SecretKeySpec ckKey = null;
-        try {
-            ckKey = new SecretKeySpec(ckarr, 0, ckarr.length, "AES");
-        } catch (Exception e) {
-            e.printStackTrace();
-            return;
-        }
-
         // Expand key material from the ck
         byte[] expandString = "CKDF-Expand".getBytes();
         byte[] keymat = new byte[2*iEncryptionKey.length + 2*iIntegrityKey.length];
         int keymatOffset = 0;
         
         byte[] T = new byte[0];
-        aesCmac.init(ckKey);
+        aesCmac.init(ckarr);
         for (int i=1; keymatOffset < keymat.length; i++) {
             aesCmac.updateBlock(T);
             aesCmac.updateBlock(expandString);
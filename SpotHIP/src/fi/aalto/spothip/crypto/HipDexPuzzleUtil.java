@@ -24,21 +24,20 @@
 package fi.aalto.spothip.crypto;
 
 import fi.aalto.spothip.HipDexUtils;
-import com.sun.spot.peripheral.Spot;
-import com.sun.spot.util.IEEEAddress;
-import com.sun.squawk.util.Arrays;
-
-
-import com.sun.spot.security.*;
-import com.sun.spot.security.implementation.*;
-import com.sun.spotx.crypto.spec.SecretKeySpec;
+import fi.aalto.spothip.platform.HipDexPlatform;
+import fi.aalto.spothip.protocol.HipHit;
 
 public class HipDexPuzzleUtil {
-    private static final int RAND_LENGTH = 16; // Defined as CMAC-len
+    public static final int RAND_LENGTH = 16; // Defined as CMAC-len
 
     int complexity;
     int generationCounter = 0;
-    SecretKeySpec[] randoms = new SecretKeySpec[3];
+    byte[][] randoms = new byte[3][];
+
+    // Keyed contexts for the secrets above, and one that gets rekeyed with
+    // the I of each solution, only used with this object locked
+    AesCmac[] randomMacs = new AesCmac[3];
+    AesCmac solutionMac = null;
 
     public HipDexPuzzleUtil() {
         this(8);
@@ -51,112 +50,140 @@ public class HipDexPuzzleUtil {
         regenerateRandom();
     }
 
-    public int getComplexity() {
+    public synchronized int getComplexity() {
         return complexity;
     }
 
-    public int getGenerationCounter() {
+    public synchronized int getGenerationCounter() {
         return generationCounter;
     }
 
-    public void regenerateRandom() {
+    /**
+     * Used for the puzzles handed out from now on. The complexity is part of
+     * the MAC that gives each I, so puzzles handed out before keep theirs
+     * and the secrets are only rotated by regenerateRandom.
+     */
+    public synchronized void setComplexity(int puzzleComplexity) {
+        complexity = puzzleComplexity;
+    }
+
+    public synchronized void regenerateRandom() {
         byte[] randomArray = new byte[RAND_LENGTH];
 
         // Copy old randoms into safe
         for (int i=randoms.length-1; i>0; i--) {
             randoms[i] = randoms[i-1];
+            randomMacs[i] = randomMacs[i-1];
         }
 
         try {
-            SecureRandom secureRandom = SecureRandom.getInstance(SecureRandom.ALG_SECURE_RANDOM);
-            secureRandom.generateData(randomArray, 0, randomArray.length);
-            randoms[0] = new SecretKeySpec(randomArray, 0, randomArray.length, "AES");
+            HipDexPlatform.get().generateRandom(randomArray, 0, randomArray.length);
+            randoms[0] = randomArray;
+            randomMacs[0] = new AesCmac();
+            randomMacs[0].init(randomArray);
             generationCounter++;
-        } catch (NoSuchAlgorithmException nsae) {}
+        }
+        catch (HipDexCryptoException hce) {}
     }
 
-    public byte[] calculateI(byte[] hitI, byte[] hitR, byte[] localAddress, byte[] remoteAddress) {
-        AesCmac aesCmac = null;
-        try {
-            aesCmac = new AesCmac();
-            aesCmac.init(randoms[0]);
-        }
-        catch (NoSuchAlgorithmException nsae) {}
-        catch (InvalidKeyException ike) {}
+    public synchronized byte[] calculateI(HipHit hitI, HipHit hitR, byte[] localAddress, byte[] remoteAddress) {
+        return calculateI(randomMacs[0], complexity, hitI, hitR, localAddress, remoteAddress);
+    }
+
+    public synchronized byte[] calculateI(int puzzleComplexity, HipHit hitI, HipHit hitR, byte[] localAddress, byte[] remoteAddress) {
+        return calculateI(randomMacs[0], puzzleComplexity, hitI, hitR, localAddress, remoteAddress);
+    }
 
-        aesCmac.updateBlock(hitI);
-        aesCmac.updateBlock(hitR);
+    private static byte[] calculateI(AesCmac aesCmac, int puzzleComplexity, HipHit hitI, HipHit hitR, byte[] localAddress, byte[] remoteAddress) {
+        byte[] hits = new byte[1+2*HipHit.LENGTH];
+        hits[0] = (byte)puzzleComplexity;
+        hitI.writeTo(hits, 1);
+        hitR.writeTo(hits, 1+HipHit.LENGTH);
+        aesCmac.reset();
+        aesCmac.update(hits, 0, hits.length);
         aesCmac.updateBlock(remoteAddress);
         aesCmac.updateBlock(localAddress);
         return aesCmac.doFinal();
     }
 
-    public static byte[] solvePuzzle(byte[] theirI, byte[] hitI, byte[] hitR, int complexity) {
+    public static byte[] solvePuzzle(byte[] theirI, HipHit hitI, HipHit hitR, int complexity) {
         AesCmac aesCmac = null;
-        SecureRandom secureRandom = null;
         try {
             // FIXME: standard says two things about key in two places
             aesCmac = new AesCmac();
-            aesCmac.init(new SecretKeySpec(theirI, 0, theirI.length, "AES"));
-            secureRandom = SecureRandom.getInstance(SecureRandom.ALG_PSEUDO_RANDOM);
+            aesCmac.init(theirI);
         }
-        catch (NoSuchAlgorithmException nsae) {}
-        catch (InvalidKeyException ike) {}
+        catch (HipDexCryptoException hce) {}
 
+        // Nothing is allocated inside the loop
+        byte[] hits = new byte[2*HipHit.LENGTH];
+        hitI.writeTo(hits, 0);
+        hitR.writeTo(hits, HipHit.LENGTH);
         byte[] solution = new byte[RAND_LENGTH];
+        byte[] verify = new byte[RAND_LENGTH];
+
+        // Counting up from a random start is as good as drawing each J
+        HipDexPlatform.get().generateRandom(solution, 0, solution.length);
         while (true) {
-            secureRandom.generateData(solution, 0, solution.length);
-            aesCmac.updateBlock(hitI);
-            aesCmac.updateBlock(hitR);
-            aesCmac.updateBlock(solution);
-            byte[] verify = HipDexUtils.LTrunc(aesCmac.doFinal(), complexity);
-
-            boolean verifyOk = true;
-            for (int i=0; i<verify.length; i++) {
-                if (verify[i] != 0) {
-                    verifyOk = false;
-                    break;
-                }
-            }
-            
-            if (verifyOk)
+            aesCmac.update(hits, 0, HipHit.LENGTH);
+            aesCmac.update(hits, HipHit.LENGTH, HipHit.LENGTH);
+            aesCmac.update(solution, 0, solution.length);
+            aesCmac.doFinal(verify, 0);
+
+            if (leadingBitsZero(verify, complexity))
                 break;
+            increment(solution);
         }
         return solution;
     }
 
-    public boolean verifyPuzzle(byte[] theirI, byte[] theirSolution, byte[] hitI, byte[] hitR, byte[] localAddress, byte[] remoteAddress) {
-        byte[] ourI = calculateI(hitI, hitR, localAddress, remoteAddress);
-        if (!Arrays.equals(ourI, theirI))
+    private static void increment(byte[] value) {
+        for (int i=value.length-1; i>=0; i--) {
+            if (++value[i] != 0)
+                break;
+        }
+    }
+
+    // Same as checking that LTrunc of the value is all zeroes
+    private static boolean leadingBitsZero(byte[] value, int bits) {
+        int i = 0;
+        for (; bits >= 8; bits -= 8) {
+            if (value[i++] != 0)
+                return false;
+        }
+        return bits == 0 || (value[i] & (0xff00>>bits) & 0xff) == 0;
+    }
+
+    // Finds the generation that handed out the I with the complexity the
+    // solution claims, which only matches if it was the one handed out
+    public synchronized boolean verifyPuzzle(byte[] theirI, byte[] theirSolution, int theirComplexity, HipHit hitI, HipHit hitR, byte[] localAddress, byte[] remoteAddress) {
+        if (theirComplexity < 0 || theirComplexity > 8*RAND_LENGTH)
             return false;
 
         for (int i=0; i<randoms.length; i++) {
             if (randoms[i] == null)
                 continue;
-            
-            AesCmac aesCmac = null;
+
+            byte[] ourI = calculateI(randomMacs[i], theirComplexity, hitI, hitR, localAddress, remoteAddress);
+            if (!HipDexUtils.equals(ourI, theirI))
+                continue;
+
+            AesCmac aesCmac = solutionMac;
             try {
                 // FIXME: standard says two things about key in two places
-                aesCmac = new AesCmac();
-                aesCmac.init(new SecretKeySpec(ourI, 0, ourI.length, "AES"));
-            }
-            catch (NoSuchAlgorithmException nsae) {}
-            catch (InvalidKeyException ike) {}
-            
-            aesCmac.updateBlock(hitI);
-            aesCmac.updateBlock(hitR);
-            aesCmac.updateBlock(theirSolution);
-            byte[] verify = HipDexUtils.LTrunc(aesCmac.doFinal(), complexity);
-            
-            boolean verifyOk = true;
-            for (int j=0; j<verify.length; j++) {
-                if (verify[j] != 0) {
-                    verifyOk = false;
-                    break;
-                }
+                if (aesCmac == null)
+                    aesCmac = solutionMac = new AesCmac();
+                aesCmac.init(ourI);
             }
-            if (verifyOk)
-                return true;
+            catch (HipDexCryptoException hce) { return false; }
+
+            byte[] hits = new byte[2*HipHit.LENGTH];
+            hitI.writeTo(hits, 0);
+            hitR.writeTo(hits, HipHit.LENGTH);
+            aesCmac.update(hits, 0, HipHit.LENGTH);
+            aesCmac.update(hits, HipHit.LENGTH, HipHit.LENGTH);
+            aesCmac.update(theirSolution, 0, theirSolution.length);
+            return leadingBitsZero(aesCmac.doFinal(), theirComplexity);
         }
         return false;
     }
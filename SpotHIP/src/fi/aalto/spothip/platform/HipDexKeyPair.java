@@ -0,0 +1,53 @@
+//
+// HipDexKeyPair - Host identity key pair created by a platform
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform;
+
+/**
+ * The public key is kept as the uncompressed point that goes into the
+ * HOST_ID, the private key is whatever the platform needs for ECDH and is
+ * never looked at outside of it.
+ */
+public class HipDexKeyPair {
+    private int curve;
+    private byte[] publicKey;
+    private Object privateKey;
+
+    public HipDexKeyPair(int keyCurve, byte[] encodedPublicKey, Object platformPrivateKey) {
+        curve = keyCurve;
+        publicKey = encodedPublicKey;
+        privateKey = platformPrivateKey;
+    }
+
+    public int getCurve() {
+        return curve;
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    public Object getPrivateKey() {
+        return privateKey;
+    }
+}
@@ -0,0 +1,73 @@
+//
+// HipDexPlatform - Holder of the platform the engine runs on
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform;
+
+/**
+ * Unless something has been installed, the first of the default platforms
+ * that is part of the build is loaded. Each build only ships one of them.
+ */
+public final class HipDexPlatform {
+    private static final String[] DEFAULT_PLATFORMS = {
+        "fi.aalto.spothip.platform.spot.SpotPlatform",
+        "fi.aalto.spothip.platform.jvm.JcaPlatform"
+    };
+
+    private static IHipDexPlatform platform = null;
+
+    private HipDexPlatform() {}
+
+    public static synchronized void install(IHipDexPlatform newPlatform) {
+        platform = newPlatform;
+    }
+
+    public static synchronized IHipDexPlatform get() {
+        if (platform != null)
+            return platform;
+
+        for (int i=0; i<DEFAULT_PLATFORMS.length && platform == null; i++) {
+            try {
+                platform = (IHipDexPlatform)Class.forName(DEFAULT_PLATFORMS[i]).newInstance();
+            }
+            catch (ClassNotFoundException cnfe) {}
+            catch (InstantiationException ie) {}
+            catch (IllegalAccessException iae) {}
+        }
+        if (platform == null)
+            throw new IllegalStateException("No HIP platform available");
+        return platform;
+    }
+
+    /** Length of one coordinate, zero for unknown curves. */
+    public static int getCoordinateLength(int curve) {
+        switch (curve) {
+            case IHipDexPlatform.CURVE_SECP160R1:
+                return 20;
+            case IHipDexPlatform.CURVE_SECP192R1:
+                return 24;
+            case IHipDexPlatform.CURVE_SECP224R1:
+                return 28;
+        }
+        return 0;
+    }
+}
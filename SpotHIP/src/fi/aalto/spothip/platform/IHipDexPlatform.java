@@ -0,0 +1,67 @@
+//
+// IHipDexPlatform
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform;
+
+import fi.aalto.spothip.crypto.AesEngine;
+import fi.aalto.spothip.crypto.HipDexCryptoException;
+import fi.aalto.spothip.transport.IHipDexTransport;
+
+/**
+ * Everything the protocol needs from the device it runs on. Public keys
+ * are uncompressed points, 0x04 followed by X and Y, and the curves are
+ * identified with the values used in the HOST_ID parameter.
+ */
+public interface IHipDexPlatform {
+    public static final int CURVE_SECP160R1 = 1;
+    public static final int CURVE_SECP192R1 = 2;
+    public static final int CURVE_SECP224R1 = 3;
+
+    public String getName();
+
+    public HipDexKeyPair generateKeyPair(int curve) throws HipDexCryptoException;
+
+    /**
+     * Checks that the point is on the curve and returns a handle that is
+     * only meaningful to generateSecret of the same platform.
+     */
+    public Object decodePublicKey(int curve, byte[] data, int offset, int length) throws HipDexCryptoException;
+
+    /**
+     * Writes the X coordinate of the shared point and returns its length.
+     */
+    public int generateSecret(HipDexKeyPair ourKeys, Object theirPublicKey, byte[] secret, int offset) throws HipDexCryptoException;
+
+    /** Backend used for AesEngine.BACKEND_PLATFORM. */
+    public AesEngine createAesEngine() throws HipDexCryptoException;
+
+    /** AesEngine backend for keys when none has been set explicitly. */
+    public int getDefaultAesBackend();
+
+    /** Cryptographically strong, must be safe to call from several threads. */
+    public void generateRandom(byte[] buffer, int offset, int length);
+
+    public long getIeeeAddress();
+
+    public IHipDexTransport createTransport(int port);
+}
@@ -0,0 +1,123 @@
+//
+// SpotAesEngine - AES-128 through the SPOT Cipher
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.spot;
+
+import fi.aalto.spothip.crypto.*;
+
+import com.sun.spot.security.*;
+import com.sun.spotx.crypto.*;
+import com.sun.spotx.crypto.spec.*;
+
+/**
+ * Single blocks go through CBC ciphers that are only initialized with the
+ * key, the chaining is undone by hand. Whole CBC runs are left to the
+ * provider as before.
+ */
+public final class SpotAesEngine extends AesEngine {
+    private static final byte[] ZERO_IV = new byte[BLOCK_SIZE];
+
+    private Cipher encryptCipher;
+    private Cipher decryptCipher;
+    private Cipher cbcCipher;
+    private SecretKeySpec keySpec = null;
+
+    // Last ciphertext out of the encrypting and into the decrypting cipher
+    private byte[] encryptChain = new byte[BLOCK_SIZE];
+    private byte[] decryptChain = new byte[BLOCK_SIZE];
+    private byte[] block = new byte[BLOCK_SIZE];
+
+    public SpotAesEngine() throws HipDexCryptoException {
+        try {
+            encryptCipher = Cipher.getInstance("AES/CBC/NOPADDING");
+            decryptCipher = Cipher.getInstance("AES/CBC/NOPADDING");
+            cbcCipher = Cipher.getInstance("AES/CBC/NOPADDING");
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+    }
+
+    protected void setKey(byte[] key, int offset) throws HipDexCryptoException {
+        keySpec = new SecretKeySpec(key, offset, KEY_LENGTH, "AES");
+        try {
+            encryptCipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(ZERO_IV, 0, BLOCK_SIZE));
+            decryptCipher.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(ZERO_IV, 0, BLOCK_SIZE));
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+        for (int i=0; i<BLOCK_SIZE; i++) {
+            encryptChain[i] = 0;
+            decryptChain[i] = 0;
+        }
+    }
+
+    public void clear() {
+        keySpec = null;
+        for (int i=0; i<BLOCK_SIZE; i++) {
+            encryptChain[i] = 0;
+            decryptChain[i] = 0;
+            block[i] = 0;
+        }
+    }
+
+    public void encryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        for (int i=0; i<BLOCK_SIZE; i++)
+            block[i] = (byte) (in[inOffset+i] ^ encryptChain[i]);
+        try {
+            encryptCipher.update(block, 0, BLOCK_SIZE, encryptChain, 0);
+        } catch (ShortBufferException sbe) {}
+        System.arraycopy(encryptChain, 0, out, outOffset, BLOCK_SIZE);
+    }
+
+    public void decryptBlock(byte[] in, int inOffset, byte[] out, int outOffset) {
+        System.arraycopy(in, inOffset, block, 0, BLOCK_SIZE);
+        try {
+            decryptCipher.update(block, 0, BLOCK_SIZE, out, outOffset);
+        } catch (ShortBufferException sbe) {}
+        for (int i=0; i<BLOCK_SIZE; i++)
+            out[outOffset+i] ^= decryptChain[i];
+
+        byte[] tmp = decryptChain;
+        decryptChain = block;
+        block = tmp;
+    }
+
+    public void encryptCbc(byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        runCbc(Cipher.ENCRYPT_MODE, iv, ivOffset, in, inOffset, length, out, outOffset);
+    }
+
+    public void decryptCbc(byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        runCbc(Cipher.DECRYPT_MODE, iv, ivOffset, in, inOffset, length, out, outOffset);
+    }
+
+    private void runCbc(int mode, byte[] iv, int ivOffset, byte[] in, int inOffset, int length, byte[] out, int outOffset) {
+        if (length % BLOCK_SIZE != 0)
+            throw new IllegalArgumentException("CBC length must be a multiple of " + BLOCK_SIZE);
+        try {
+            cbcCipher.init(mode, keySpec, new IvParameterSpec(iv, ivOffset, BLOCK_SIZE));
+            cbcCipher.doFinal(in, inOffset, length, out, outOffset);
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(gse.getMessage());
+        }
+    }
+}
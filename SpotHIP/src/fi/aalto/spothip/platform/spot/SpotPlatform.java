@@ -0,0 +1,120 @@
+//
+// SpotPlatform - Crypto, randomness and radio of the Sun SPOT libraries
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.platform.spot;
+
+import fi.aalto.spothip.crypto.*;
+import fi.aalto.spothip.platform.*;
+import fi.aalto.spothip.transport.*;
+
+import com.sun.spot.peripheral.Spot;
+import com.sun.spot.security.*;
+import com.sun.spot.security.implementation.*;
+import com.sun.spotx.crypto.implementation.ECDHKeyAgreement;
+
+public class SpotPlatform implements IHipDexPlatform {
+    private SecureRandom secureRandom = null;
+
+    public String getName() {
+        return "Sun SPOT";
+    }
+
+    public HipDexKeyPair generateKeyPair(int curve) throws HipDexCryptoException {
+        int curveId = getCurveId(curve);
+        try {
+            ECPrivateKeyImpl privateKey = new ECPrivateKeyImpl(curveId);
+            ECPublicKeyImpl publicKey = new ECPublicKeyImpl(curveId);
+            ECKeyImpl.genKeyPair(publicKey, privateKey);
+
+            byte[] encoded = new byte[1+2*HipDexPlatform.getCoordinateLength(curve)];
+            publicKey.getW(encoded, 0);
+            return new HipDexKeyPair(curve, encoded, privateKey);
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+    }
+
+    // Setting W validates the point
+    public Object decodePublicKey(int curve, byte[] data, int offset, int length) throws HipDexCryptoException {
+        ECPublicKeyImpl publicKey = new ECPublicKeyImpl(getCurveId(curve));
+        try {
+            publicKey.setW(data, offset, length);
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+        return publicKey;
+    }
+
+    public int generateSecret(HipDexKeyPair ourKeys, Object theirPublicKey, byte[] secret, int offset) throws HipDexCryptoException {
+        ECPublicKeyImpl publicKey = (ECPublicKeyImpl)theirPublicKey;
+        byte[] encoded = new byte[1+2*HipDexPlatform.getCoordinateLength(ourKeys.getCurve())];
+        try {
+            publicKey.getW(encoded, 0);
+            ECDHKeyAgreement keyAgreement = new ECDHKeyAgreement();
+            keyAgreement.init((ECPrivateKeyImpl)ourKeys.getPrivateKey());
+            return keyAgreement.generateSecret(encoded, 0, encoded.length, secret, offset);
+        } catch (GeneralSecurityException gse) {
+            throw new HipDexCryptoException(gse.getMessage());
+        }
+    }
+
+    public AesEngine createAesEngine() throws HipDexCryptoException {
+        return new SpotAesEngine();
+    }
+
+    // The bitsliced engine costs over 20 times as much per block here
+    public int getDefaultAesBackend() {
+        return AesEngine.BACKEND_PLATFORM;
+    }
+
+    public synchronized void generateRandom(byte[] buffer, int offset, int length) {
+        if (secureRandom == null) {
+            try {
+                secureRandom = SecureRandom.getInstance(SecureRandom.ALG_SECURE_RANDOM);
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException("Secure random not available");
+            }
+        }
+        secureRandom.generateData(buffer, offset, length);
+    }
+
+    public long getIeeeAddress() {
+        return Spot.getInstance().getRadioPolicyManager().getIEEEAddress();
+    }
+
+    public IHipDexTransport createTransport(int port) {
+        return new RadiogramTransport(port);
+    }
+
+    private static int getCurveId(int curve) throws HipDexCryptoException {
+        switch (curve) {
+            case CURVE_SECP160R1:
+                return ECKeyImpl.SECP160R1;
+            case CURVE_SECP192R1:
+                return ECKeyImpl.SECP192R1;
+            case CURVE_SECP224R1:
+                return ECKeyImpl.SECP224R1;
+        }
+        throw new HipDexCryptoException("Unknown curve " + curve);
+    }
+}
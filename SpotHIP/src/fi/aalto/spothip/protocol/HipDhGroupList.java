@@ -71,12 +71,13 @@ public class HipDhGroupList extends HipParameter {
         return list.length;
     }
 
-    public byte[] getContents() {
-        return list;
+    protected void writeContents(byte[] buffer, int offset) {
+        System.arraycopy(list, 0, buffer, offset, list.length);
     }
 
-    protected boolean parseContent(byte[] content) {
-        list = content;
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        list = new byte[length];
+        System.arraycopy(data, offset, list, 0, length);
         return true;
     }
 }
@@ -34,12 +34,13 @@ public class HipEchoRequestUnsigned extends HipParameter {
         return opaque.length;
     }
 
-    public byte[] getContents() {
-        return opaque;
+    protected void writeContents(byte[] buffer, int offset) {
+        System.arraycopy(opaque, 0, buffer, offset, opaque.length);
     }
 
-    protected boolean parseContent(byte[] content) {
-        opaque = content;
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        opaque = new byte[length];
+        System.arraycopy(data, offset, opaque, 0, length);
         return true;
     }
 }
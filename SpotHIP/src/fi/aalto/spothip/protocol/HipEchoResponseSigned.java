@@ -0,0 +1,58 @@
+//
+// HipEchoResponseSigned - ECHO_RESPONSE_SIGNED parameter
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2011, 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.protocol;
+
+public class HipEchoResponseSigned extends HipParameter {
+    private byte[] opaque = new byte[0];
+
+    protected HipEchoResponseSigned() {
+    }
+
+    public HipEchoResponseSigned(byte[] opaqueData) {
+        opaque = new byte[opaqueData.length];
+        System.arraycopy(opaqueData, 0, opaque, 0, opaqueData.length);
+    }
+
+    public byte[] getOpaque() {
+        return opaque;
+    }
+
+    public short getType() {
+        return HipParameter.ECHO_RESPONSE_SIGNED;
+    }
+
+    public int getContentLength() {
+        return opaque.length;
+    }
+
+    protected void writeContents(byte[] buffer, int offset) {
+        System.arraycopy(opaque, 0, buffer, offset, opaque.length);
+    }
+
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        opaque = new byte[length];
+        System.arraycopy(data, offset, opaque, 0, length);
+        return true;
+    }
+}
@@ -37,17 +37,20 @@ public class HipEncrypted extends HipParameter {
         return 4+iv.length+encryptedData.length;
     }
 
-    public byte[] getContents() {
-        byte[] ret = new byte[getContentLength()];
-        System.arraycopy(iv, 0, ret, 4, iv.length);
-        System.arraycopy(encryptedData, 0, ret, 4+iv.length, encryptedData.length);
-        return ret;
+    protected void writeContents(byte[] buffer, int offset) {
+        for (int i=0; i<4; i++)
+            buffer[offset+i] = 0;
+        System.arraycopy(iv, 0, buffer, offset+4, iv.length);
+        System.arraycopy(encryptedData, 0, buffer, offset+4+iv.length, encryptedData.length);
     }
 
-    protected boolean parseContent(byte[] content) {
-        System.arraycopy(content, 4, iv, 0, IV_LENGTH);
-        encryptedData = new byte[content.length-4-IV_LENGTH];
-        System.arraycopy(content, 4+IV_LENGTH, encryptedData, 0, encryptedData.length);
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        if (length < 4+IV_LENGTH)
+            return false;
+
+        System.arraycopy(data, offset+4, iv, 0, IV_LENGTH);
+        encryptedData = new byte[length-4-IV_LENGTH];
+        System.arraycopy(data, offset+4+IV_LENGTH, encryptedData, 0, encryptedData.length);
         return true;
     }
 }
@@ -40,14 +40,13 @@ public class HipEncryptedKey extends HipParameter {
         return encryptedValue.length;
     }
 
-    public byte[] getContents() {
-        byte[] ret = new byte[getContentLength()];
-        System.arraycopy(encryptedValue, 0, ret, 0, encryptedValue.length);
-        return ret;
+    protected void writeContents(byte[] buffer, int offset) {
+        System.arraycopy(encryptedValue, 0, buffer, offset, encryptedValue.length);
     }
 
-    protected boolean parseContent(byte[] content) {
-        encryptedValue = content;
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        encryptedValue = new byte[length];
+        System.arraycopy(data, offset, encryptedValue, 0, length);
         return true;
     }
 }
@@ -0,0 +1,85 @@
+//
+// HipEspInfo - ESP_INFO parameter
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.protocol;
+
+public class HipEspInfo extends HipParameter {
+    private int keymatIndex = 0;
+    private int oldSpi = 0;
+    private int newSpi = 0;
+
+    protected HipEspInfo() {
+    }
+
+    public HipEspInfo(int oldSpiValue, int newSpiValue) {
+        oldSpi = oldSpiValue;
+        newSpi = newSpiValue;
+    }
+
+    public int getOldSpi() {
+        return oldSpi;
+    }
+
+    public int getNewSpi() {
+        return newSpi;
+    }
+
+    public short getType() {
+        return HipParameter.ESP_INFO;
+    }
+
+    public int getContentLength() {
+        return 12;
+    }
+
+    protected void writeContents(byte[] buffer, int offset) {
+        buffer[offset] = 0;
+        buffer[offset+1] = 0;
+        buffer[offset+2] = (byte) ((keymatIndex>>8)&0xff);
+        buffer[offset+3] = (byte) (keymatIndex&0xff);
+        writeInt(buffer, offset+4, oldSpi);
+        writeInt(buffer, offset+8, newSpi);
+    }
+
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        if (length < 12)
+            return false;
+
+        keymatIndex = ((data[offset+2]&0xff)<<8)|(data[offset+3]&0xff);
+        oldSpi = readInt(data, offset+4);
+        newSpi = readInt(data, offset+8);
+        return true;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) ((value>>24)&0xff);
+        buffer[offset+1] = (byte) ((value>>16)&0xff);
+        buffer[offset+2] = (byte) ((value>>8)&0xff);
+        buffer[offset+3] = (byte) (value&0xff);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset]&0xff)<<24)|((data[offset+1]&0xff)<<16)|
+               ((data[offset+2]&0xff)<<8)|(data[offset+3]&0xff);
+    }
+}
@@ -36,11 +36,11 @@ public class HipHipCipher extends HipParameter {
         return 1;
     }
 
-    public byte[] getContents() {
-        return new byte[] { AES_128_CBC };
+    protected void writeContents(byte[] buffer, int offset) {
+        buffer[offset] = AES_128_CBC;
     }
 
-    protected boolean parseContent(byte[] content) {
+    protected boolean parseContent(byte[] data, int offset, int length) {
         return true;
     }
 }
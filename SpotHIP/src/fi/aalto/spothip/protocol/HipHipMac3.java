@@ -24,7 +24,10 @@
 package fi.aalto.spothip.protocol;
 
 public class HipHipMac3 extends HipParameter {
-    private byte[] cmac = new byte[0];
+    public static final int LENGTH = 16;
+
+    // Zeroes until the packet is written with a CMAC context
+    private byte[] cmac = new byte[LENGTH];
 
     public void setCmac(byte[] newCmac) {
         cmac = new byte[newCmac.length];
@@ -39,12 +42,13 @@ public class HipHipMac3 extends HipParameter {
         return cmac.length;
     }
 
-    public byte[] getContents() {
-        return cmac;
+    protected void writeContents(byte[] buffer, int offset) {
+        System.arraycopy(cmac, 0, buffer, offset, cmac.length);
     }
 
-    protected boolean parseContent(byte[] content) {
-        cmac = content;
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        cmac = new byte[length];
+        System.arraycopy(data, offset, cmac, 0, length);
         return true;
     }
 }
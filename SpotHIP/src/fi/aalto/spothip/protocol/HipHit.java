@@ -0,0 +1,120 @@
+//
+// HipHit - Immutable Host Identity Tag
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.protocol;
+
+public final class HipHit {
+    public static final int LENGTH = 16;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // Flips the sign bit of every byte except the first one, comparing the
+    // flipped longs as signed values then orders the HITs byte by byte with
+    // signed bytes, which is the ordering the HIT comparison has always used
+    private static final long COMPARE_MASK = 0x0080808080808080L;
+
+    private final long high;
+    private final long low;
+    private final int hash;
+
+    public HipHit(byte[] data) {
+        this(data, 0);
+    }
+
+    public HipHit(byte[] data, int offset) {
+        if (data.length-offset < LENGTH)
+            throw new IllegalArgumentException("HIT length is not correct");
+        high = readLong(data, offset);
+        low = readLong(data, offset+8);
+        hash = hash(high, low);
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long ret = 0;
+        for (int i=0; i<8; i++) {
+            ret = (ret<<8) | (data[offset+i]&0xff);
+        }
+        return ret;
+    }
+
+    private static int hash(long high, long low) {
+        long mixed = high ^ (low*0x9e3779b97f4a7c15L);
+        int h = (int)(mixed ^ (mixed>>>32));
+        return h ^ (h>>>16);
+    }
+
+    /**
+     * Returns the hash code the HIT stored at the given offset would have,
+     * without constructing a HipHit for it.
+     */
+    public static int hashCode(byte[] data, int offset) {
+        return hash(readLong(data, offset), readLong(data, offset+8));
+    }
+
+    public boolean equals(byte[] data, int offset) {
+        return high == readLong(data, offset) && low == readLong(data, offset+8);
+    }
+
+    public boolean equals(Object object) {
+        if (!(object instanceof HipHit))
+            return false;
+        HipHit other = (HipHit)object;
+        return high == other.high && low == other.low;
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    public int compareTo(HipHit other) {
+        if (high != other.high)
+            return ((high^COMPARE_MASK) < (other.high^COMPARE_MASK)) ? -1 : 1;
+        if (low != other.low)
+            return ((low^COMPARE_MASK) < (other.low^COMPARE_MASK)) ? -1 : 1;
+        return 0;
+    }
+
+    public void writeTo(byte[] data, int offset) {
+        for (int i=0; i<8; i++) {
+            data[offset+i] = (byte)(high>>>(56-8*i));
+            data[offset+8+i] = (byte)(low>>>(56-8*i));
+        }
+    }
+
+    public byte[] toByteArray() {
+        byte[] ret = new byte[LENGTH];
+        writeTo(ret, 0);
+        return ret;
+    }
+
+    public String toString() {
+        StringBuffer ret = new StringBuffer(2*LENGTH);
+        for (int i=60; i>=0; i-=4) {
+            ret.append(HEX_DIGITS[(int)(high>>>i)&0x0f]);
+        }
+        for (int i=60; i>=0; i-=4) {
+            ret.append(HEX_DIGITS[(int)(low>>>i)&0x0f]);
+        }
+        return ret.toString();
+    }
+}
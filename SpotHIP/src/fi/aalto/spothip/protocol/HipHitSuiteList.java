@@ -34,11 +34,11 @@ public class HipHitSuiteList extends HipParameter {
         return 1;
     }
 
-    public byte[] getContents() {
-        return new byte[] { ECDH_DEX };
+    protected void writeContents(byte[] buffer, int offset) {
+        buffer[offset] = ECDH_DEX;
     }
 
-    protected boolean parseContent(byte[] content) {
+    protected boolean parseContent(byte[] data, int offset, int length) {
         return true;
     }
 }
@@ -23,11 +23,8 @@
 
 package fi.aalto.spothip.protocol;
 
+import fi.aalto.spothip.HipDexLog;
 import fi.aalto.spothip.crypto.AesCmac;
-import fi.aalto.spothip.HipDexUtils;
-
-import com.sun.spot.security.*;
-import com.sun.spotx.crypto.spec.SecretKeySpec;
 
 import java.util.Vector;
 
@@ -50,34 +47,77 @@ public abstract class HipPacket {
     private byte hipVersion;
     private short controls;
 
-    private byte[] senderHit = new byte[16];
-    private byte[] receiverHit = new byte[16];
+    private HipHit senderHit = null;
+    private HipHit receiverHit = null;
 
+    // Parameters added to this packet, after the ones in the view if any
     private Vector hipParameters = new Vector();
 
+    // When parsed, the packet is a view over the received buffer and its
+    // parameters are only decoded when they are asked for
+    private byte[] viewData = null;
+    private int[] tlvOffsets = null;
+    private HipParameter[] decodedParameters = null;
+    private int tlvCount = 0;
+    private int viewOffset = 0;
+    private int viewLength = 0;
+
+    private AesCmac macContext = null;
+
     protected HipPacket(byte type) {
         nextHeader = IPPROTO_NONE;
         packetType = type;
         hipVersion = 2;
     }
 
+    private static HipPacket newPacket(byte type) {
+        switch (type) {
+            case HipPacket.TYPE_I1:
+                return new HipPacketI1();
+            case HipPacket.TYPE_R1:
+                return new HipPacketR1();
+            case HipPacket.TYPE_I2:
+                return new HipPacketI2();
+            case HipPacket.TYPE_R2:
+                return new HipPacketR2();
+            case HipPacket.TYPE_CLOSE:
+                return new HipPacketClose();
+            case HipPacket.TYPE_CLOSE_ACK:
+                return new HipPacketCloseAck();
+        }
+        return null;
+    }
+
+    public static boolean isSupportedType(byte type) {
+        switch (type) {
+            case HipPacket.TYPE_I1:
+            case HipPacket.TYPE_R1:
+            case HipPacket.TYPE_I2:
+            case HipPacket.TYPE_R2:
+            case HipPacket.TYPE_CLOSE:
+            case HipPacket.TYPE_CLOSE_ACK:
+                return true;
+        }
+        return false;
+    }
+
     public byte getType() {
         return packetType;
     }
 
-    public void setSenderHit(byte[] hit) {
-        System.arraycopy(hit, 0, senderHit, 0, senderHit.length);
+    public void setSenderHit(HipHit hit) {
+        senderHit = hit;
     }
 
-    public byte[] getSenderHit() {
+    public HipHit getSenderHit() {
         return senderHit;
     }
 
-    public void setReceiverHit(byte[] hit) {
-        System.arraycopy(hit, 0, receiverHit, 0, receiverHit.length);
+    public void setReceiverHit(HipHit hit) {
+        receiverHit = hit;
     }
 
-    public byte[] getReceiverHit() {
+    public HipHit getReceiverHit() {
         return receiverHit;
     }
 
@@ -85,124 +125,218 @@ public abstract class HipPacket {
         hipParameters.addElement(parameter);
     }
 
-    private byte[] calculateCmac(byte[] cmacKey) {
-        int parametersLength = 0;
-        for (int i=0; i<hipParameters.size(); i++) {
-            HipParameter param = (HipParameter)hipParameters.elementAt(i);
-            if (param.getType() >= HipParameter.HIP_MAC_3)
-                continue;
+    private int getParameterCount() {
+        return tlvCount + hipParameters.size();
+    }
 
-            // RFC5201-bis Section 5.2.1. TLV Format
-            int Length = param.getContentLength();
-            parametersLength += 11 + Length - (Length + 3) % 8;
-        }
-        if (parametersLength > 2008) {
-            // TODO: Too large parameters length, should fail
+    private short getParameterType(int index) {
+        if (index >= tlvCount)
+            return getParameterAt(index).getType();
+        int offset = tlvOffsets[index];
+        return (short)(((viewData[offset]&0xff)<<8)|(viewData[offset+1]&0xff));
+    }
+
+    private int getParameterTotalLength(int index) {
+        if (index >= tlvCount || decodedParameters[index] != null)
+            return getParameterAt(index).getTotalLength();
+        return getTlvTotalLength(viewData, tlvOffsets[index]);
+    }
+
+    private HipParameter getParameterAt(int index) {
+        if (index >= tlvCount)
+            return (HipParameter)hipParameters.elementAt(index-tlvCount);
+
+        if (decodedParameters[index] == null) {
+            int offset = tlvOffsets[index];
+            int length = ((viewData[offset+2]&0xff)<<8)|(viewData[offset+3]&0xff);
+            decodedParameters[index] = HipParameter.parse(getParameterType(index), viewData, offset+4, length);
         }
+        return decodedParameters[index];
+    }
+
+    // Untouched parameters of a view are copied as they were received
+    private int writeParameterTo(int index, byte[] buffer, int offset) {
+        if (index >= tlvCount || decodedParameters[index] != null)
+            return getParameterAt(index).writeTo(buffer, offset);
+
+        int totalLength = getTlvTotalLength(viewData, tlvOffsets[index]);
+        System.arraycopy(viewData, tlvOffsets[index], buffer, offset, totalLength);
+        return totalLength;
+    }
+
+    private static int getTlvTotalLength(byte[] data, int offset) {
+        int length = ((data[offset+2]&0xff)<<8)|(data[offset+3]&0xff);
+        return 11 + length - (length + 3) % 8;
+    }
 
-        AesCmac aesCmac = null;
-         try {
-            SecretKeySpec keySpec = new SecretKeySpec(cmacKey, 0, cmacKey.length, "AES");
-            aesCmac = new AesCmac();
-            aesCmac.init(keySpec);
+    private static AesCmac createCmac(byte[] cmacKey) {
+        try {
+            AesCmac aesCmac = new AesCmac();
+            aesCmac.init(cmacKey);
+            return aesCmac;
         } catch (Exception e) { return null; }
-        aesCmac.updateByte(nextHeader);
-        aesCmac.updateByte((byte) ((HIP_HEADER_LENGTH+parametersLength-8)/8));
-        aesCmac.updateByte(packetType);
-        aesCmac.updateShort((short)0);
-        aesCmac.updateShort(controls);
-        aesCmac.updateBlock(senderHit);
-        aesCmac.updateBlock(receiverHit);
-        for (int i=0; i<hipParameters.size(); i++) {
-            HipParameter param = (HipParameter)hipParameters.elementAt(i);
-            if (param.getType() >= HipParameter.HIP_MAC_3)
-                continue;
-            aesCmac.updateBlock(param.getBytes());
-        }
-        return aesCmac.doFinal();
+    }
+
+    /**
+     * The HIP_MAC_3 parameter of the packet is calculated with the context
+     * when the packet is written, over the encoded bytes preceding it.
+     */
+    public void setCmacContext(AesCmac cmacContext) {
+        macContext = cmacContext;
+    }
+
+    public void recalculateCmac(byte[] cmacKey) {
+        setCmacContext(createCmac(cmacKey));
     }
 
     public boolean verifyCmac(byte[] cmacKey) {
-        HipHipMac3 hipMac = (HipHipMac3)getParameter(HipParameter.HIP_MAC_3);
-        if (hipMac == null) return false;
+        return verifyCmac(createCmac(cmacKey));
+    }
 
-        byte[] cmac = calculateCmac(cmacKey);
-        return com.sun.squawk.util.Arrays.equals(hipMac.getContents(), cmac);
-   }
+    // A received packet is verified over the bytes it was parsed from
+    public boolean verifyCmac(AesCmac cmacContext) {
+        if (cmacContext == null)
+            return false;
+        if (viewData == null) {
+            byte[] data = getBytes();
+            return verifyCmac(cmacContext, data, 0, data.length);
+        }
+        return verifyCmac(cmacContext, viewData, viewOffset, viewLength);
+    }
 
-    public void recalculateCmac(byte[] cmacKey) {
-        HipHipMac3 hipMac = (HipHipMac3)getParameter(HipParameter.HIP_MAC_3);
-        if (hipMac == null) return;
+    private static boolean verifyCmac(AesCmac aesCmac, byte[] data, int offset, int length) {
+        int macOffset = findCmac(data, offset, length);
+        if (macOffset < 0)
+            return false;
+        int macLength = ((data[macOffset+2]&0xff)<<8)|(data[macOffset+3]&0xff);
+        if (macLength != aesCmac.getMacLength())
+            return false;
+
+        byte[] cmac = new byte[macLength];
+        calculateCmac(aesCmac, data, offset, macOffset, cmac, 0);
+        int difference = 0;
+        for (int i=0; i<macLength; i++)
+            difference |= cmac[i] ^ data[macOffset+4+i];
+        return difference == 0;
+    }
+
+    private static int findCmac(byte[] data, int offset, int length) {
+        int currentIdx = offset+HIP_HEADER_LENGTH;
+        int endIdx = offset+length;
+        while (endIdx-currentIdx >= 4) {
+            short type = (short)(((data[currentIdx]&0xff)<<8)|(data[currentIdx+1]&0xff));
+            if (type == HipParameter.HIP_MAC_3)
+                return currentIdx;
+            currentIdx += getTlvTotalLength(data, currentIdx);
+        }
+        return -1;
+    }
 
-        byte[] cmac = calculateCmac(cmacKey);
-        hipMac.setCmac(cmac);
-   }
+    /**
+     * Calculates the CMAC as in RFC 7401 section 5.2.9, over an encoded
+     * packet up to the HIP_MAC_3 at macOffset, with the header length
+     * covering only those parameters and the checksum as zero. The context
+     * is reset first, so it can be reused for every packet.
+     */
+    private static void calculateCmac(AesCmac aesCmac, byte[] data, int offset, int macOffset, byte[] out, int outOffset) {
+        aesCmac.reset();
+        aesCmac.updateByte(data[offset]);
+        aesCmac.updateByte((byte) ((macOffset-offset-8)/8));
+        aesCmac.update(data, offset+2, 2);
+        aesCmac.updateShort((short)0);
+        aesCmac.update(data, offset+6, macOffset-offset-6);
+        aesCmac.doFinal(out, outOffset);
+    }
 
     public HipParameter getParameter(short type) {
-        for (int i=0; i<hipParameters.size(); i++) {
-            HipParameter param = (HipParameter)hipParameters.elementAt(i);
-            if (param.getType() == type)
-                return param;
+        for (int i=0; i<getParameterCount(); i++) {
+            if (getParameterType(i) == type)
+                return getParameterAt(i);
         }
         return null;
     }
 
-    private static short calculateChecksum(byte[] data) {
+    // The offset has to be even from the start of the packet
+    static int sumChecksum(byte[] data, int offset, int length) {
         int checksum = 0;
-        for (int i=0; i<data.length; i++) {
-            checksum += (i%2==0) ? data[i]<<8 : data[i];
+        for (int i=0; i<length; i++) {
+            checksum += (i%2==0) ? data[offset+i]<<8 : data[offset+i];
         }
+        return checksum;
+    }
+
+    static short foldChecksum(int checksum) {
         while (checksum>>16 != 0) {
             checksum = (checksum&0xffff)+(checksum>>16);
         }
         return (short)(~checksum);
     }
 
-    public byte[] getBytes() {
-        int parametersLength = 0;
-        for (int i=0; i<hipParameters.size(); i++) {
-            HipParameter param = (HipParameter)hipParameters.elementAt(i);
-
-            // RFC5201-bis Section 5.2.1. TLV Format
-            int Length = param.getContentLength();
-            parametersLength += 11 + Length - (Length + 3) % 8;
+    public int getLength() {
+        int length = HIP_HEADER_LENGTH;
+        for (int i=0; i<getParameterCount(); i++) {
+            length += getParameterTotalLength(i);
         }
-        if (parametersLength > 2008) {
-            // TODO: Too large parameters length, should fail
-        }
-
-        byte[] ret = new byte[HIP_HEADER_LENGTH + parametersLength];
-        ret[0] = nextHeader;
-        ret[1] = (byte) ((ret.length-8)/8);
-        ret[2] = (byte) (packetType&0x7f);
-        ret[3] = (byte) (((hipVersion&0x0f)<<4)|0x01);
-        // 2 bytes checksum
-        ret[6] = (byte) (controls>>8);
-        ret[7] = (byte) (controls);
-
-        int currentIdx = 8;
-        System.arraycopy(senderHit, 0, ret, currentIdx, 16);
-        currentIdx += 16;
-        System.arraycopy(receiverHit, 0, ret, currentIdx, 16);
-        currentIdx += 16;
-        for (int i=0; i<hipParameters.size(); i++) {
-            HipParameter param = (HipParameter)hipParameters.elementAt(i);
-            byte[] paramBytes = param.getBytes();
+        return length;
+    }
 
-            System.arraycopy(paramBytes, 0, ret, currentIdx, paramBytes.length);
-            currentIdx += paramBytes.length;
+    /**
+     * Encodes the packet in a single pass into the buffer, which needs to
+     * have at least getLength() bytes available at the offset. Returns the
+     * number of bytes written.
+     */
+    public int writeTo(byte[] buffer, int offset) {
+        int length = getLength();
+        if (length > HIP_HEADER_LENGTH+2008 || buffer.length-offset < length)
+            throw new IllegalArgumentException("HIP packet does not fit the buffer");
+
+        buffer[offset] = nextHeader;
+        buffer[offset+1] = (byte) ((length-8)/8);
+        buffer[offset+2] = (byte) (packetType&0x7f);
+        buffer[offset+3] = (byte) (((hipVersion&0x0f)<<4)|0x01);
+        buffer[offset+4] = 0;
+        buffer[offset+5] = 0;
+        buffer[offset+6] = (byte) (controls>>8);
+        buffer[offset+7] = (byte) (controls);
+
+        int currentIdx = offset+8;
+        senderHit.writeTo(buffer, currentIdx);
+        currentIdx += HipHit.LENGTH;
+        receiverHit.writeTo(buffer, currentIdx);
+        currentIdx += HipHit.LENGTH;
+        int macOffset = -1;
+        for (int i=0; i<getParameterCount(); i++) {
+            if (macOffset < 0 && getParameterType(i) == HipParameter.HIP_MAC_3)
+                macOffset = currentIdx;
+            currentIdx += writeParameterTo(i, buffer, currentIdx);
         }
-        if (currentIdx != ret.length) {
-            // TODO: Should throw an error if the lengts don't match
+
+        // Fill in the HIP_MAC_3 contents before they go into the checksum
+        if (macContext != null && macOffset >= 0) {
+            int macLength = ((buffer[macOffset+2]&0xff)<<8)|(buffer[macOffset+3]&0xff);
+            if (macLength != macContext.getMacLength())
+                throw new IllegalArgumentException("HIP_MAC_3 length does not match the CMAC");
+            calculateCmac(macContext, buffer, offset, macOffset, buffer, macOffset+4);
         }
 
         // Calculate checksum of the HIP packet
-        short checksum = calculateChecksum(ret);
-        ret[4] = (byte)(checksum>>8);
-        ret[5] = (byte)(checksum);
+        short checksum = foldChecksum(sumChecksum(buffer, offset, length));
+        buffer[offset+4] = (byte)(checksum>>8);
+        buffer[offset+5] = (byte)(checksum);
+        return length;
+    }
+
+    public byte[] getBytes() {
+        byte[] ret = new byte[getLength()];
+        writeTo(ret, 0);
         return ret;
     }
 
+    /**
+     * Parses the packet header and indexes its parameters without copying
+     * anything. The returned packet refers to the given buffer, so it must
+     * not be used after the buffer is reused unless copy() is called first.
+     */
     public static HipPacket parse(byte[] data, int offset, int length) {
         if (data == null)
             return null;
@@ -214,64 +348,77 @@ public abstract class HipPacket {
         if (packetLength < 40 || packetLength > length)
             return null;
 
-        // Construct the actual packet data array
-        byte[] packetData = new byte[packetLength];
-        System.arraycopy(data, offset, packetData, 0, packetLength);
-
-        // Calculate checksum and confirm it is correct
-        short checksum = (short)(((packetData[4]&0xff)<<8)|(packetData[5]&0xff));
-        packetData[4] = 0; packetData[5] = 0;
-        if (checksum != calculateChecksum(packetData))
+        // Confirm the checksum, its own bytes are taken out of the sum
+        short checksum = (short)(((data[offset+4]&0xff)<<8)|(data[offset+5]&0xff));
+        int sum = sumChecksum(data, offset, packetLength) - (data[offset+4]<<8) - data[offset+5];
+        if (checksum != foldChecksum(sum))
             return null;
 
-        HipPacket packet = null;
-        byte packetType = (byte)(packetData[2]&0x7f);
-        switch (packetType) {
-            case HipPacket.TYPE_I1:
-                packet = new HipPacketI1();
-                break;
-            case HipPacket.TYPE_R1:
-                packet = new HipPacketR1();
-                break;
-            case HipPacket.TYPE_I2:
-                packet = new HipPacketI2();
-                break;
-            case HipPacket.TYPE_R2:
-                packet = new HipPacketR2();
-                break;
-        }
-        packet.nextHeader = packetData[0];
-        packet.hipVersion = (byte)((packetData[3]>>4)&0x0f);
-        packet.controls = (short)(((packetData[6]&0xff)<<8)|(packetData[7]&0xff));
-        System.arraycopy(packetData, 8, packet.senderHit, 0, 16);
-        System.arraycopy(packetData, 24, packet.receiverHit, 0, 16);
-
-        int currentIdx = 40;
-        while (currentIdx < packetData.length) {
-            if (packetData.length-currentIdx < 4) {
+        HipPacket packet = newPacket((byte)(data[offset+2]&0x7f));
+        if (packet == null)
+            return null;
+        packet.nextHeader = data[offset];
+        packet.hipVersion = (byte)((data[offset+3]>>4)&0x0f);
+        packet.controls = (short)(((data[offset+6]&0xff)<<8)|(data[offset+7]&0xff));
+        packet.senderHit = new HipHit(data, offset+8);
+        packet.receiverHit = new HipHit(data, offset+24);
+
+        // Every parameter takes at least 8 bytes
+        int[] offsets = new int[(packetLength-HIP_HEADER_LENGTH)/8];
+        int count = 0;
+        int currentIdx = offset+HIP_HEADER_LENGTH;
+        int endIdx = offset+packetLength;
+        while (currentIdx < endIdx) {
+            if (endIdx-currentIdx < 4) {
                 // Not enough data for parameter header
                 return null;
             }
-            int paramType = ((packetData[currentIdx]&0xff)<<8)|(packetData[currentIdx+1]&0xff);
-            int paramLength = ((packetData[currentIdx+2]&0xff)<<8)|(packetData[currentIdx+3]&0xff);
-            int totalLength = 11+paramLength-(paramLength+3)%8;
-
-            if (packetData.length-currentIdx < totalLength) {
+            int totalLength = getTlvTotalLength(data, currentIdx);
+            if (endIdx-currentIdx < totalLength) {
                 // Not enough data for parameter contents
-                System.out.println("Not enough data for contents");
-                return null;
-            }
-            byte[] content = new byte[paramLength];
-            System.arraycopy(packetData, currentIdx+4, content, 0, paramLength);
-            HipParameter param = HipParameter.parse((short)paramType, content);
-            if (param == null) {
-                // Parsing parameter failed
-                System.out.println("Parsing parameter failed");
+                HipDexLog.debug("Not enough data for contents");
                 return null;
             }
-            packet.addParameter(param);
+            offsets[count++] = currentIdx;
             currentIdx += totalLength;
         }
+
+        packet.viewData = data;
+        packet.viewOffset = offset;
+        packet.viewLength = packetLength;
+        packet.tlvOffsets = offsets;
+        packet.tlvCount = count;
+        packet.decodedParameters = new HipParameter[count];
+        return packet;
+    }
+
+    /**
+     * Returns a packet that no longer refers to the receive buffer.
+     */
+    public HipPacket copy() {
+        HipPacket packet = newPacket(packetType);
+        packet.nextHeader = nextHeader;
+        packet.hipVersion = hipVersion;
+        packet.controls = controls;
+        packet.senderHit = senderHit;
+        packet.receiverHit = receiverHit;
+        for (int i=0; i<hipParameters.size(); i++) {
+            packet.hipParameters.addElement(hipParameters.elementAt(i));
+        }
+        if (viewData == null)
+            return packet;
+
+        // The header is kept as well, the CMAC is verified over it
+        packet.viewData = new byte[viewLength];
+        System.arraycopy(viewData, viewOffset, packet.viewData, 0, viewLength);
+        packet.viewLength = viewLength;
+        packet.tlvOffsets = new int[tlvCount];
+        packet.decodedParameters = new HipParameter[tlvCount];
+        packet.tlvCount = tlvCount;
+        for (int i=0; i<tlvCount; i++) {
+            packet.tlvOffsets[i] = tlvOffsets[i]-viewOffset;
+            packet.decodedParameters[i] = decodedParameters[i];
+        }
         return packet;
     }
 
@@ -281,12 +428,12 @@ public abstract class HipPacket {
         ret += " packetType: " + (packetType&0xff);
         ret += " hipVersion: " + (hipVersion&0xff);
         ret += " controls: " + (controls&0xffff);
-        ret += " senderHIT: " + HipDexUtils.byteArrayToString(senderHit);
-        ret += " receiverHIT: " + HipDexUtils.byteArrayToString(receiverHit);
-        if (hipParameters.size() > 0) {
+        ret += " senderHIT: " + senderHit;
+        ret += " receiverHIT: " + receiverHit;
+        if (getParameterCount() > 0) {
             ret += " parameters: [";
-            for (int i=0; i<hipParameters.size(); i++) {
-                ret += " " + i + ":" + hipParameters.elementAt(i);
+            for (int i=0; i<getParameterCount(); i++) {
+                ret += " " + i + ":" + getParameterAt(i);
             }
             ret += " ]";
         }
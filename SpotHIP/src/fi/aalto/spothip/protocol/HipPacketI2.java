@@ -29,8 +29,14 @@ public class HipPacketI2 extends HipPacket {
     }
     
     public HipPacketI2(HipSolution solution, HipHostId hostId, HipEncryptedKey encryptedKey) {
+        this(null, solution, hostId, encryptedKey);
+    }
+
+    public HipPacketI2(HipEspInfo espInfo, HipSolution solution, HipHostId hostId, HipEncryptedKey encryptedKey) {
         super(HipPacket.TYPE_I2);
 
+        if (espInfo != null)
+            addParameter(espInfo);
         addParameter(solution);
         addParameter(new HipHipCipher());
         addParameter(encryptedKey);
@@ -29,8 +29,14 @@ public class HipPacketR2 extends HipPacket {
     }
 
     public HipPacketR2(HipDhGroupList dhGroupList, HipEncryptedKey encryptedKey) {
+        this(null, dhGroupList, encryptedKey);
+    }
+
+    public HipPacketR2(HipEspInfo espInfo, HipDhGroupList dhGroupList, HipEncryptedKey encryptedKey) {
         super(HipPacket.TYPE_R2);
 
+        if (espInfo != null)
+            addParameter(espInfo);
         addParameter(encryptedKey);
         addParameter(dhGroupList);
         addParameter(new HipHipMac3());
@@ -23,9 +23,11 @@
 
 package fi.aalto.spothip.protocol;
 
+import fi.aalto.spothip.HipDexLog;
 import fi.aalto.spothip.HipDexUtils;
 
 public abstract class HipParameter {
+    public static final short ESP_INFO        = 65;
     public static final short R1_COUNTER      = 128;
     public static final short PUZZLE          = 257;
     public static final short SOLUTION        = 321;
@@ -34,6 +36,8 @@ public abstract class HipParameter {
     public static final short ENCRYPTED_KEY   = 643;
     public static final short HOST_ID         = 705;
     public static final short HIT_SUITE_LIST  = 715;
+    public static final short ECHO_REQUEST_SIGNED  = 897;
+    public static final short ECHO_RESPONSE_SIGNED = 961;
     public static final short DH_GROUP_LIST   = 2151;
 
     public static final short HIP_MAC_3               = (short) 61507;
@@ -41,48 +45,72 @@ public abstract class HipParameter {
     public static final short ECHO_RESPONSE_UNSIGNED  = (short) 63425;
 
     public abstract short getType();
-    public abstract byte[] getContents();
     public abstract int getContentLength();
-    protected abstract boolean parseContent(byte[] content);
+    protected abstract void writeContents(byte[] buffer, int offset);
+    protected abstract boolean parseContent(byte[] data, int offset, int length);
 
-    public byte[] getPadding() {
-        return null;
+    public byte[] getContents() {
+        byte[] ret = new byte[getContentLength()];
+        writeContents(ret, 0);
+        return ret;
     }
 
-    public final byte[] getBytes() {
+    // RFC5201-bis Section 5.2.1. TLV Format, padded to 8 byte boundary
+    public final int getTotalLength() {
+        int contentLength = getContentLength();
+        return 11 + contentLength - (contentLength + 3) % 8;
+    }
+
+    /**
+     * Encodes the whole TLV including padding into the buffer and returns
+     * the number of bytes written, which is always getTotalLength().
+     */
+    public final int writeTo(byte[] buffer, int offset) {
         short type = getType();
-        byte[] contents = getContents();
-        byte[] padding = getPadding();
-        if (padding == null) {
-            int contentLength = 4+contents.length;
-            if (contentLength%8 == 0)
-                padding = new byte[0];
-            else
-                padding = new byte[8-(contentLength)%8];
-        }
-        
-        byte[] data = new byte[4+contents.length+padding.length];
-        data[0] = (byte) ((type>>8)&0xff);
-        data[1] = (byte) (type&0xff);
-        data[2] = (byte) ((contents.length>>8)%0xff);
-        data[3] = (byte) (contents.length&0xff);
-        System.arraycopy(contents, 0, data, 4, contents.length);
-        System.arraycopy(padding, 0, data, 4+contents.length, padding.length);
+        int contentLength = getContentLength();
+        int totalLength = getTotalLength();
+
+        buffer[offset] = (byte) ((type>>8)&0xff);
+        buffer[offset+1] = (byte) (type&0xff);
+        buffer[offset+2] = (byte) ((contentLength>>8)&0xff);
+        buffer[offset+3] = (byte) (contentLength&0xff);
+        writeContents(buffer, offset+4);
+        for (int i=4+contentLength; i<totalLength; i++)
+            buffer[offset+i] = 0;
+        return totalLength;
+    }
+
+    public final byte[] getBytes() {
+        byte[] data = new byte[getTotalLength()];
+        writeTo(data, 0);
         return data;
     }
 
     public static HipParameter parse(short type, byte[] contents) {
+        return parse(type, contents, 0, contents.length);
+    }
+
+    public static HipParameter parse(short type, byte[] data, int offset, int length) {
         HipParameter param = null;
         switch (type) {
             case HipParameter.DH_GROUP_LIST:
                 param = new HipDhGroupList();
                 break;
+            case HipParameter.ECHO_REQUEST_SIGNED:
+                param = new HipEchoRequestSigned();
+                break;
+            case HipParameter.ECHO_RESPONSE_SIGNED:
+                param = new HipEchoResponseSigned();
+                break;
             case HipParameter.ECHO_REQUEST_UNSIGNED:
                 param = new HipEchoRequestUnsigned();
                 break;
             case HipParameter.ECHO_RESPONSE_UNSIGNED:
                 param = new HipEchoResponseUnsigned();
                 break;
+            case HipParameter.ESP_INFO:
+                param = new HipEspInfo();
+                break;
             case HipParameter.ENCRYPTED:
                 param = new HipEncrypted();
                 break;
@@ -111,8 +139,10 @@ public abstract class HipParameter {
                 param = new HipSolution();
                 break;
         }
-        if (!param.parseContent(contents)) {
-            System.out.println("Parsing parameter failed");
+        if (param == null)
+            return null;
+        if (!param.parseContent(data, offset, length)) {
+            HipDexLog.debug("Parsing parameter failed");
             return null;
         }
         return param;
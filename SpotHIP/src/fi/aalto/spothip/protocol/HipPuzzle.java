@@ -55,25 +55,23 @@ public class HipPuzzle extends HipParameter {
         return 4+randomI.length;
     }
 
-    public byte[] getContents() {
-        byte[] ret = new byte[getContentLength()];
-        ret[0] = k;
-        ret[1] = lifetime;
-        ret[2] = (byte) ((opaque>>8)&0xff);
-        ret[3] = (byte) (opaque&0xff);
-        System.arraycopy(randomI, 0, ret, 4, randomI.length);
-        return ret;
+    protected void writeContents(byte[] buffer, int offset) {
+        buffer[offset] = k;
+        buffer[offset+1] = lifetime;
+        buffer[offset+2] = (byte) ((opaque>>8)&0xff);
+        buffer[offset+3] = (byte) (opaque&0xff);
+        System.arraycopy(randomI, 0, buffer, offset+4, randomI.length);
     }
 
-    protected boolean parseContent(byte[] content) {
-        if (content.length < 4)
+    protected boolean parseContent(byte[] data, int offset, int length) {
+        if (length < 4)
             return false;
 
-        k = content[0];
-        lifetime = content[1];
-        opaque = (short)(((content[2]&0xff)<<8)|(content[3]&0xff));
-        randomI = new byte[content.length-4];
-        System.arraycopy(content, 4, randomI, 0, randomI.length);
+        k = data[offset];
+        lifetime = data[offset+1];
+        opaque = (short)(((data[offset+2]&0xff)<<8)|(data[offset+3]&0xff));
+        randomI = new byte[length-4];
+        System.arraycopy(data, offset+4, randomI, 0, randomI.length);
         return true;
     }
 }
@@ -34,20 +34,20 @@ public class HipR1Counter extends HipParameter {
         return 12;
     }
 
-    public byte[] getContents() {
-        byte[] ret = new byte[getContentLength()];
-        ret[4] = (byte) ((counter>>56)&0xff);
-        ret[5] = (byte) ((counter>>48)&0xff);
-        ret[6] = (byte) ((counter>>40)&0xff);
-        ret[7] = (byte) ((counter>>32)&0xff);
-        ret[8] = (byte) ((counter>>24)&0xff);
-        ret[9] = (byte) ((counter>>16)&0xff);
-        ret[10] = (byte) ((counter>>8)&0xff);
-        ret[11] = (byte) (counter&0xff);
-        return ret;
+    protected void writeContents(byte[] buffer, int offset) {
+        for (int i=0; i<4; i++)
+            buffer[offset+i] = 0;
+        buffer[offset+4] = (byte) ((counter>>56)&0xff);
+        buffer[offset+5] = (byte) ((counter>>48)&0xff);
+        buffer[offset+6] = (byte) ((counter>>40)&0xff);
+        buffer[offset+7] = (byte) ((counter>>32)&0xff);
+        buffer[offset+8] = (byte) ((counter>>24)&0xff);
+        buffer[offset+9] = (byte) ((counter>>16)&0xff);
+        buffer[offset+10] = (byte) ((counter>>8)&0xff);
+        buffer[offset+11] = (byte) (counter&0xff);
     }
 
-    protected boolean parseContent(byte[] content) {
+    protected boolean parseContent(byte[] data, int offset, int length) {
         return true;
     }
 }
@@ -0,0 +1,86 @@
+//
+// HipR1Template - Pre-encoded R1 packet of one puzzle generation
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.protocol;
+
+/**
+ * Everything in an R1 except the receiver HIT and the puzzle I stays the
+ * same for a puzzle complexity, so the packet is encoded and summed once
+ * with those fields zeroed. Each R1 is then a copy of the template with the
+ * two fields patched in and their share added to the checksum.
+ */
+public class HipR1Template {
+    private static final int RECEIVER_HIT_OFFSET = 24;
+
+    // PUZZLE is the first parameter, I follows its TLV header and 4 bytes
+    private static final int PUZZLE_I_OFFSET = 40+4+4;
+
+    private byte[] template;
+    private int templateSum;
+    private int puzzleLength;
+    private int complexity;
+
+    public HipR1Template(HipHit senderHit, int complexity, int puzzleLength,
+            HipHostId hostId, HipDhGroupList dhGroupList) {
+        HipPacketR1 r1Packet = new HipPacketR1(new HipPuzzle(complexity, new byte[puzzleLength]), hostId, dhGroupList);
+        r1Packet.setSenderHit(senderHit);
+        r1Packet.setReceiverHit(new HipHit(new byte[HipHit.LENGTH]));
+
+        template = r1Packet.getBytes();
+        template[4] = 0;
+        template[5] = 0;
+        templateSum = HipPacket.sumChecksum(template, 0, template.length);
+        this.puzzleLength = puzzleLength;
+        this.complexity = complexity;
+    }
+
+    public int getComplexity() {
+        return complexity;
+    }
+
+    public int getLength() {
+        return template.length;
+    }
+
+    /**
+     * Writes the R1 for the given initiator into the buffer and returns its
+     * length. Both patched fields start at even offsets, so their sums line
+     * up with the checksum of the whole packet.
+     */
+    public int writeTo(byte[] buffer, int offset, HipHit receiverHit, byte[] puzzleI) {
+        if (puzzleI.length != puzzleLength)
+            throw new IllegalArgumentException("Puzzle I length is not correct");
+
+        System.arraycopy(template, 0, buffer, offset, template.length);
+        receiverHit.writeTo(buffer, offset+RECEIVER_HIT_OFFSET);
+        System.arraycopy(puzzleI, 0, buffer, offset+PUZZLE_I_OFFSET, puzzleLength);
+
+        int sum = templateSum;
+        sum += HipPacket.sumChecksum(buffer, offset+RECEIVER_HIT_OFFSET, HipHit.LENGTH);
+        sum += HipPacket.sumChecksum(buffer, offset+PUZZLE_I_OFFSET, puzzleLength);
+        short checksum = HipPacket.foldChecksum(sum);
+        buffer[offset+4] = (byte)(checksum>>8);
+        buffer[offset+5] = (byte)(checksum);
+        return template.length;
+    }
+}
@@ -40,6 +40,10 @@ public class HipSolution extends HipParameter {
         System.arraycopy(puzzleJ, 0, solutionJ, 0, puzzleJ.length);
     }
 
+    public byte getComplexity() {
+        return k;
+    }
+
     public byte[] getRandomI() {
         return randomI;
     }
@@ -56,26 +60,25 @@ public class HipSolution extends HipParameter {
         return 4+randomI.length+solutionJ.length;
     }
 
-    public byte[] getContents() {
-        byte[] ret = new byte[getContentLength()];
-        ret[0] = k;
-        ret[2] = (byte) ((opaque>>8)&0xff);
-        ret[3] = (byte) (opaque&0xff);
-        System.arraycopy(randomI, 0, ret, 4, randomI.length);
-        System.arraycopy(solutionJ, 0, ret, 4+randomI.length, solutionJ.length);
-        return ret;
+    protected void writeContents(byte[] buffer, int offset) {
+        buffer[offset] = k;
+        buffer[offset+1] = 0;
+        buffer[offset+2] = (byte) ((opaque>>8)&0xff);
+        buffer[offset+3] = (byte) (opaque&0xff);
+        System.arraycopy(randomI, 0, buffer, offset+4, randomI.length);
+        System.arraycopy(solutionJ, 0, buffer, offset+4+randomI.length, solutionJ.length);
     }
 
-    protected boolean parseContent(byte[] content) {
-       if (content.length < 4)
+    protected boolean parseContent(byte[] data, int offset, int length) {
+       if (length < 4)
             return false;
 
-        k = content[0];
-        opaque = (short)(((content[2]&0xff)<<8)|(content[3]&0xff));
-        randomI = new byte[(content.length-4)/2];
-        solutionJ = new byte[(content.length-4)/2];
-        System.arraycopy(content, 4, randomI, 0, randomI.length);
-        System.arraycopy(content, 4+randomI.length, solutionJ, 0, solutionJ.length);
+        k = data[offset];
+        opaque = (short)(((data[offset+2]&0xff)<<8)|(data[offset+3]&0xff));
+        randomI = new byte[(length-4)/2];
+        solutionJ = new byte[(length-4)/2];
+        System.arraycopy(data, offset+4, randomI, 0, randomI.length);
+        System.arraycopy(data, offset+4+randomI.length, solutionJ, 0, solutionJ.length);
         return true;
     }
 }
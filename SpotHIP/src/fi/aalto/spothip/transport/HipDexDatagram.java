@@ -0,0 +1,70 @@
+//
+// HipDexDatagram - Reusable receive buffer for transports
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.transport;
+
+public class HipDexDatagram {
+    private byte[] data;
+    private int length;
+    private String address;
+
+    public HipDexDatagram(int capacity) {
+        data = new byte[capacity];
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public void setLength(int newLength) {
+        length = newLength;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void setAddress(String newAddress) {
+        address = newAddress;
+    }
+
+    public void set(byte[] src, int offset, int srcLength, String srcAddress) {
+        int copyLength = Math.min(srcLength, data.length);
+        System.arraycopy(src, offset, data, 0, copyLength);
+        length = copyLength;
+        address = srcAddress;
+    }
+
+    public void reset() {
+        length = 0;
+        address = null;
+    }
+}
@@ -0,0 +1,49 @@
+//
+// IHipDexTransport - Datagram transport used by the HipDexEngine
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.transport;
+
+import java.io.IOException;
+
+/**
+ * Transport carrying HIP packets between engines. Addresses are opaque
+ * strings that are only meaningful to the transport that produced them,
+ * a null address always means broadcast.
+ */
+public interface IHipDexTransport {
+    public void open() throws IOException;
+    public void close() throws IOException;
+
+    public int getMaximumLength() throws IOException;
+    public String getLocalAddress();
+
+    /**
+     * Blocks until at least one datagram is available and fills as many
+     * of the given datagrams as can be filled without blocking again.
+     * Returns the number of datagrams filled.
+     */
+    public int receive(HipDexDatagram[] datagrams) throws IOException;
+
+    /** Must be safe to call from several threads at the same time. */
+    public void send(byte[] data, int offset, int length, String address) throws IOException;
+}
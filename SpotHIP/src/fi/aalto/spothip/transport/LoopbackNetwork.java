@@ -0,0 +1,78 @@
+//
+// LoopbackNetwork - In-process network connecting loopback transports
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.transport;
+
+import java.util.Enumeration;
+import java.util.Hashtable;
+
+public class LoopbackNetwork {
+    private static final int DEFAULT_MAXIMUM_LENGTH = 1280;
+
+    private int maximumLength;
+    private int nextAddress = 1;
+    private Hashtable transports = new Hashtable();
+
+    public LoopbackNetwork() {
+        this(DEFAULT_MAXIMUM_LENGTH);
+    }
+
+    public LoopbackNetwork(int maxLength) {
+        maximumLength = maxLength;
+    }
+
+    public int getMaximumLength() {
+        return maximumLength;
+    }
+
+    synchronized String allocateAddress() {
+        return "loopback:" + (nextAddress++);
+    }
+
+    void attach(LoopbackTransport transport) {
+        transports.put(transport.getLocalAddress(), transport);
+    }
+
+    void detach(LoopbackTransport transport) {
+        transports.remove(transport.getLocalAddress());
+    }
+
+    void deliver(byte[] data, int offset, int length, String source, String destination) {
+        if (length > maximumLength)
+            return;
+
+        if (destination != null) {
+            LoopbackTransport transport = (LoopbackTransport)transports.get(destination);
+            if (transport != null)
+                transport.enqueue(data, offset, length, source);
+            return;
+        }
+
+        Enumeration elements = transports.elements();
+        while (elements.hasMoreElements()) {
+            LoopbackTransport transport = (LoopbackTransport)elements.nextElement();
+            if (!transport.getLocalAddress().equals(source))
+                transport.enqueue(data, offset, length, source);
+        }
+    }
+}
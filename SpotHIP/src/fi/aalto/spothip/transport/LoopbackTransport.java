@@ -0,0 +1,135 @@
+//
+// LoopbackTransport - In-process transport for testing and benchmarking
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+public class LoopbackTransport implements IHipDexTransport {
+    private static final int DEFAULT_QUEUE_LENGTH = 64;
+
+    private LoopbackNetwork network;
+    private String localAddress;
+
+    // Ring buffer of received frames, frames are dropped when it is full
+    private byte[][] frames;
+    private int[] frameLengths;
+    private String[] frameAddresses;
+    private int queueHead = 0;
+    private int queueCount = 0;
+    private int droppedFrames = 0;
+
+    private boolean opened = false;
+
+    public LoopbackTransport(LoopbackNetwork loopbackNetwork) {
+        this(loopbackNetwork, DEFAULT_QUEUE_LENGTH);
+    }
+
+    public LoopbackTransport(LoopbackNetwork loopbackNetwork, int queueLength) {
+        network = loopbackNetwork;
+        localAddress = network.allocateAddress();
+
+        frames = new byte[queueLength][];
+        frameLengths = new int[queueLength];
+        frameAddresses = new String[queueLength];
+        for (int i=0; i<queueLength; i++) {
+            frames[i] = new byte[network.getMaximumLength()];
+        }
+    }
+
+    public synchronized void open() throws IOException {
+        if (opened)
+            return;
+
+        opened = true;
+        queueHead = 0;
+        queueCount = 0;
+        network.attach(this);
+    }
+
+    public synchronized void close() throws IOException {
+        if (!opened)
+            return;
+
+        opened = false;
+        network.detach(this);
+        notifyAll();
+    }
+
+    public int getMaximumLength() {
+        return network.getMaximumLength();
+    }
+
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    public synchronized int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public synchronized int receive(HipDexDatagram[] datagrams) throws IOException {
+        while (opened && queueCount == 0) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (!opened)
+            throw new IOException("Transport closed");
+
+        int count = 0;
+        while (queueCount > 0 && count < datagrams.length) {
+            datagrams[count].set(frames[queueHead], 0, frameLengths[queueHead], frameAddresses[queueHead]);
+            frameAddresses[queueHead] = null;
+            queueHead = (queueHead+1) % frames.length;
+            queueCount--;
+            count++;
+        }
+        return count;
+    }
+
+    public void send(byte[] data, int offset, int length, String address) throws IOException {
+        if (!opened)
+            throw new IOException("Transport closed");
+        network.deliver(data, offset, length, localAddress, address);
+    }
+
+    synchronized void enqueue(byte[] data, int offset, int length, String source) {
+        if (!opened)
+            return;
+        if (queueCount == frames.length) {
+            droppedFrames++;
+            return;
+        }
+
+        int tail = (queueHead+queueCount) % frames.length;
+        System.arraycopy(data, offset, frames[tail], 0, length);
+        frameLengths[tail] = length;
+        frameAddresses[tail] = source;
+        queueCount++;
+        notifyAll();
+    }
+}
@@ -0,0 +1,136 @@
+//
+// RadiogramTransport - SPOT radio transport
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2011, 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.transport;
+
+import com.sun.spot.peripheral.Spot;
+import com.sun.spot.util.IEEEAddress;
+
+import javax.microedition.io.*;
+import java.io.IOException;
+import java.util.Hashtable;
+
+public class RadiogramTransport implements IHipDexTransport {
+    private static final int MAXIMUM_UNICAST_CONNECTIONS = 16;
+
+    private int port;
+    private String localAddress = null;
+
+    private DatagramConnection incomingConnection = null;
+    private DatagramConnection outgoingConnection = null;
+    private Datagram incomingDatagram = null;
+    private Datagram outgoingDatagram = null;
+
+    // Unicast connections and their datagrams by peer address
+    private Hashtable unicastConnections = new Hashtable();
+    private Hashtable unicastDatagrams = new Hashtable();
+
+    public RadiogramTransport(int hipPort) {
+        port = hipPort;
+    }
+
+    public synchronized void open() throws IOException {
+        if (incomingConnection != null)
+            return;
+
+        long address = Spot.getInstance().getRadioPolicyManager().getIEEEAddress();
+        localAddress = new IEEEAddress(address).asDottedHex();
+        incomingConnection = (DatagramConnection) Connector.open("radiogram://:" + port);
+        outgoingConnection = (DatagramConnection) Connector.open("radiogram://broadcast:" + port);
+        incomingDatagram = incomingConnection.newDatagram(incomingConnection.getMaximumLength());
+        outgoingDatagram = outgoingConnection.newDatagram(outgoingConnection.getMaximumLength());
+    }
+
+    public synchronized void close() throws IOException {
+        if (incomingConnection == null)
+            return;
+
+        localAddress = null;
+        closeUnicastConnections();
+        incomingConnection.close();
+        incomingConnection = null;
+        outgoingConnection.close();
+        outgoingConnection = null;
+        incomingDatagram = null;
+        outgoingDatagram = null;
+    }
+
+    public int getMaximumLength() throws IOException {
+        return incomingConnection.getMaximumLength();
+    }
+
+    public String getLocalAddress() {
+        return localAddress;
+    }
+
+    public int receive(HipDexDatagram[] datagrams) throws IOException {
+        // Radiogram connections only hand out one packet per receive call
+        incomingDatagram.reset();
+        incomingConnection.receive(incomingDatagram);
+        datagrams[0].set(incomingDatagram.getData(), incomingDatagram.getOffset(),
+                incomingDatagram.getLength(), incomingDatagram.getAddress());
+        return 1;
+    }
+
+    public synchronized void send(byte[] data, int offset, int length, String address) throws IOException {
+        if (address == null) {
+            outgoingDatagram.reset();
+            outgoingDatagram.write(data, offset, length);
+            outgoingConnection.send(outgoingDatagram);
+            return;
+        }
+
+        DatagramConnection unicastConnection = (DatagramConnection)unicastConnections.get(address);
+        if (unicastConnection == null) {
+            if (unicastConnections.size() >= MAXIMUM_UNICAST_CONNECTIONS)
+                closeUnicastConnection((String)unicastConnections.keys().nextElement());
+            unicastConnection = (DatagramConnection) Connector.open("radiogram://" + address + ":" + port);
+            unicastConnections.put(address, unicastConnection);
+            unicastDatagrams.put(address, unicastConnection.newDatagram(unicastConnection.getMaximumLength()));
+        }
+
+        Datagram datagram = (Datagram)unicastDatagrams.get(address);
+        datagram.reset();
+        datagram.write(data, offset, length);
+        try {
+            unicastConnection.send(datagram);
+        } catch (IOException ioe) {
+            closeUnicastConnection(address);
+            throw ioe;
+        }
+    }
+
+    private void closeUnicastConnection(String address) {
+        DatagramConnection connection = (DatagramConnection)unicastConnections.remove(address);
+        unicastDatagrams.remove(address);
+        if (connection != null) {
+            try { connection.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    private void closeUnicastConnections() {
+        while (!unicastConnections.isEmpty()) {
+            closeUnicastConnection((String)unicastConnections.keys().nextElement());
+        }
+    }
+}
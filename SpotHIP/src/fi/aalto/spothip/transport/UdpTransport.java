@@ -0,0 +1,95 @@
+//
+// UdpTransport - UDP transport over the generic connection framework
+//
+// Authors:
+//      Juho Vh-Herttua  <juhovh@iki.fi>
+//
+// Copyright (C) 2011, 2026  Aalto University
+//
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+//
+
+package fi.aalto.spothip.transport;
+
+import javax.microedition.io.*;
+import java.io.IOException;
+
+/**
+ * Addresses used by this transport are the "datagram://host:port" strings
+ * returned by the generic connection framework. The framework has no way
+ * to poll, so every receive returns a single datagram. It needs a CLDC
+ * host, on a standard JVM the gateway uses its DatagramTransport.
+ */
+public class UdpTransport implements IHipDexTransport {
+    private static final String DEFAULT_BROADCAST_HOST = "255.255.255.255";
+
+    private int port;
+    private String broadcastAddress;
+
+    private DatagramConnection connection = null;
+    private Datagram incomingDatagram = null;
+    private Datagram outgoingDatagram = null;
+
+    public UdpTransport(int hipPort) {
+        this(hipPort, DEFAULT_BROADCAST_HOST);
+    }
+
+    public UdpTransport(int hipPort, String broadcastHost) {
+        port = hipPort;
+        broadcastAddress = "datagram://" + broadcastHost + ":" + hipPort;
+    }
+
+    public synchronized void open() throws IOException {
+        if (connection != null)
+            return;
+
+        connection = (DatagramConnection) Connector.open("datagram://:" + port);
+        incomingDatagram = connection.newDatagram(connection.getMaximumLength());
+        outgoingDatagram = connection.newDatagram(connection.getMaximumLength());
+    }
+
+    public synchronized void close() throws IOException {
+        if (connection == null)
+            return;
+
+        connection.close();
+        connection = null;
+        incomingDatagram = null;
+        outgoingDatagram = null;
+    }
+
+    public int getMaximumLength() throws IOException {
+        return connection.getMaximumLength();
+    }
+
+    public String getLocalAddress() {
+        return "datagram://:" + port;
+    }
+
+    public int receive(HipDexDatagram[] datagrams) throws IOException {
+        incomingDatagram.reset();
+        incomingDatagram.setLength(incomingDatagram.getData().length);
+        connection.receive(incomingDatagram);
+        datagrams[0].set(incomingDatagram.getData(), incomingDatagram.getOffset(),
+                incomingDatagram.getLength(), incomingDatagram.getAddress());
+        return 1;
+    }
+
+    public synchronized void send(byte[] data, int offset, int length, String address) throws IOException {
+        outgoingDatagram.setData(data, offset, length);
+        outgoingDatagram.setAddress(address == null ? broadcastAddress : address);
+        connection.send(outgoingDatagram);
+    }
+}